@@ -0,0 +1,258 @@
+#!/usr/bin/env bash
+# Deploys the cluster stack, then only the server stacks that differ from what is deployed, in parallel.
+# Server stacks that no longer have a row in the server table are deleted first, so that the cluster stack can
+# drop the exports they used. Their save buckets are kept. Saves of servers from before each server had its own
+# stack are copied over once.
+#
+# With REGIONS (the regions context value, e.g. eu-west-1,us-east-1) the other regions' cluster stacks are
+# deployed after the primary one. A server placed in another region than its stack is in gets a new stack
+# there, its save is copied over, and the old stack and bucket are deleted. That waits while the server is running.
+#
+# Usage: DOMAIN_NAME=example.com ./deploy.sh
+# DEPLOY_ALL=true skips the diff and deploys every server stack, DEPLOY_PARALLELISM (default 8)
+# limits the number of concurrent diffs and deploys.
+#
+# With DEPLOY_STATE_TABLE set, and INFRA_COMMIT unchanged since the last successful run, only the servers
+# the pipeline trigger marked as pending are diffed. Once everything deployed, their pending fingerprint is
+# recorded as deployed. A failed run leaves them pending, so that the next run deploys them.
+set -euo pipefail
+
+PARALLELISM=${DEPLOY_PARALLELISM:-8}
+CLUSTER_STACK="factorio-stack-${DOMAIN_NAME//./-}"
+SERVER_PREFIX="$CLUSTER_STACK-server-"
+REGION_PREFIX="$CLUSTER_STACK-region-"
+
+# Read before the synth reads the server table, so that the fingerprints recorded as deployed below are never
+# newer than the rows that were synthesized.
+# Tab separated: serverName, pendingFingerprint (None for removed servers)
+pending_servers=""
+if [ -n "${DEPLOY_STATE_TABLE:-}" ]; then
+    pending_servers=$(aws dynamodb scan --table-name "$DEPLOY_STATE_TABLE" --consistent-read \
+        --filter-expression "pending = :pending" \
+        --expression-attribute-values '{":pending":{"BOOL":true}}' \
+        --query 'Items[].[serverName.S, pendingFingerprint.S]' --output text)
+fi
+
+cdk synth -c domainName="$DOMAIN_NAME" ${REGIONS:+-c regions="$REGIONS"} --quiet --strict
+
+server_stacks=$(cdk ls --app cdk.out | grep -- "^$SERVER_PREFIX" || true)
+
+# Tab separated: stack name, region, for every stack in the app
+stack_regions=$(jq -r '.artifacts | to_entries[] | select(.value.type == "aws:cloudformation:stack")
+    | "\(.value.properties.stackName // .key)\t\(.value.environment | split("/")[3])"' cdk.out/manifest.json)
+regions=$(echo "$stack_regions" | cut -f2 | sort -u)
+
+# Tab separated: stack name, region, for the server stacks deployed in any of the regions
+deployed_stacks=$(for region in $regions; do
+    aws cloudformation list-stacks --region "$region" \
+        --stack-status-filter CREATE_COMPLETE UPDATE_COMPLETE UPDATE_ROLLBACK_COMPLETE ROLLBACK_COMPLETE \
+        --query "StackSummaries[?starts_with(StackName, '$SERVER_PREFIX')].StackName" \
+        --output text | tr '\t' '\n' | grep -v '^$' | sed "s/\$/\t$region/" || true
+done)
+
+stack_resource() {
+    aws cloudformation describe-stack-resources --region "$2" --stack-name "$1" \
+        --query "StackResources[?ResourceType=='$3'].PhysicalResourceId" --output text
+}
+
+# Deletes a server stack and waits for it, failing the deploy when it doesn't go. The save bucket is retained.
+# Stacks from before that fail to delete it while it holds a save, so they are deleted again keeping it.
+delete_server_stack() {
+    local stack=$1 region=$2
+    aws cloudformation delete-stack --region "$region" --stack-name "$stack"
+    if aws cloudformation wait stack-delete-complete --region "$region" --stack-name "$stack" 2> /dev/null; then
+        return
+    fi
+    local buckets
+    buckets=$(aws cloudformation list-stack-resources --region "$region" --stack-name "$stack" \
+        --query "StackResourceSummaries[?ResourceType=='AWS::S3::Bucket' && ResourceStatus=='DELETE_FAILED']
+            .LogicalResourceId" --output text)
+    if [ -n "$buckets" ] && [ "$buckets" != "None" ]; then
+        # shellcheck disable=SC2086
+        aws cloudformation delete-stack --region "$region" --stack-name "$stack" --retain-resources $buckets
+        if aws cloudformation wait stack-delete-complete --region "$region" --stack-name "$stack"; then
+            return
+        fi
+    fi
+    echo "Failed to delete server stack $stack in $region:" >&2
+    aws cloudformation describe-stack-events --region "$region" --stack-name "$stack" \
+        --query "StackEvents[?ResourceStatus=='DELETE_FAILED'].[LogicalResourceId, ResourceStatusReason]" \
+        --output text >&2
+    exit 1
+}
+
+# Server stacks without a row import the cluster stack's exports, which it can only drop once they are gone.
+# Stacks whose delete failed before are deleted again.
+failed_stacks=$(for region in $regions; do
+    aws cloudformation list-stacks --region "$region" --stack-status-filter DELETE_FAILED \
+        --query "StackSummaries[?starts_with(StackName, '$SERVER_PREFIX')].StackName" \
+        --output text | tr '\t' '\n' | grep -v '^$' | sed "s/\$/\t$region/" || true
+done)
+orphaned_stacks=$(awk -F'\t' 'NR == FNR {known[$1]; next} $1 != "" && !($1 in known)' \
+    <(echo "$stack_regions") <(printf '%s\n%s\n' "$deployed_stacks" "$failed_stacks"))
+while IFS=$'\t' read -r stack region; do
+    [ -n "$stack" ] || continue
+    echo "Deleting server stack $stack in $region, its save stays in s3://$(stack_resource "$stack" "$region" \
+        AWS::S3::Bucket)"
+    delete_server_stack "$stack" "$region"
+done <<< "$orphaned_stacks"
+
+# One-time migration from when every server was part of the cluster stack: the cluster stack would delete
+# their save buckets along with them, so they are retained and copied once the server stacks exist.
+# Their logical ids were factorioclusterfactorioserver<name>bucket<hash>, DeployScriptTest checks the pattern.
+LEGACY_BUCKET='^factorioclusterfactorioserver[A-Za-z0-9]*bucket[0-9A-F]{8}$'
+cluster_template=$(aws cloudformation get-template --stack-name "$CLUSTER_STACK" --query TemplateBody \
+    --output json 2>/dev/null || echo '{}')
+if echo "$cluster_template" | jq -e --arg pattern "$LEGACY_BUCKET" '.Resources // {} | to_entries
+        | any(.key | test($pattern))' > /dev/null; then
+    echo "Retaining the save buckets of the servers in $CLUSTER_STACK"
+    echo "$cluster_template" | jq --arg pattern "$LEGACY_BUCKET" '.Resources |= with_entries(
+        if .key | test($pattern) then .value.DeletionPolicy = "Retain" | .value.UpdateReplacePolicy = "Retain"
+        else . end)' > cdk.out/legacy-cluster.template.json
+    # The template is too large to pass inline, cdk deploy stages it the same way
+    staging_bucket=$(aws cloudformation describe-stacks --stack-name CDKToolkit \
+        --query "Stacks[0].Outputs[?OutputKey=='BucketName'].OutputValue" --output text)
+    aws cloudformation deploy --stack-name "$CLUSTER_STACK" --template-file cdk.out/legacy-cluster.template.json \
+        --s3-bucket "$staging_bucket" --capabilities CAPABILITY_IAM CAPABILITY_NAMED_IAM --no-fail-on-empty-changeset
+fi
+
+cdk deploy --app cdk.out --exclusively "$CLUSTER_STACK" --require-approval never
+
+# They use the secret, status table and images the primary region's stack replicates to them
+cdk ls --app cdk.out | grep -- "^$REGION_PREFIX" | xargs -r -P "$PARALLELISM" -I{} \
+    cdk deploy --app cdk.out --exclusively "{}" --require-approval never
+
+# Servers placed in another region than their stack is in. They move once they are stopped, so that the save
+# that is copied is the last one.
+moved_stacks=""
+deferred_stacks=""
+while IFS=$'\t' read -r stack region; do
+    [ -n "$stack" ] || continue
+    target=$(echo "$stack_regions" | awk -F'\t' -v stack="$stack" '$1 == stack {print $2}')
+    if [ -z "$target" ] || [ "$target" = "$region" ]; then
+        continue
+    fi
+    # The service ARN is arn:aws:ecs:<region>:<account>:service/<cluster>/<service>
+    service_arn=$(stack_resource "$stack" "$region" AWS::ECS::Service)
+    desired=$(aws ecs describe-services --region "$region" --cluster "$(echo "$service_arn" | cut -d/ -f2)" \
+        --services "$service_arn" --query 'services[0].desiredCount' --output text 2>/dev/null || echo 0)
+    if [ "$desired" != "0" ] && [ "$desired" != "None" ]; then
+        echo "Not moving $stack from $region to $target while it is running"
+        deferred_stacks+="$stack"$'\n'
+    else
+        moved_stacks+="$stack"$'\t'"$region"$'\n'
+    fi
+done <<< "$deployed_stacks"
+server_stacks=$(echo "$server_stacks" | grep -vFx -f <(echo "$deferred_stacks" | grep -v '^$') || true)
+candidate_stacks="$server_stacks"
+
+if [ -n "${DEPLOY_STATE_TABLE:-}" ] && [ "${DEPLOY_ALL:-false}" != "true" ]; then
+    last_commit=$(aws dynamodb get-item --table-name "$DEPLOY_STATE_TABLE" --consistent-read \
+        --key '{"serverName":{"S":"#pipeline"}}' --query 'Item.commit.S' --output text)
+    if [ "$last_commit" = "${INFRA_COMMIT:-}" ]; then
+        candidate_stacks=$(echo "$pending_servers" | cut -f1 | grep -v '^$' | sed "s/^/$SERVER_PREFIX/" \
+            | grep -Fx -f - <(echo "$server_stacks") || true)
+    fi
+fi
+# Moves don't always change the row, e.g. when the region an auto server prefers is added to REGIONS
+candidate_stacks=$(printf '%s\n%s\n' "$candidate_stacks" "$(echo "$moved_stacks" | cut -f1)" \
+    | grep -v '^$' | sort -u || true)
+
+if [ "${DEPLOY_ALL:-false}" = "true" ]; then
+    changed_stacks="$server_stacks"
+else
+    # cdk diff --fail exits non-zero on any difference, including a stack that doesn't exist yet
+    changed_stacks=$(echo "$candidate_stacks" | xargs -r -P "$PARALLELISM" -I{} \
+        sh -c 'cdk diff --app cdk.out --exclusively --fail "{}" > /dev/null 2>&1 || echo "{}"')
+fi
+
+if [ -n "$changed_stacks" ]; then
+    echo "Deploying changed server stacks:"
+    echo "$changed_stacks"
+    echo "$changed_stacks" | xargs -r -P "$PARALLELISM" -I{} \
+        cdk deploy --app cdk.out --exclusively "{}" --require-approval never
+else
+    echo "No server stacks changed"
+fi
+
+# The new stacks' services start at zero, so nothing has loaded the empty bucket yet. Servers with
+# storage=efs get the last hourly backup.
+while IFS=$'\t' read -r stack region; do
+    [ -n "$stack" ] || continue
+    target=$(echo "$stack_regions" | awk -F'\t' -v stack="$stack" '$1 == stack {print $2}')
+    echo "Copying the save of $stack from $region to $target"
+    aws s3 sync --source-region "$region" --region "$target" \
+        "s3://$(stack_resource "$stack" "$region" AWS::S3::Bucket)" \
+        "s3://$(stack_resource "$stack" "$target" AWS::S3::Bucket)"
+done <<< "$moved_stacks"
+
+# CloudFormation tags the retained buckets with the stack and logical id they came from, so a run that
+# failed before this point still finds them. A bucket is removed once its save is copied.
+aws resourcegroupstaggingapi get-resources --resource-type-filters s3 \
+    --tag-filters "Key=aws:cloudformation:stack-name,Values=$CLUSTER_STACK" \
+    --query 'ResourceTagMappingList[].[ResourceARN, Tags[?Key==`aws:cloudformation:logical-id`].Value | [0]]' \
+    --output text | while IFS=$'\t' read -r bucket_arn logical_id; do
+    echo "$logical_id" | grep -qE "$LEGACY_BUCKET" || continue
+    stack=$(echo "$server_stacks" | while read -r candidate; do
+        [ -n "$candidate" ] || continue
+        name=${candidate#"$SERVER_PREFIX"}
+        if echo "$logical_id" \
+                | grep -qE "^factorioclusterfactorioserver${name//[^A-Za-z0-9]/}bucket[0-9A-F]{8}\$"; then
+            echo "$candidate"
+        fi
+    done)
+    if [ -z "$stack" ]; then
+        echo "Keeping ${bucket_arn##*:} of a server without a stack"
+        continue
+    fi
+    region=$(echo "$stack_regions" | awk -F'\t' -v stack="$stack" '$1 == stack {print $2}')
+    echo "Copying the save of $stack from ${bucket_arn##*:}"
+    aws s3 sync --region "$region" "s3://${bucket_arn##*:}" "s3://$(stack_resource "$stack" "$region" AWS::S3::Bucket)"
+    aws s3 rb --force "s3://${bucket_arn##*:}"
+done
+
+# The old stacks of servers that moved to another region, also ones whose delete failed in an earlier run.
+# Their saves were copied above, so their buckets are removed once the stack is gone. Orphaned stacks were
+# deleted before the cluster stack was deployed.
+old_stacks=$(printf '%s\n%s\n' "$moved_stacks" "$(awk -F'\t' 'NR == FNR {target[$1] = $2; next}
+    ($1 in target) && target[$1] != $2' <(echo "$stack_regions") <(echo "$failed_stacks"))")
+while IFS=$'\t' read -r stack region; do
+    [ -n "$stack" ] || continue
+    bucket=$(stack_resource "$stack" "$region" AWS::S3::Bucket)
+    echo "Deleting server stack $stack in $region"
+    delete_server_stack "$stack" "$region"
+    if [ -n "$bucket" ] && aws s3api head-bucket --region "$region" --bucket "$bucket" 2> /dev/null; then
+        aws s3 rb --force --region "$region" "s3://$bucket"
+    fi
+done <<< "$old_stacks"
+
+if [ -n "${DEPLOY_STATE_TABLE:-}" ]; then
+    # Records what was deployed, for servers that haven't changed again while this deploy was running
+    echo "$pending_servers" | while IFS=$'\t' read -r server fingerprint; do
+        [ -n "$server" ] || continue
+        # Stays pending so that the move is retried by the next deploy
+        if echo "$deferred_stacks" | grep -qx -- "$SERVER_PREFIX$server"; then
+            continue
+        fi
+        if [ "$fingerprint" = "None" ]; then
+            condition="pending = :pending AND attribute_not_exists(pendingFingerprint)"
+            update="SET pending = :done, removed = :pending REMOVE fingerprint"
+            values='{":pending":{"BOOL":true},":done":{"BOOL":false}}'
+        else
+            condition="pendingFingerprint = :fingerprint"
+            update="SET pending = :done, removed = :done, fingerprint = :fingerprint REMOVE pendingFingerprint"
+            values="{\":done\":{\"BOOL\":false},\":fingerprint\":{\"S\":\"$fingerprint\"}}"
+        fi
+        if ! error=$(aws dynamodb update-item --table-name "$DEPLOY_STATE_TABLE" \
+                --key "{\"serverName\":{\"S\":\"$server\"}}" \
+                --update-expression "$update" \
+                --condition-expression "$condition" \
+                --expression-attribute-values "$values" 2>&1 > /dev/null) \
+                && ! echo "$error" | grep -q ConditionalCheckFailedException; then
+            echo "$error"
+            exit 1
+        fi
+    done
+    aws dynamodb put-item --table-name "$DEPLOY_STATE_TABLE" \
+        --item "{\"serverName\":{\"S\":\"#pipeline\"},\"commit\":{\"S\":\"${INFRA_COMMIT:-}\"}}"
+fi
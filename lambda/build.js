@@ -0,0 +1,67 @@
+// Bundles every handler file into dist/<handler>/index.js, so that each function's asset only holds the code
+// it requires. The Node 18 runtime has no aws-sdk v2, so it is bundled too, and the handlers only load the
+// clients they use from aws-sdk/clients.
+//
+// Run by the Maven build (generate-resources), after `npm install` in this directory. Prints the size of every
+// bundle and the time it takes to require it, the part of a cold start the code controls.
+const esbuild = require('esbuild');
+const fs = require('fs');
+const path = require('path');
+const {execFileSync} = require('child_process');
+
+const HANDLERS = ['dns', 'latency', 'mods', 'pipeline', 'probe', 'rcon', 'scale', 'spot', 'startup', 'status'];
+const DIST = path.join(__dirname, 'dist');
+const INIT_RUNS = 5;
+
+// Median of a few fresh processes, each requiring the bundle like the runtime does on a cold start
+function initMillis(file) {
+    const script = 'const start = process.hrtime.bigint(); require(' + JSON.stringify(file) + ');'
+        + ' console.log(Number(process.hrtime.bigint() - start) / 1e6);';
+    const runs = [];
+    for (let run = 0; run < INIT_RUNS; run++) {
+        try {
+            runs.push(Number(execFileSync(process.execPath, ['-e', script], {
+                env: Object.assign({AWS_REGION: 'us-east-1'}, process.env),
+                stdio: ['ignore', 'pipe', 'ignore']
+            }).toString().trim()));
+        } catch (error) {
+            // The size is still worth reporting for a bundle that can't be loaded outside Lambda
+            return undefined;
+        }
+    }
+    return runs.sort((a, b) => a - b)[Math.floor(INIT_RUNS / 2)];
+}
+
+async function main() {
+    fs.rmSync(DIST, {recursive: true, force: true});
+
+    const report = [];
+    for (const handler of HANDLERS) {
+        const outfile = path.join(DIST, handler, 'index.js');
+        await esbuild.build({
+            entryPoints: [path.join(__dirname, handler + '.js')],
+            outfile,
+            bundle: true,
+            platform: 'node',
+            target: 'node18',
+            minify: true,
+            // Keeps function names in stack traces
+            keepNames: true,
+            logLevel: 'warning'
+        });
+        report.push({handler, bytes: fs.statSync(outfile).size, initMillis: initMillis(outfile)});
+    }
+
+    fs.writeFileSync(path.join(DIST, 'report.json'), JSON.stringify(report, null, 2));
+    console.log('handler       size (KiB)   init (ms)');
+    for (const entry of report) {
+        console.log(entry.handler.padEnd(14)
+            + (entry.bytes / 1024).toFixed(1).padStart(10)
+            + (entry.initMillis === undefined ? 'n/a' : entry.initMillis.toFixed(1)).padStart(12));
+    }
+}
+
+main().catch(error => {
+    console.error(error);
+    process.exit(1);
+});
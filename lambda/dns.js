@@ -0,0 +1,128 @@
+const Route53 = require('aws-sdk/clients/route53');
+const EC2 = require('aws-sdk/clients/ec2');
+const ECS = require('aws-sdk/clients/ecs');
+const {serverNameOf, publicIpOf} = require('./ecs-task');
+const {emit} = require('./metrics');
+
+const TTL = Number(process.env.DNS_TTL || 30);
+const POLL_INTERVAL = 2000;
+
+function sleep(millis) {
+    return new Promise(resolve => setTimeout(resolve, millis));
+}
+
+// AWS_ENDPOINT_URL points the clients at a local stand-in, e.g. moto or localstack
+function clientOptions() {
+    return process.env.AWS_ENDPOINT_URL ? {endpoint: process.env.AWS_ENDPOINT_URL} : {};
+}
+
+// Points {serverName}.factorio.{domain} at a task as soon as it has a public IP, and removes the record once the
+// service has no task left. Replaces the container updating the record itself after it booted.
+exports.handler = ({route53, ec2, ecs, wait = sleep}) => {
+    const hostedZoneId = process.env.HOSTED_ZONE;
+
+    function recordName(serverName) {
+        return serverName + '.' + process.env.DOMAIN + '.';
+    }
+
+    async function currentRecord(name) {
+        const response = await route53.listResourceRecordSets({
+            HostedZoneId: hostedZoneId,
+            StartRecordName: name,
+            StartRecordType: 'A',
+            MaxItems: '1'
+        }).promise();
+        return response.ResourceRecordSets.find(record => record.Name === name && record.Type === 'A');
+    }
+
+    async function waitUntilInSync(changeId, context) {
+        while (context.getRemainingTimeInMillis() > POLL_INTERVAL * 2) {
+            const response = await route53.getChange({Id: changeId}).promise();
+            if (response.ChangeInfo.Status === 'INSYNC') {
+                return true;
+            }
+            await wait(POLL_INTERVAL);
+        }
+        return false;
+    }
+
+    async function pointAt(serverName, task, ip, context) {
+        const name = recordName(serverName);
+        const current = await currentRecord(name);
+        if (current && current.ResourceRecords.some(record => record.Value === ip)) {
+            return;
+        }
+        const response = await route53.changeResourceRecordSets({
+            HostedZoneId: hostedZoneId,
+            ChangeBatch: {
+                Comment: 'Task ' + task.taskArn,
+                Changes: [{
+                    Action: 'UPSERT',
+                    ResourceRecordSet: {Name: name, Type: 'A', TTL, ResourceRecords: [{Value: ip}]}
+                }]
+            }
+        }).promise();
+        console.log(name + ' -> ' + ip);
+
+        // Measured until Route53 answers with the new address, from when the scale call created the task
+        if (await waitUntilInSync(response.ChangeInfo.Id, context) && task.createdAt) {
+            emit(serverName, {DnsCutoverTime: Date.now() - new Date(task.createdAt).getTime()},
+                {DnsCutoverTime: 'Milliseconds'});
+        }
+    }
+
+    async function removeIfIdle(serverName, task) {
+        // A replacement may already be running and have taken over the record
+        const running = await ecs.listTasks({
+            cluster: task.clusterArn,
+            serviceName: 'factorio-' + serverName,
+            desiredStatus: 'RUNNING'
+        }).promise();
+        if (running.taskArns.length > 0) {
+            return;
+        }
+        const current = await currentRecord(recordName(serverName));
+        if (!current) {
+            return;
+        }
+        try {
+            await route53.changeResourceRecordSets({
+                HostedZoneId: hostedZoneId,
+                ChangeBatch: {
+                    Comment: 'Task ' + task.taskArn + ' stopped',
+                    Changes: [{Action: 'DELETE', ResourceRecordSet: current}]
+                }
+            }).promise();
+            console.log(current.Name + ' removed');
+        } catch (error) {
+            // Changed or removed since it was read, whoever did that is more recent
+            if (error.code !== 'InvalidChangeBatch') {
+                throw error;
+            }
+        }
+    }
+
+    // ECS Task State Change events for the cluster
+    return async function(event, context) {
+        const task = event.detail;
+        const serverName = serverNameOf(task);
+        if (!serverName) {
+            return;
+        }
+        if (task.lastStatus === 'STOPPED') {
+            await removeIfIdle(serverName, task);
+        } else if (task.desiredStatus === 'RUNNING') {
+            // Fargate tasks get their public IP with the network interface, well before they are RUNNING
+            const ip = await publicIpOf(ec2, task, ecs);
+            if (ip) {
+                await pointAt(serverName, task, ip, context);
+            }
+        }
+    };
+};
+
+exports.main = exports.handler({
+    route53: new Route53(clientOptions()),
+    ec2: new EC2(clientOptions()),
+    ecs: new ECS(clientOptions())
+});
@@ -0,0 +1,52 @@
+// Helpers for the "detail" of ECS Task State Change events
+
+const SERVICE_PREFIX = 'service:factorio-';
+
+// Server name of a task started by one of the factorio-<serverName> services, undefined otherwise
+exports.serverNameOf = function(task) {
+    if (!task.group || !task.group.startsWith(SERVICE_PREFIX)) {
+        return undefined;
+    }
+    return task.group.substring(SERVICE_PREFIX.length);
+};
+
+exports.taskIdOf = function(task) {
+    return task.taskArn.substring(task.taskArn.lastIndexOf('/') + 1);
+};
+
+// Image tag of the first container, which is the Factorio version
+exports.versionOf = function(task) {
+    const image = (task.containers || []).map(container => container.image).find(image => image);
+    return image && image.includes(':') ? image.substring(image.lastIndexOf(':') + 1) : undefined;
+};
+
+// Public IP of the task, only available once it is RUNNING. Fargate tasks have their own network interface,
+// tasks on EC2 use host networking and so the public IP of their instance, which needs the ecs client.
+exports.publicIpOf = async function(ec2, task, ecs) {
+    const networkInterfaceId = (task.attachments || [])
+        .filter(attachment => attachment.type === 'eni')
+        .flatMap(attachment => attachment.details || [])
+        .filter(detail => detail.name === 'networkInterfaceId')
+        .map(detail => detail.value)[0];
+    if (networkInterfaceId) {
+        const response = await ec2.describeNetworkInterfaces({
+            NetworkInterfaceIds: [networkInterfaceId]
+        }).promise();
+        const networkInterface = response.NetworkInterfaces[0];
+        return networkInterface && networkInterface.Association ? networkInterface.Association.PublicIp : undefined;
+    }
+    if (!task.containerInstanceArn || !ecs) {
+        return undefined;
+    }
+    const containerInstances = await ecs.describeContainerInstances({
+        cluster: task.clusterArn,
+        containerInstances: [task.containerInstanceArn]
+    }).promise();
+    const instanceId = containerInstances.containerInstances.map(instance => instance.ec2InstanceId)[0];
+    if (!instanceId) {
+        return undefined;
+    }
+    const instances = await ec2.describeInstances({InstanceIds: [instanceId]}).promise();
+    return instances.Reservations.flatMap(reservation => reservation.Instances)
+        .map(instance => instance.PublicIpAddress)[0];
+};
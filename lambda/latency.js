@@ -0,0 +1,98 @@
+const DynamoDB = require('aws-sdk/clients/dynamodb');
+
+// Reports older than this are dropped, players who stopped playing shouldn't keep a server in their region
+const MAX_AGE = Number(process.env.LATENCY_MAX_AGE_DAYS || 30) * 24 * 60 * 60 * 1000;
+const MAX_PLAYER_LENGTH = 64;
+
+function response(statusCode, body) {
+    return {
+        statusCode,
+        headers: {"Content-Type": "application/json"},
+        body: JSON.stringify(body)
+    };
+}
+
+function isFresh(report) {
+    return Date.now() - new Date(report.reportedAt).getTime() <= MAX_AGE;
+}
+
+// The region with the lowest worst-case latency, among those every player measured. Ties go to the earlier
+// region, so to the primary region first.
+function preferredRegion(regions, reports) {
+    const players = Object.values(reports);
+    let best;
+    for (const region of regions) {
+        const values = players.map(report => report.latencies[region]);
+        if (values.length === 0 || !values.every(Number.isFinite)) {
+            continue;
+        }
+        const worst = Math.max(...values);
+        if (!best || worst < best.worst) {
+            best = {region, worst};
+        }
+    }
+    return best && best.region;
+}
+
+// PUT /latency/{serverName} with {"player": "...", "latencies": {"eu-west-1": 32, "us-east-1": 110}}, round trip
+// times in milliseconds measured by the player, e.g. to dynamodb.<region>.amazonaws.com. Stores them on the
+// server's row, and the region servers with region=auto should run in as autoRegion. The pipeline only deploys
+// when autoRegion changes.
+exports.handler = ({documentClient}) => async function(event, context) {
+    try {
+        const table = process.env.SERVER_TABLE;
+        const regions = process.env.REGIONS.split(',');
+        const serverName = event.pathParameters.serverName;
+        const request = JSON.parse(event.body || '{}');
+        if (typeof request.player !== 'string' || request.player.length === 0
+            || request.player.length > MAX_PLAYER_LENGTH) {
+            return response(400, {message: 'player must be a name of at most ' + MAX_PLAYER_LENGTH + ' characters'});
+        }
+        const latencies = {};
+        for (const region of regions) {
+            const value = (request.latencies || {})[region];
+            if (Number.isFinite(value) && value >= 0) {
+                latencies[region] = value;
+            }
+        }
+        if (Object.keys(latencies).length === 0) {
+            return response(400, {message: 'latencies must have milliseconds for at least one of ' + regions});
+        }
+
+        const existing = await documentClient.get({
+            TableName: table,
+            Key: {serverName},
+            ConsistentRead: true
+        }).promise();
+        if (!existing.Item) {
+            return response(404, {message: 'Unknown server ' + serverName});
+        }
+
+        const reports = {};
+        for (const [player, report] of Object.entries(existing.Item.latencies || {})) {
+            if (isFresh(report)) {
+                reports[player] = report;
+            }
+        }
+        reports[request.player] = {latencies, reportedAt: new Date().toISOString()};
+        const autoRegion = preferredRegion(regions, reports);
+
+        await documentClient.update({
+            TableName: table,
+            Key: {serverName},
+            // Never creates a row, that would add a server
+            ConditionExpression: 'attribute_exists(serverName)',
+            UpdateExpression: autoRegion ? 'SET latencies = :reports, autoRegion = :region' : 'SET latencies = :reports',
+            ExpressionAttributeValues: Object.assign({':reports': reports}, autoRegion ? {':region': autoRegion} : {})
+        }).promise();
+
+        return response(200, {serverName, autoRegion, players: Object.keys(reports).length});
+    } catch (error) {
+        const body = error.stack || JSON.stringify(error, null, 2);
+        return response(500, body);
+    }
+};
+
+exports.main = exports.handler({
+    documentClient: new DynamoDB.DocumentClient()
+});
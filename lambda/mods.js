@@ -0,0 +1,140 @@
+const S3 = require('aws-sdk/clients/s3');
+const SecretsManager = require('aws-sdk/clients/secretsmanager');
+const crypto = require('crypto');
+const https = require('https');
+const {PassThrough} = require('stream');
+
+const PORTAL = 'https://mods.factorio.com';
+const MAX_REDIRECTS = 5;
+
+// Same layout as ModReference.key() on the Java side
+function keyOf(mod) {
+    return 'mods/' + mod.name + '/' + mod.version + '/' + mod.sha1 + '.zip';
+}
+
+// Mods of every new or changed row, each distinct file once
+function referencedMods(records) {
+    const mods = new Map();
+    for (const record of records) {
+        const image = record.dynamodb.NewImage;
+        if (record.eventName === 'REMOVE' || !image || !image.mods || !image.mods.L) {
+            continue;
+        }
+        for (const entry of image.mods.L) {
+            const mod = entry.M || {};
+            if (mod.name && mod.version && mod.sha1) {
+                const reference = {name: mod.name.S, version: mod.version.S, sha1: mod.sha1.S.toLowerCase()};
+                mods.set(keyOf(reference), reference);
+            }
+        }
+    }
+    return [...mods.values()];
+}
+
+function get(url, redirects = 0) {
+    return new Promise((resolve, reject) => {
+        https.get(url, response => {
+            if (response.statusCode >= 300 && response.statusCode < 400 && response.headers.location) {
+                response.resume();
+                if (redirects >= MAX_REDIRECTS) {
+                    reject(new Error('Too many redirects for ' + url));
+                    return;
+                }
+                resolve(get(new URL(response.headers.location, url).toString(), redirects + 1));
+            } else if (response.statusCode !== 200) {
+                response.resume();
+                reject(new Error('GET ' + url.replace(/token=[^&]*/, 'token=***') + ' returned '
+                    + response.statusCode));
+            } else {
+                resolve(response);
+            }
+        }).on('error', reject);
+    });
+}
+
+async function getJson(url) {
+    const response = await get(url);
+    const chunks = [];
+    for await (const chunk of response) {
+        chunks.push(chunk);
+    }
+    return JSON.parse(Buffer.concat(chunks).toString('utf8'));
+}
+
+// Table stream handler: copies every mod a row refers to from the mod portal into the shared cache, once
+exports.handler = ({s3, secretsManager, download = get, fetchJson = getJson}) => {
+    const bucket = process.env.MOD_CACHE_BUCKET;
+
+    async function isCached(mod) {
+        try {
+            await s3.headObject({Bucket: bucket, Key: keyOf(mod)}).promise();
+            return true;
+        } catch (error) {
+            if (error.code === 'NotFound' || error.statusCode === 404) {
+                return false;
+            }
+            throw error;
+        }
+    }
+
+    async function credentials() {
+        const secret = await secretsManager.getSecretValue({SecretId: process.env.CREDENTIALS_SECRET}).promise();
+        const fields = JSON.parse(secret.SecretString);
+        return {username: fields.FactorioUsername, token: fields.FactorioToken};
+    }
+
+    async function fetchMod(mod, {username, token}) {
+        const info = await fetchJson(PORTAL + '/api/mods/' + encodeURIComponent(mod.name));
+        const release = (info.releases || []).find(release => release.version === mod.version);
+        if (!release) {
+            throw new Error(mod.name + ' has no release ' + mod.version);
+        }
+        if (release.sha1 !== mod.sha1) {
+            throw new Error(mod.name + ' ' + mod.version + ' has sha1 ' + release.sha1 + ', not ' + mod.sha1);
+        }
+
+        const response = await download(PORTAL + release.download_url
+            + '?username=' + encodeURIComponent(username) + '&token=' + encodeURIComponent(token));
+        // Hashed while it streams into the bucket, so large mods never have to fit in memory
+        const hash = crypto.createHash('sha1');
+        const body = new PassThrough();
+        response.on('data', chunk => hash.update(chunk));
+        response.pipe(body);
+        await s3.upload({
+            Bucket: bucket,
+            Key: keyOf(mod),
+            Body: body,
+            ContentType: 'application/zip'
+        }).promise();
+
+        const sha1 = hash.digest('hex');
+        if (sha1 !== mod.sha1) {
+            await s3.deleteObject({Bucket: bucket, Key: keyOf(mod)}).promise();
+            throw new Error('Downloaded ' + mod.name + ' ' + mod.version + ' has sha1 ' + sha1);
+        }
+    }
+
+    return async function(event, context) {
+        const missing = [];
+        for (const mod of referencedMods(event.Records || [])) {
+            if (!await isCached(mod)) {
+                missing.push(mod);
+            }
+        }
+        if (missing.length === 0) {
+            return {cached: []};
+        }
+
+        const portal = await credentials();
+        for (const mod of missing) {
+            await fetchMod(mod, portal);
+            console.log('Cached ' + keyOf(mod));
+        }
+        return {cached: missing.map(keyOf)};
+    };
+};
+
+exports.main = exports.handler({
+    s3: new S3(),
+    secretsManager: new SecretsManager()
+});
@@ -1,28 +1,128 @@
-const AWS = require('aws-sdk');
-const codePipeline = new AWS.CodePipeline();
-
-exports.main = async function(event, context) {
-    try {
-        var response = await new Promise((resolve, reject) => {
-            codePipeline.startPipelineExecution({
-                name: process.env.PIPELINE
-            }, function(err, data) {
-                if (err) reject(err);
-                else     resolve(data);
-            });
-        });
-
-        return {
-            statusCode: 200,
-            headers: {"Content-Type": "application/json"},
-            body: JSON.stringify(response)
-        };
-    } catch(error) {
-        var body = error.stack || JSON.stringify(error, null, 2);
-        return {
-            statusCode: 500,
-            headers: {"Content-Type": "application/json"},
-            body: JSON.stringify(body)
+const CodePipeline = require('aws-sdk/clients/codepipeline');
+const DynamoDB = require('aws-sdk/clients/dynamodb');
+const crypto = require('crypto');
+
+// Stable JSON so that the same row always gets the same fingerprint regardless of attribute order
+function canonical(value) {
+    if (Array.isArray(value)) {
+        return '[' + value.map(canonical).join(',') + ']';
+    }
+    if (value !== null && typeof value === 'object') {
+        return '{' + Object.keys(value).sort()
+            .map(key => JSON.stringify(key) + ':' + canonical(value[key]))
+            .join(',') + '}';
+    }
+    return JSON.stringify(value);
+}
+
+// Reported latencies change often and only matter through the autoRegion latency.js derives from them
+function fingerprint(image) {
+    const {latencies, ...rest} = image;
+    return crypto.createHash('sha256').update(canonical(rest)).digest('hex');
+}
+
+// Only the last record per server matters, the stream delivers them in order. A server whose records only
+// changed what the fingerprint leaves out, like reported latencies, has no change at all.
+function latestChanges(records) {
+    const changes = new Map();
+    for (const record of records) {
+        const serverName = record.dynamodb.Keys.serverName.S;
+        const previous = changes.get(serverName);
+        if (record.eventName === 'REMOVE') {
+            changes.set(serverName, {serverName, removed: true, effective: true});
+        } else {
+            const image = record.dynamodb.NewImage;
+            const oldImage = record.dynamodb.OldImage;
+            const change = {
+                serverName,
+                removed: false,
+                version: image.version ? image.version.S : undefined,
+                fingerprint: fingerprint(image)
+            };
+            change.effective = !oldImage || fingerprint(oldImage) !== change.fingerprint
+                || Boolean(previous && previous.effective);
+            changes.set(serverName, change);
+        }
+    }
+    return [...changes.values()].filter(change => change.effective);
+}
+
+// The state row holds what deploy.sh last deployed successfully (fingerprint, or removed) and, while a
+// deploy is due, what it should deploy next (pending, pendingFingerprint). A change that matches the
+// deployed state only needs a deploy when another one is pending, which may have been synthesized already.
+function isDeployed(state, change) {
+    if (!state) {
+        return change.removed;
+    }
+    if (state.pending && state.pending.BOOL) {
+        return false;
+    }
+    if (change.removed) {
+        return state.removed && state.removed.BOOL;
+    }
+    return state.fingerprint && state.fingerprint.S === change.fingerprint;
+}
+
+// Leaves the deployed state alone, a failed deploy keeps the server pending
+function pendingUpdate(change) {
+    const values = {':pending': {BOOL: true}};
+    const set = ['pending = :pending'];
+    const remove = [];
+    if (change.removed) {
+        remove.push('pendingFingerprint');
+    } else {
+        set.push('pendingFingerprint = :fingerprint');
+        values[':fingerprint'] = {S: change.fingerprint};
+    }
+    if (change.version) {
+        set.push('version = :version');
+        values[':version'] = {S: change.version};
+    }
+    return {
+        TableName: process.env.STATE_TABLE,
+        Key: {serverName: {S: change.serverName}},
+        UpdateExpression: 'SET ' + set.join(', ') + (remove.length ? ' REMOVE ' + remove.join(', ') : ''),
+        ExpressionAttributeValues: values
+    };
+}
+
+// The clients are injected so that the handler can be run against local stand-ins
+exports.handler = ({codePipeline, dynamoDb}) => async function(event, context) {
+    const affected = [];
+    for (const change of latestChanges(event.Records || [])) {
+        const state = await dynamoDb.getItem({
+            TableName: process.env.STATE_TABLE,
+            Key: {serverName: {S: change.serverName}},
+            ConsistentRead: true
+        }).promise();
+        if (isDeployed(state.Item, change)) {
+            continue;
         }
+        await dynamoDb.updateItem(pendingUpdate(change)).promise();
+        affected.push(change);
     }
-};
\ No newline at end of file
+
+    if (affected.length === 0) {
+        console.log('No effective changes in ' + (event.Records || []).length + ' records');
+        return {affected: []};
+    }
+
+    const response = await codePipeline.startPipelineExecution({
+        name: process.env.PIPELINE
+    }).promise();
+
+    // Every version is still built, the Build stage's actions skip the images ECR already has, see DockerBuildSpec
+    const versions = [...new Set(affected.filter(change => change.version).map(change => change.version))];
+    console.log('Started ' + response.pipelineExecutionId + ' for ' +
+        affected.map(change => change.serverName).join(', ') + ' on ' + (versions.join(', ') || 'no version'));
+    return {
+        affected: affected.map(change => change.serverName),
+        versions,
+        pipelineExecutionId: response.pipelineExecutionId
+    };
+};
+
+exports.main = exports.handler({
+    codePipeline: new CodePipeline(),
+    dynamoDb: new DynamoDB()
+});
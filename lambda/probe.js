@@ -0,0 +1,158 @@
+const DynamoDB = require('aws-sdk/clients/dynamodb');
+const SecretsManager = require('aws-sdk/clients/secretsmanager');
+const ECS = require('aws-sdk/clients/ecs');
+const RconClient = require('./rcon-client');
+const {emit} = require('./metrics');
+
+const RCON_PORT = Number(process.env.RCON_PORT || 27015);
+// Ticks are counted over this long, long enough that the RCON round trips don't matter much
+const SAMPLE_MILLIS = 5000;
+// Tasks are left alone this long after they started, while the map is still loading
+const GRACE_MILLIS = Number(process.env.PROBE_GRACE_SECONDS || 300) * 1000;
+
+// The same defaults as ServerConfig
+const DEFAULT_MIN_UPS = 30;
+const DEFAULT_UNHEALTHY_CHECKS = 5;
+
+// Reading game.tick needs a Lua command, which disables achievements. Servers that care can set
+// healthProbe=rcon to only be checked for answering at all.
+// Prints "<tick> <connected players> <paused>": with auto_pause, the default, an empty server doesn't tick.
+const TICK_COMMAND = '/silent-command rcon.print(game.tick .. " " .. #game.connected_players'
+    + ' .. " " .. tostring(game.tick_paused))';
+const PING_COMMAND = '/version';
+
+function sleep(millis) {
+    return new Promise(resolve => setTimeout(resolve, millis));
+}
+
+// Scheduled every minute: probes every running server over RCON, publishes UPS and ResponseTime, and stops
+// tasks that failed unhealthyChecks probes in a row so that their service replaces them.
+// The server table is only in the primary region, serverDocumentClient reads it from there.
+exports.handler = ({documentClient, serverDocumentClient = documentClient, secretsManager, ecs, wait = sleep}) => {
+    async function scanAll(client, table) {
+        const items = [];
+        let lastKey;
+        do {
+            const page = await client.scan({TableName: table, ExclusiveStartKey: lastKey}).promise();
+            items.push(...page.Items);
+            lastKey = page.LastEvaluatedKey;
+        } while (lastKey);
+        return items;
+    }
+
+    function parseTick(response) {
+        const [tick, players, paused] = String(response).trim().split(' ');
+        return {tick: Number(tick), players: Number(players), paused: paused === 'true'};
+    }
+
+    async function timed(client, command) {
+        const start = Date.now();
+        const response = await client.send(command);
+        return {response, millis: Date.now() - start};
+    }
+
+    async function measure(host, password, mode) {
+        const client = new RconClient(host, RCON_PORT, password, {timeout: SAMPLE_MILLIS});
+        try {
+            await client.connect();
+            if (mode === 'rcon') {
+                const ping = await timed(client, PING_COMMAND);
+                return {responseTime: ping.millis};
+            }
+            const first = await timed(client, TICK_COMMAND);
+            await wait(SAMPLE_MILLIS);
+            const second = await timed(client, TICK_COMMAND);
+            const before = parseTick(first.response);
+            const after = parseTick(second.response);
+            const responseTime = Math.max(first.millis, second.millis);
+            // A paused game is healthy, it just has nothing to measure
+            const ticking = before.players > 0 && after.players > 0 && !before.paused && !after.paused;
+            const ticks = after.tick - before.tick;
+            // Timed between the midpoints of the two round trips
+            const elapsed = SAMPLE_MILLIS + (first.millis + second.millis) / 2;
+            return {
+                responseTime,
+                players: after.players,
+                ups: ticking && Number.isFinite(ticks) ? ticks / elapsed * 1000 : undefined
+            };
+        } finally {
+            client.close();
+        }
+    }
+
+    function publish(serverName, result) {
+        emit(serverName, {ResponseTime: result.responseTime, UPS: result.ups},
+            {ResponseTime: 'Milliseconds', UPS: 'Count/Second'});
+    }
+
+    async function recordCheck(serverName, healthy) {
+        const response = await documentClient.update({
+            TableName: process.env.STATUS_TABLE,
+            Key: {serverName},
+            UpdateExpression: healthy ? 'SET unhealthyChecks = :zero' : 'ADD unhealthyChecks :one',
+            ExpressionAttributeValues: healthy ? {':zero': 0} : {':one': 1},
+            ReturnValues: 'UPDATED_NEW'
+        }).promise();
+        return response.Attributes.unhealthyChecks;
+    }
+
+    async function probe(server, status, password) {
+        const serverName = status.serverName;
+        // Tasks in other regions are probed by the Lambda in their region, which can stop them
+        const [taskId, task] = Object.entries(status.tasks || {})
+            .find(([id, task]) => task.lastStatus === 'RUNNING' && task.desiredStatus === 'RUNNING'
+                && task.publicIp && (!task.region || task.region === process.env.AWS_REGION)) || [];
+        if (!task || Date.now() - new Date(task.startedAt || task.updatedAt).getTime() < GRACE_MILLIS) {
+            return;
+        }
+
+        const minUps = Number(server.minUps ?? DEFAULT_MIN_UPS);
+        const unhealthyChecks = Number(server.unhealthyChecks || DEFAULT_UNHEALTHY_CHECKS);
+        let healthy;
+        try {
+            const result = await measure(task.publicIp, password, server.healthProbe);
+            publish(serverName, result);
+            healthy = result.ups === undefined || result.ups >= minUps;
+            if (!healthy) {
+                console.log(serverName + ' runs at ' + result.ups.toFixed(1) + ' UPS with ' + result.players
+                    + ' players');
+            }
+        } catch (error) {
+            console.log(serverName + ' did not answer: ' + error.message);
+            healthy = false;
+        }
+
+        const failed = await recordCheck(serverName, healthy);
+        if (failed >= unhealthyChecks) {
+            console.log('Replacing ' + serverName + ' after ' + failed + ' failed checks');
+            await ecs.stopTask({
+                cluster: process.env.CLUSTER,
+                task: taskId,
+                reason: 'Failed ' + failed + ' health probes'
+            }).promise();
+            await recordCheck(serverName, true);
+        }
+    }
+
+    return async function(event, context) {
+        const [servers, statuses] = await Promise.all([
+            scanAll(serverDocumentClient, process.env.SERVER_TABLE),
+            scanAll(documentClient, process.env.STATUS_TABLE)
+        ]);
+        const secret = await secretsManager.getSecretValue({SecretId: process.env.SECRET_NAME}).promise();
+        const byName = new Map(servers.map(server => [server.serverName, server]));
+
+        const results = await Promise.allSettled(statuses
+            .filter(status => byName.has(status.serverName))
+            .map(status => probe(byName.get(status.serverName), status, secret.SecretString)));
+        results.filter(result => result.status === 'rejected')
+            .forEach(result => console.log('Probe failed: ' + (result.reason.stack || result.reason)));
+    };
+};
+
+exports.main = exports.handler({
+    documentClient: new DynamoDB.DocumentClient(),
+    serverDocumentClient: new DynamoDB.DocumentClient({region: process.env.SERVER_TABLE_REGION}),
+    secretsManager: new SecretsManager(),
+    ecs: new ECS()
+});
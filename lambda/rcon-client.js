@@ -0,0 +1,156 @@
+const net = require('net');
+
+// Source RCON packet types, as used by Factorio
+const SERVERDATA_AUTH = 3;
+const SERVERDATA_AUTH_RESPONSE = 2;
+const SERVERDATA_EXECCOMMAND = 2;
+const SERVERDATA_RESPONSE_VALUE = 0;
+
+function encode(id, type, body) {
+    const length = Buffer.byteLength(body);
+    const packet = Buffer.alloc(length + 14);
+    packet.writeInt32LE(length + 10, 0);
+    packet.writeInt32LE(id, 4);
+    packet.writeInt32LE(type, 8);
+    packet.write(body, 12);
+    packet.writeInt16LE(0, length + 12);
+    return packet;
+}
+
+function connectionLost(message) {
+    const error = new Error(message);
+    error.connectionLost = true;
+    return error;
+}
+
+// The command was written, so the server may still run it
+function timedOut(message) {
+    const error = new Error(message);
+    error.timedOut = true;
+    return error;
+}
+
+/**
+ * A single authenticated RCON connection. Every command gets its own request ID, so responses are matched
+ * to their command even when several are in flight at once.
+ */
+class RconClient {
+    constructor(host, port, password, {timeout = 5000} = {}) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.timeout = timeout;
+        this.nextId = 1;
+        this.pending = new Map();
+        this.buffer = Buffer.alloc(0);
+        this.authenticated = false;
+        this.closed = false;
+        this.onClose = () => {};
+    }
+
+    get alive() {
+        return this.authenticated && !this.closed && !this.socket.destroyed;
+    }
+
+    connect() {
+        return new Promise((resolve, reject) => {
+            const authId = this.nextId++;
+            this.pending.set(authId, {
+                resolve: () => {
+                    this.authenticated = true;
+                    resolve(this);
+                },
+                reject
+            });
+
+            this.socket = net.connect({host: this.host, port: this.port});
+            this.socket.setNoDelay(true);
+            this.socket.setKeepAlive(true, 30000);
+            this.socket.setTimeout(this.timeout, () => {
+                if (!this.authenticated) {
+                    this.destroy(connectionLost('Timed out connecting to ' + this.host));
+                }
+            });
+            this.socket.on('connect', () => {
+                this.socket.setTimeout(0);
+                this.socket.write(encode(authId, SERVERDATA_AUTH, this.password));
+            });
+            this.socket.on('data', data => this.receive(data));
+            this.socket.on('error', error => this.destroy(Object.assign(error, {connectionLost: true})));
+            this.socket.on('close', () => this.destroy(connectionLost('Connection to ' + this.host + ' closed')));
+        });
+    }
+
+    send(command) {
+        if (!this.alive) {
+            // Only this rejection guarantees the command never reached the server
+            return Promise.reject(Object.assign(connectionLost('Connection to ' + this.host + ' is not open'),
+                {notSent: true}));
+        }
+        return new Promise((resolve, reject) => {
+            const id = this.nextId++;
+            const timer = setTimeout(() => {
+                // A server that doesn't answer in time may never answer, so the connection isn't reused
+                this.pending.delete(id);
+                reject(timedOut('Timed out waiting for response to ' + JSON.stringify(command)));
+                this.destroy(connectionLost('Connection to ' + this.host + ' closed after a timeout'));
+            }, this.timeout);
+            this.pending.set(id, {
+                resolve: response => {
+                    clearTimeout(timer);
+                    resolve(response);
+                },
+                reject: error => {
+                    clearTimeout(timer);
+                    reject(error);
+                }
+            });
+            this.socket.write(encode(id, SERVERDATA_EXECCOMMAND, command));
+        });
+    }
+
+    receive(data) {
+        this.buffer = Buffer.concat([this.buffer, data]);
+        while (this.buffer.length >= 4) {
+            const size = this.buffer.readInt32LE(0);
+            if (this.buffer.length < size + 4) {
+                return;
+            }
+            const id = this.buffer.readInt32LE(4);
+            const type = this.buffer.readInt32LE(8);
+            const body = this.buffer.toString('utf8', 12, size + 2);
+            this.buffer = this.buffer.slice(size + 4);
+
+            if (type === SERVERDATA_AUTH_RESPONSE && id === -1) {
+                const error = new Error('RCON authentication failed for ' + this.host);
+                error.authenticationFailed = true;
+                this.destroy(error);
+                return;
+            }
+            const request = this.pending.get(id);
+            if (request && (type === SERVERDATA_AUTH_RESPONSE || type === SERVERDATA_RESPONSE_VALUE)) {
+                this.pending.delete(id);
+                request.resolve(body);
+            }
+        }
+    }
+
+    destroy(error) {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.socket.destroy();
+        for (const request of this.pending.values()) {
+            request.reject(error);
+        }
+        this.pending.clear();
+        this.onClose(this);
+    }
+
+    close() {
+        this.destroy(connectionLost('Connection to ' + this.host + ' was closed by the client'));
+    }
+}
+
+module.exports = RconClient;
@@ -1,50 +1,167 @@
-const AWS = require('aws-sdk');
-const secretsManager = new AWS.SecretsManager();
+const SecretsManager = require('aws-sdk/clients/secretsmanager');
+const RconClient = require('./rcon-client');
+const {emit} = require('./metrics');
 
-const Rcon = require('/opt/node_modules/rcon');
+const RCON_PORT = Number(process.env.RCON_PORT || 27015);
+// Per connection attempt and per command, the Lambda timeout in FactorioCluster allows for a retry of both
+const RCON_TIMEOUT = Number(process.env.RCON_TIMEOUT_SECONDS || 5) * 1000;
+const SECRET_TTL = Number(process.env.SECRET_TTL_SECONDS || 300) * 1000;
+const MAX_BATCH_SIZE = 100;
 
-exports.main = async function(event, context) {
-    try {
-        const password = await new Promise((resolve, reject) => {
-            secretsManager.getSecretValue({
+// Kept across warm invocations: the RCON password and one open connection per server
+const connections = new Map();
+let cachedSecret;
+
+function hostOf(serverName) {
+    // RCON_HOST points every server at the same host, e.g. a local stub server
+    return process.env.RCON_HOST || serverName + '.factorio.' + process.env.DOMAIN_NAME;
+}
+
+exports.handler = ({secretsManager}) => {
+    async function getPassword() {
+        if (!cachedSecret || cachedSecret.expiresAt < Date.now()) {
+            const secret = await secretsManager.getSecretValue({
                 SecretId: process.env.SECRET_NAME
-            }, function(err, data) {
-                if (err) reject(err);
-                else     resolve(data);
-            });
-        });
-        const client = await new Promise((resolve, reject) => {
-            const client = new Rcon(event.pathParameters.serverName + '.factorio.' + process.env.DOMAIN_NAME, 27015, password.SecretString, {
-                tcp: true,
-                challenge: false
-            });
-            client.on('auth', () => {
-                resolve(client);
-            });
-            client.connect();
+            }).promise();
+            cachedSecret = {value: secret.SecretString, expiresAt: Date.now() + SECRET_TTL};
+        }
+        return cachedSecret.value;
+    }
+
+    function getConnection(host) {
+        const existing = connections.get(host);
+        if (existing && !(existing.client && existing.client.closed)) {
+            return existing.connected;
+        }
+
+        const entry = {};
+        entry.connected = (async () => {
+            const client = new RconClient(host, RCON_PORT, await getPassword(), {timeout: RCON_TIMEOUT});
+            client.onClose = () => {
+                if (connections.get(host) === entry) {
+                    connections.delete(host);
+                }
+            };
+            entry.client = client;
+            return client.connect();
+        })();
+        entry.connected.catch(() => {
+            if (connections.get(host) === entry) {
+                connections.delete(host);
+            }
         });
+        connections.set(host, entry);
+        return entry.connected;
+    }
+
+    async function execute(host, command, retry = true) {
+        let client;
+        try {
+            client = await getConnection(host);
+            return await client.send(command);
+        } catch (error) {
+            // A command that was written may have run even if no answer came back, so it is never sent twice
+            if (!retry || (client && !error.notSent)) {
+                throw error;
+            }
+            if (error.authenticationFailed) {
+                // The secret may have been rotated since it was cached
+                cachedSecret = undefined;
+                return execute(host, command, false);
+            }
+            if (error.connectionLost) {
+                // Usually a connection that went stale while the Lambda was frozen
+                return execute(host, command, false);
+            }
+            throw error;
+        }
+    }
 
-        const response = await new Promise((resolve, reject) => {
-            client.on('response', str => {
-                resolve(str);
-            });
-            client.on('error', err => {
-                reject(err);
-            });
-            client.send(JSON.parse(event.body).command);
+    // Commands are written back to back on one connection and matched to their responses by request ID
+    async function executeBatch(host, commands, retry = true) {
+        const client = await getConnection(host);
+        const results = await Promise.allSettled(commands.map(command => client.send(command)));
+        if (retry && results.every(result => result.status === 'rejected' && result.reason.notSent)) {
+            // The connection was closed before any command was written, so the batch can be sent again
+            return executeBatch(host, commands, false);
+        }
+        return results.map((result, index) => result.status === 'fulfilled'
+            ? {command: commands[index], response: result.value}
+            : {command: commands[index], error: result.reason.message});
+    }
+
+    // Round trip including connecting and retries, which is what API callers wait for
+    async function timed(serverName, operation) {
+        const start = Date.now();
+        const result = await operation;
+        emit(serverName, {RconLatency: Date.now() - start}, {RconLatency: 'Milliseconds'});
+        return result;
+    }
+
+    async function executeOnServers(serverNames, command) {
+        const results = await Promise.allSettled(serverNames.map(serverName =>
+            timed(serverName, execute(hostOf(serverName), command))));
+        const byServer = {};
+        results.forEach((result, index) => {
+            byServer[serverNames[index]] = result.status === 'fulfilled'
+                ? {response: result.value}
+                : {error: result.reason.message};
         });
+        return byServer;
+    }
+
+    function string(value, name) {
+        if (typeof value !== 'string') {
+            const error = new Error(name + ' must be a string');
+            error.statusCode = 400;
+            throw error;
+        }
+        return value;
+    }
 
-        return {
-            statusCode: 200,
-            headers: {"Content-Type": "application/json"},
-            body: JSON.stringify({response})
-        };
-    } catch(error) {
-        const body = error.stack || JSON.stringify(error, null, 2);
-        return {
-            statusCode: 500,
-            headers: {"Content-Type": "application/json"},
-            body: JSON.stringify(body)
+    function stringArray(value, name) {
+        if (!Array.isArray(value) || value.length === 0 || value.length > MAX_BATCH_SIZE
+            || !value.every(item => typeof item === 'string')) {
+            const error = new Error(name + ' must be a list of 1 to ' + MAX_BATCH_SIZE + ' strings');
+            error.statusCode = 400;
+            throw error;
         }
+        return value;
     }
-};
\ No newline at end of file
+
+    return async function(event, context) {
+        try {
+            const body = JSON.parse(event.body);
+            let result;
+            if (event.resource === '/rcon/{serverName}/batch') {
+                const serverName = event.pathParameters.serverName;
+                result = {results: await timed(serverName, executeBatch(hostOf(serverName),
+                    stringArray(body.commands, 'commands')))};
+            } else if (event.resource === '/rcon') {
+                result = {results: await executeOnServers(stringArray(body.servers, 'servers'),
+                    string(body.command, 'command'))};
+            } else {
+                const serverName = event.pathParameters.serverName;
+                result = {response: await timed(serverName, execute(hostOf(serverName),
+                    string(body.command, 'command')))};
+            }
+
+            return {
+                statusCode: 200,
+                headers: {"Content-Type": "application/json"},
+                body: JSON.stringify(result)
+            };
+        } catch(error) {
+            const body = error.stack || JSON.stringify(error, null, 2);
+            return {
+                statusCode: error.statusCode || (error.timedOut ? 504 : 500),
+                headers: {"Content-Type": "application/json"},
+                body: JSON.stringify(body)
+            }
+        }
+    };
+};
+
+exports.main = exports.handler({
+    secretsManager: new SecretsManager()
+});
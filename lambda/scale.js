@@ -1,17 +1,61 @@
-const AWS = require('aws-sdk');
-const ecs = new AWS.ECS();
+const ECS = require('aws-sdk/clients/ecs');
 
-const domainName = process.env.CLUSTER;
+// The primary region first, the clusters in the other regions all have the name REGION_CLUSTER
+const regions = (process.env.REGIONS || process.env.AWS_REGION).split(',');
+const clients = new Map(regions.map(region => [region, new ECS({region: region})]));
+
+function clusterIn(region) {
+    return region === regions[0] ? process.env.CLUSTER : process.env.REGION_CLUSTER;
+}
+
+const SPOT_TAG = "factorio:spot";
+const SPOT = [{capacityProvider: "FARGATE_SPOT", weight: 1}];
+
+// The service in whichever region the server is placed in. While a server moves, deploy.sh briefly leaves the
+// old one in place, the newer one is the one it moves to.
+async function locate(service) {
+    var found = await Promise.all(regions.map(async region => {
+        var described = await clients.get(region).describeServices({
+            cluster: clusterIn(region),
+            services: [service],
+            include: ["TAGS"]
+        }).promise().catch(error => {
+            // A region without any servers yet may not have its cluster deployed
+            if (error.code === "ClusterNotFoundException") {
+                return {services: []};
+            }
+            throw error;
+        });
+        return described.services
+            .filter(current => current.status === "ACTIVE")
+            .map(current => ({ecs: clients.get(region), cluster: clusterIn(region), current: current}));
+    }));
+    var active = [].concat(...found)
+        .sort((a, b) => new Date(b.current.createdAt) - new Date(a.current.createdAt));
+    return active[0] || {ecs: clients.get(regions[0]), cluster: clusterIn(regions[0])};
+}
+
+// A Spot server that spot.js moved to on-demand goes back to Spot when it is started from zero
+function capacityChange(current) {
+    if (!current || current.desiredCount > 0
+        || !(current.tags || []).some(tag => tag.key === SPOT_TAG && tag.value === "true")
+        || (current.capacityProviderStrategy || []).some(item => item.capacityProvider === "FARGATE_SPOT")) {
+        return {forceNewDeployment: false};
+    }
+    return {capacityProviderStrategy: SPOT, forceNewDeployment: true};
+}
 
 exports.main = async function(event, context) {
     try {
+        var service = "factorio-" + event.pathParameters.service;
+        var {ecs, cluster, current} = await locate(service);
+        var change = capacityChange(current);
         var response = await new Promise((resolve, reject) => {
-            ecs.updateService({
-                service: "factorio-" + event.pathParameters.service,
-                cluster: process.env.CLUSTER,
-                desiredCount: 1,
-                forceNewDeployment: false
-            }, function(err, data) {
+            ecs.updateService(Object.assign({
+                service: service,
+                cluster: cluster,
+                desiredCount: 1
+            }, change), function(err, data) {
                 if (err) reject(err);
                 else     resolve(data);
             });
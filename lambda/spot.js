@@ -0,0 +1,142 @@
+const ECS = require('aws-sdk/clients/ecs');
+const EC2 = require('aws-sdk/clients/ec2');
+const SecretsManager = require('aws-sdk/clients/secretsmanager');
+const ApplicationAutoScaling = require('aws-sdk/clients/applicationautoscaling');
+const RconClient = require('./rcon-client');
+const {serverNameOf, publicIpOf} = require('./ecs-task');
+const {emit} = require('./metrics');
+
+const RCON_PORT = Number(process.env.RCON_PORT || 27015);
+const POLL_INTERVAL = 5000;
+const SERVICE_PREFIX = 'factorio-';
+
+const ON_DEMAND = [{capacityProvider: 'FARGATE', weight: 1}];
+
+function sleep(millis) {
+    return new Promise(resolve => setTimeout(resolve, millis));
+}
+
+// Spot servers are moved to on-demand Fargate when their task is interrupted or Spot capacity runs out.
+// scale.js moves them back the next time they are started from zero.
+exports.handler = ({ecs, ec2, secretsManager, autoScaling, wait = sleep}) => {
+    const cluster = process.env.CLUSTER;
+
+    // Keeps the PlayersOnline alarms from starting a task before the save is uploaded, or stopping the
+    // replacement, while this Lambda holds the service at zero tasks
+    async function suspendScaling(service, suspended) {
+        await autoScaling.registerScalableTarget({
+            ServiceNamespace: 'ecs',
+            ResourceId: 'service/' + cluster + '/' + service,
+            ScalableDimension: 'ecs:service:DesiredCount',
+            SuspendedState: {DynamicScalingInSuspended: suspended, DynamicScalingOutSuspended: suspended}
+        }).promise();
+    }
+
+    async function saveGame(serverName, task) {
+        const host = await publicIpOf(ec2, task);
+        if (!host) {
+            console.log(serverName + ' has no public IP, relying on the save on shutdown');
+            return;
+        }
+        const secret = await secretsManager.getSecretValue({SecretId: process.env.SECRET_NAME}).promise();
+        const client = new RconClient(host, RCON_PORT, secret.SecretString, {timeout: 30000});
+        try {
+            await client.connect();
+            const start = Date.now();
+            console.log(serverName + ' saved: ' + await client.send('/server-save'));
+            emit(serverName, {SaveDuration: Date.now() - start}, {SaveDuration: 'Milliseconds'});
+        } catch (error) {
+            // The task still saves to the bucket when it gets SIGTERM, this only makes that save current
+            console.log(serverName + ' could not be saved over RCON: ' + error.message);
+        } finally {
+            client.close();
+        }
+    }
+
+    async function waitUntilStopped(taskArn, context) {
+        while (context.getRemainingTimeInMillis() > POLL_INTERVAL * 3) {
+            const response = await ecs.describeTasks({cluster, tasks: [taskArn]}).promise();
+            if (response.tasks.length === 0 || response.tasks[0].lastStatus === 'STOPPED') {
+                return true;
+            }
+            await wait(POLL_INTERVAL);
+        }
+        return false;
+    }
+
+    async function startOnDemand(serverName) {
+        await ecs.updateService({
+            cluster,
+            service: SERVICE_PREFIX + serverName,
+            desiredCount: 1,
+            capacityProviderStrategy: ON_DEMAND,
+            forceNewDeployment: true
+        }).promise();
+    }
+
+    // ECS Task State Change with stopCode SpotInterruption, sent with the two minute notice. Events can be
+    // delivered more than once, only the first one finds the service still running on Spot.
+    async function onInterruption(event, context) {
+        const task = event.detail;
+        const serverName = serverNameOf(task);
+        if (!serverName) {
+            return;
+        }
+        const service = SERVICE_PREFIX + serverName;
+        const described = await ecs.describeServices({cluster, services: [service]}).promise();
+        const current = described.services[0];
+        const onSpot = current && (current.capacityProviderStrategy || [])
+            .some(strategy => strategy.capacityProvider === 'FARGATE_SPOT');
+        if (!current || !onSpot || current.desiredCount === 0) {
+            console.log(serverName + ' is already handed over or stopping, ignoring the interruption of '
+                + task.taskArn);
+            return;
+        }
+        console.log(serverName + ' is being interrupted, task ' + task.taskArn);
+
+        await suspendScaling(service, true);
+        try {
+            // Keeps the scheduler from starting a replacement that would load the save before it is uploaded
+            await ecs.updateService({cluster, service, desiredCount: 0}).promise();
+            await saveGame(serverName, task);
+
+            // The container uploads the save when it is stopped, so the new task waits for that
+            if (!await waitUntilStopped(task.taskArn, context)) {
+                console.log(serverName + ' did not stop in time, starting the replacement anyway');
+            }
+            await startOnDemand(serverName);
+        } finally {
+            await suspendScaling(service, false);
+        }
+    }
+
+    // ECS Service Action SERVICE_TASK_PLACEMENT_FAILURE, usually no Spot capacity in any subnet
+    async function onPlacementFailure(event, context) {
+        const service = (event.resources || [])
+            .map(arn => arn.substring(arn.lastIndexOf('/') + 1))
+            .find(name => name.startsWith(SERVICE_PREFIX));
+        const onSpot = (event.detail.capacityProviderArns || [])
+            .some(arn => arn.endsWith('FARGATE_SPOT'));
+        if (!service || !onSpot) {
+            return;
+        }
+        const serverName = service.substring(SERVICE_PREFIX.length);
+        console.log(serverName + ' could not be placed on Spot, falling back to on-demand');
+        await startOnDemand(serverName);
+    }
+
+    return async function(event, context) {
+        if (event['detail-type'] === 'ECS Service Action') {
+            await onPlacementFailure(event, context);
+        } else {
+            await onInterruption(event, context);
+        }
+    };
+};
+
+exports.main = exports.handler({
+    ecs: new ECS(),
+    ec2: new EC2(),
+    secretsManager: new SecretsManager(),
+    autoScaling: new ApplicationAutoScaling()
+});
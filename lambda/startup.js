@@ -0,0 +1,113 @@
+const DynamoDB = require('aws-sdk/clients/dynamodb');
+const SecretsManager = require('aws-sdk/clients/secretsmanager');
+const EC2 = require('aws-sdk/clients/ec2');
+const ECS = require('aws-sdk/clients/ecs');
+const RconClient = require('./rcon-client');
+const {serverNameOf, publicIpOf} = require('./ecs-task');
+const {emit} = require('./metrics');
+
+// Long enough to outlast every event of one task, short enough to keep the table small
+const RECORD_SECONDS = 24 * 60 * 60;
+const POLL_INTERVAL = 2000;
+const ANSWER_TIMEOUT = 5000;
+// Answered by every server, and unlike Lua commands it doesn't disable achievements
+const PING_COMMAND = '/version';
+
+function sleep(millis) {
+    return new Promise(resolve => setTimeout(resolve, millis));
+}
+
+function millisBetween(from, to) {
+    return from && to ? new Date(to).getTime() - new Date(from).getTime() : undefined;
+}
+
+// Records the task, false if it was already recorded by an earlier event
+async function firstHealthy(documentClient, taskArn) {
+    try {
+        await documentClient.put({
+            TableName: process.env.STARTUP_TABLE,
+            Item: {taskArn, expiresAt: Math.floor(Date.now() / 1000) + RECORD_SECONDS},
+            ConditionExpression: 'attribute_not_exists(taskArn)'
+        }).promise();
+        return true;
+    } catch (error) {
+        if (error.code === 'ConditionalCheckFailedException') {
+            return false;
+        }
+        throw error;
+    }
+}
+
+// Called for ECS task state changes that reach RUNNING and HEALTHY. A task is created by the service
+// scheduler right after the scale call, so createdAt is the closest we get to when the player asked.
+// The health check only tells that the server process is alive, Factorio opens its RCON port once the map is
+// loaded and players can join. So the startup ends when the task first answers over RCON.
+// ECS sends more changes while the task stays healthy (attachments, container updates), so only the first counts.
+exports.handler = ({documentClient, secretsManager, ec2, ecs, wait = sleep}) => {
+    const port = Number(process.env.RCON_PORT || 27015);
+
+    async function answers(host, password) {
+        const client = new RconClient(host, port, password, {timeout: ANSWER_TIMEOUT});
+        try {
+            await client.connect();
+            await client.send(PING_COMMAND);
+            return true;
+        } catch (error) {
+            return false;
+        } finally {
+            client.close();
+        }
+    }
+
+    // When the task first answered, undefined if it didn't before the Lambda runs out of time
+    async function firstAnswer(host, context) {
+        const secret = await secretsManager.getSecretValue({SecretId: process.env.SECRET_NAME}).promise();
+        while (context.getRemainingTimeInMillis() > ANSWER_TIMEOUT + POLL_INTERVAL) {
+            if (await answers(host, secret.SecretString)) {
+                return new Date().toISOString();
+            }
+            await wait(POLL_INTERVAL);
+        }
+        return undefined;
+    }
+
+    return async function(event, context) {
+        const task = event.detail;
+        const serverName = serverNameOf(task);
+        if (!serverName) {
+            return;
+        }
+        if (!await firstHealthy(documentClient, task.taskArn)) {
+            console.log(serverName + ' startup of ' + task.taskArn + ' already recorded');
+            return;
+        }
+        const ip = await publicIpOf(ec2, task, ecs);
+        const answeredAt = ip ? await firstAnswer(ip, context) : undefined;
+        if (!answeredAt) {
+            console.log(serverName + ' did not answer over RCON at ' + ip + ', startup time not recorded');
+        }
+
+        const timings = {
+            StartupTime: millisBetween(task.createdAt, answeredAt),
+            ProvisioningTime: millisBetween(task.createdAt, task.pullStartedAt),
+            ImagePullTime: millisBetween(task.pullStartedAt, task.pullStoppedAt),
+            ContainerStartTime: millisBetween(task.pullStoppedAt, answeredAt)
+        };
+        for (const [name, value] of Object.entries(timings)) {
+            if (value === undefined || value < 0) {
+                delete timings[name];
+            }
+        }
+
+        console.log(serverName + ' started: ' + JSON.stringify(timings));
+        emit(serverName, timings, Object.fromEntries(Object.keys(timings).map(name => [name, 'Milliseconds'])),
+            answeredAt || event.time);
+    };
+};
+
+exports.main = exports.handler({
+    documentClient: new DynamoDB.DocumentClient(),
+    secretsManager: new SecretsManager(),
+    ec2: new EC2(),
+    ecs: new ECS()
+});
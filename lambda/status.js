@@ -0,0 +1,213 @@
+const DynamoDB = require('aws-sdk/clients/dynamodb');
+const EC2 = require('aws-sdk/clients/ec2');
+const ECS = require('aws-sdk/clients/ecs');
+const CloudWatch = require('aws-sdk/clients/cloudwatch');
+const {serverNameOf, taskIdOf, versionOf, publicIpOf} = require('./ecs-task');
+
+// Stopped tasks are kept this long so that late, out of order events for them are recognised
+const STOPPED_TASK_RETENTION = 60 * 60 * 1000;
+const CACHE_TTL = Number(process.env.STATUS_CACHE_MS || 2000);
+const METRIC_QUERY_LIMIT = 500;
+
+function view(item) {
+    const tasks = Object.values(item.tasks || {});
+    const running = tasks.filter(task => task.lastStatus === 'RUNNING');
+    const latest = tasks.sort((a, b) => b.updatedAt.localeCompare(a.updatedAt))[0];
+    return {
+        serverName: item.serverName,
+        // Written from DescribeServices, a service scaled up has no task with desiredStatus RUNNING until ECS
+        // placed one
+        desiredCount: item.desiredCount || 0,
+        runningCount: running.length,
+        lastStatus: latest ? latest.lastStatus : 'STOPPED',
+        publicIp: running.map(task => task.publicIp).find(ip => ip),
+        version: latest ? latest.version : undefined,
+        region: latest ? latest.region : undefined,
+        playersOnline: item.playersOnline,
+        playersOnlineAt: item.playersOnlineAt,
+        updatedAt: latest ? latest.updatedAt : undefined
+    };
+}
+
+function response(statusCode, body) {
+    return {
+        statusCode,
+        headers: {"Content-Type": "application/json"},
+        body: JSON.stringify(body)
+    };
+}
+
+exports.handler = ({documentClient, ec2, ecs, cloudWatch}) => {
+    const table = process.env.STATUS_TABLE;
+    let fleetCache;
+
+    // The service's desired count right now, every change to it is followed by a task event
+    async function desiredCountOf(serverName, task) {
+        const response = await ecs.describeServices({
+            cluster: task.clusterArn,
+            services: ['factorio-' + serverName]
+        }).promise();
+        const service = response.services.find(service => service.status !== 'INACTIVE');
+        return service ? service.desiredCount : 0;
+    }
+
+    // Merges one task event into the server's item, retrying when another event got there first
+    async function recordTask(serverName, task, publicIp, region, desiredCount) {
+        const taskId = taskIdOf(task);
+        for (let attempt = 0; attempt < 5; attempt++) {
+            const existing = await documentClient.get({
+                TableName: table,
+                Key: {serverName},
+                ConsistentRead: true
+            }).promise();
+            const item = existing.Item || {serverName, tasks: {}};
+            const tasks = item.tasks || {};
+
+            const previous = tasks[taskId];
+            if (previous && previous.eventVersion >= task.version) {
+                return;
+            }
+            tasks[taskId] = {
+                lastStatus: task.lastStatus,
+                desiredStatus: task.desiredStatus,
+                version: versionOf(task),
+                publicIp: publicIp || (previous && task.lastStatus === 'RUNNING' ? previous.publicIp : undefined),
+                startedAt: task.startedAt,
+                // Every region's cluster writes to its replica of the table, probe.js only probes its own
+                region,
+                eventVersion: task.version,
+                updatedAt: task.updatedAt || new Date().toISOString()
+            };
+            for (const [id, other] of Object.entries(tasks)) {
+                if (other.lastStatus === 'STOPPED' && id !== taskId
+                    && Date.now() - new Date(other.updatedAt).getTime() > STOPPED_TASK_RETENTION) {
+                    delete tasks[id];
+                }
+            }
+
+            try {
+                await documentClient.update({
+                    TableName: table,
+                    Key: {serverName},
+                    UpdateExpression: 'SET tasks = :tasks, desiredCount = :desiredCount, revision = :next',
+                    ConditionExpression: item.revision === undefined
+                        ? 'attribute_not_exists(revision)'
+                        : 'revision = :current',
+                    ExpressionAttributeValues: Object.assign({
+                        ':tasks': JSON.parse(JSON.stringify(tasks)),
+                        ':desiredCount': desiredCount,
+                        ':next': (item.revision || 0) + 1
+                    }, item.revision === undefined ? {} : {':current': item.revision})
+                }).promise();
+                return;
+            } catch (error) {
+                if (error.code !== 'ConditionalCheckFailedException') {
+                    throw error;
+                }
+            }
+        }
+        throw new Error('Too many concurrent updates for ' + serverName);
+    }
+
+    async function scanAll() {
+        const items = [];
+        let lastKey;
+        do {
+            const page = await documentClient.scan({
+                TableName: table,
+                ExclusiveStartKey: lastKey
+            }).promise();
+            items.push(...page.Items);
+            lastKey = page.LastEvaluatedKey;
+        } while (lastKey);
+        return items;
+    }
+
+    return {
+        // ECS Task State Change events for the cluster
+        onTaskEvent: async function(event, context) {
+            const task = event.detail;
+            const serverName = serverNameOf(task);
+            if (!serverName) {
+                return;
+            }
+            const [publicIp, desiredCount] = await Promise.all([
+                task.lastStatus === 'RUNNING' ? publicIpOf(ec2, task, ecs) : undefined,
+                desiredCountOf(serverName, task)
+            ]);
+            await recordTask(serverName, task, publicIp, event.region, desiredCount);
+        },
+
+        // Scheduled every minute, copies the latest PlayersOnline of every known server into the view
+        refreshMetrics: async function(event, context) {
+            const serverNames = (await scanAll()).map(item => item.serverName);
+            for (let offset = 0; offset < serverNames.length; offset += METRIC_QUERY_LIMIT) {
+                const batch = serverNames.slice(offset, offset + METRIC_QUERY_LIMIT);
+                const data = await cloudWatch.getMetricData({
+                    StartTime: new Date(Date.now() - 15 * 60 * 1000),
+                    EndTime: new Date(),
+                    ScanBy: 'TimestampDescending',
+                    MetricDataQueries: batch.map((serverName, index) => ({
+                        Id: 'm' + index,
+                        MetricStat: {
+                            Metric: {Namespace: 'Factorio-' + serverName, MetricName: 'PlayersOnline'},
+                            Period: 60,
+                            Stat: 'Maximum'
+                        }
+                    }))
+                }).promise();
+                for (const result of data.MetricDataResults) {
+                    if (result.Values.length === 0) {
+                        continue;
+                    }
+                    await documentClient.update({
+                        TableName: table,
+                        Key: {serverName: batch[Number(result.Id.substring(1))]},
+                        UpdateExpression: 'SET playersOnline = :players, playersOnlineAt = :at',
+                        ExpressionAttributeValues: {
+                            ':players': result.Values[0],
+                            ':at': result.Timestamps[0].toISOString()
+                        }
+                    }).promise();
+                }
+            }
+        },
+
+        // GET /status and GET /status/{serverName}
+        main: async function(event, context) {
+            try {
+                if (event.pathParameters && event.pathParameters.serverName) {
+                    const existing = await documentClient.get({
+                        TableName: table,
+                        Key: {serverName: event.pathParameters.serverName}
+                    }).promise();
+                    if (!existing.Item) {
+                        return response(404, {message: 'Unknown server ' + event.pathParameters.serverName});
+                    }
+                    return response(200, view(existing.Item));
+                }
+
+                if (!fleetCache || fleetCache.expiresAt < Date.now()) {
+                    fleetCache = {
+                        servers: (await scanAll()).map(view),
+                        expiresAt: Date.now() + CACHE_TTL
+                    };
+                }
+                return response(200, {servers: fleetCache.servers});
+            } catch(error) {
+                const body = error.stack || JSON.stringify(error, null, 2);
+                return response(500, body);
+            }
+        }
+    };
+};
+
+const handlers = exports.handler({
+    documentClient: new DynamoDB.DocumentClient(),
+    ec2: new EC2(),
+    ecs: new ECS(),
+    cloudWatch: new CloudWatch()
+});
+exports.onTaskEvent = handlers.onTaskEvent;
+exports.refreshMetrics = handlers.refreshMetrics;
+exports.main = handlers.main;
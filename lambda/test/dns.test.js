@@ -0,0 +1,122 @@
+const test = require('node:test');
+const assert = require('node:assert');
+
+process.env.HOSTED_ZONE = 'Z123';
+process.env.DOMAIN = 'factorio.example.com';
+process.env.DNS_TTL = '15';
+const dns = require('../dns');
+
+const respond = value => ({promise: async () => value});
+
+// A hosted zone that applies UPSERT and DELETE like Route53, and reports a change INSYNC after `pendingPolls`
+function route53({records = [], pendingPolls = 1} = {}) {
+    const zone = {records: [...records], changes: [], polls: 0};
+    return Object.assign(zone, {
+        listResourceRecordSets: ({StartRecordName, StartRecordType}) => respond({
+            ResourceRecordSets: zone.records.filter(record =>
+                record.Name >= StartRecordName && (record.Name !== StartRecordName || record.Type >= StartRecordType))
+        }),
+        changeResourceRecordSets: ({ChangeBatch}) => {
+            for (const {Action, ResourceRecordSet} of ChangeBatch.Changes) {
+                zone.changes.push({Action, ResourceRecordSet});
+                zone.records = zone.records.filter(record =>
+                    record.Name !== ResourceRecordSet.Name || record.Type !== ResourceRecordSet.Type);
+                if (Action === 'UPSERT') {
+                    zone.records.push(ResourceRecordSet);
+                }
+            }
+            return respond({ChangeInfo: {Id: '/change/' + zone.changes.length, Status: 'PENDING'}});
+        },
+        getChange: () => respond({ChangeInfo: {Status: ++zone.polls > pendingPolls ? 'INSYNC' : 'PENDING'}})
+    });
+}
+
+function ec2(publicIp) {
+    return {
+        describeNetworkInterfaces: () => respond({NetworkInterfaces: [{Association: {PublicIp: publicIp}}]})
+    };
+}
+
+function ecs(runningTaskArns = []) {
+    return {listTasks: () => respond({taskArns: runningTaskArns})};
+}
+
+function taskEvent(lastStatus, desiredStatus, createdAt = new Date().toISOString()) {
+    return {
+        detail: {
+            taskArn: 'arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/1',
+            clusterArn: 'arn:aws:ecs:eu-west-1:123456789012:cluster/factorio-cluster',
+            group: 'service:factorio-example',
+            lastStatus,
+            desiredStatus,
+            createdAt,
+            attachments: [{type: 'eni', details: [{name: 'networkInterfaceId', value: 'eni-1'}]}]
+        }
+    };
+}
+
+const context = {getRemainingTimeInMillis: () => 60000};
+const record = ip => ({Name: 'example.factorio.example.com.', Type: 'A', TTL: 15, ResourceRecords: [{Value: ip}]});
+
+// The embedded metric lines the handler logged
+async function metricsOf(operation) {
+    const lines = [];
+    const log = console.log;
+    console.log = line => lines.push(line);
+    try {
+        await operation();
+    } finally {
+        console.log = log;
+    }
+    return lines.filter(line => line.startsWith('{')).map(line => JSON.parse(line));
+}
+
+test('points the record at the task once it has a public IP', async () => {
+    const zone = route53();
+    const handler = dns.handler({route53: zone, ec2: ec2('203.0.113.10'), ecs: ecs(), wait: async () => {}});
+
+    await metricsOf(() => handler(taskEvent('PROVISIONING', 'RUNNING'), context));
+    assert.deepStrictEqual(zone.changes, [{Action: 'UPSERT', ResourceRecordSet: record('203.0.113.10')}]);
+
+    // Later events of the same task find the record up to date
+    await metricsOf(() => handler(taskEvent('RUNNING', 'RUNNING'), context));
+    assert.strictEqual(zone.changes.length, 1);
+});
+
+test('publishes the time from task creation until the record is in sync', async () => {
+    const zone = route53({pendingPolls: 2});
+    const waits = [];
+    const handler = dns.handler({
+        route53: zone, ec2: ec2('203.0.113.10'), ecs: ecs(), wait: async millis => waits.push(millis)
+    });
+    const createdAt = new Date(Date.now() - 45000).toISOString();
+
+    const metrics = await metricsOf(() => handler(taskEvent('PENDING', 'RUNNING', createdAt), context));
+    assert.strictEqual(waits.length, 2);
+    assert.strictEqual(metrics.length, 1);
+    assert.strictEqual(metrics[0].serverName, 'example');
+    assert.deepStrictEqual(metrics[0]._aws.CloudWatchMetrics[0].Metrics,
+        [{Name: 'DnsCutoverTime', Unit: 'Milliseconds'}]);
+    assert.ok(metrics[0].DnsCutoverTime >= 45000 && metrics[0].DnsCutoverTime < 60000);
+});
+
+test('removes the record once the service has no task left', async () => {
+    const zone = route53({records: [record('203.0.113.10')]});
+    const handler = dns.handler({route53: zone, ec2: ec2(), ecs: ecs()});
+
+    await metricsOf(() => handler(taskEvent('STOPPED', 'STOPPED'), context));
+    assert.deepStrictEqual(zone.changes, [{Action: 'DELETE', ResourceRecordSet: record('203.0.113.10')}]);
+    assert.deepStrictEqual(zone.records, []);
+});
+
+test('keeps the record while another task of the service is running', async () => {
+    const zone = route53({records: [record('203.0.113.20')]});
+    const handler = dns.handler({
+        route53: zone, ec2: ec2(),
+        ecs: ecs(['arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/2'])
+    });
+
+    await metricsOf(() => handler(taskEvent('STOPPED', 'STOPPED'), context));
+    assert.deepStrictEqual(zone.changes, []);
+    assert.deepStrictEqual(zone.records, [record('203.0.113.20')]);
+});
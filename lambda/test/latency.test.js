@@ -0,0 +1,100 @@
+const test = require('node:test');
+const assert = require('node:assert');
+
+process.env.SERVER_TABLE = 'servers';
+process.env.REGIONS = 'eu-west-1,us-east-1,ap-southeast-2';
+const latency = require('../latency');
+
+const respond = value => ({promise: async () => value});
+
+const DAY = 24 * 60 * 60 * 1000;
+
+// The server table with one row, applying the updates the handler makes
+function documentClient(row) {
+    const updates = [];
+    return {
+        row,
+        updates,
+        get: ({Key}) => respond({Item: row && Key.serverName === row.serverName ? structuredClone(row) : undefined}),
+        update: params => {
+            updates.push(params);
+            const values = params.ExpressionAttributeValues;
+            Object.assign(row, {latencies: values[':reports']}, values[':region'] ? {autoRegion: values[':region']} : {});
+            return respond({});
+        }
+    };
+}
+
+function report(player, latencies) {
+    return {pathParameters: {serverName: 'example'}, body: JSON.stringify({player, latencies})};
+}
+
+async function put(client, player, latencies) {
+    const response = await latency.handler({documentClient: client})(report(player, latencies));
+    return {statusCode: response.statusCode, body: JSON.parse(response.body)};
+}
+
+test('picks the region with the lowest worst-case latency', async () => {
+    const client = documentClient({serverName: 'example'});
+
+    await put(client, 'alice', {'eu-west-1': 30, 'us-east-1': 90, 'ap-southeast-2': 300});
+    assert.strictEqual(client.row.autoRegion, 'eu-west-1');
+
+    // Better on average in eu-west-1, but bob would play at 180ms there
+    const {statusCode, body} = await put(client, 'bob', {'eu-west-1': 180, 'us-east-1': 100, 'ap-southeast-2': 250});
+    assert.strictEqual(statusCode, 200);
+    assert.deepStrictEqual(body, {serverName: 'example', autoRegion: 'us-east-1', players: 2});
+    assert.strictEqual(client.row.autoRegion, 'us-east-1');
+});
+
+test('only considers regions every player measured', async () => {
+    const client = documentClient({serverName: 'example'});
+    await put(client, 'alice', {'eu-west-1': 80, 'us-east-1': 20});
+    await put(client, 'bob', {'eu-west-1': 90});
+    assert.strictEqual(client.row.autoRegion, 'eu-west-1');
+});
+
+test('gives ties to the earlier region', async () => {
+    const client = documentClient({serverName: 'example'});
+    await put(client, 'alice', {'us-east-1': 50, 'eu-west-1': 50});
+    assert.strictEqual(client.row.autoRegion, 'eu-west-1');
+});
+
+test('drops reports older than the maximum age', async () => {
+    const client = documentClient({
+        serverName: 'example',
+        latencies: {
+            stale: {latencies: {'ap-southeast-2': 20, 'eu-west-1': 400}, reportedAt: new Date(Date.now() - 31 * DAY).toISOString()},
+            recent: {latencies: {'eu-west-1': 40, 'ap-southeast-2': 200}, reportedAt: new Date(Date.now() - DAY).toISOString()}
+        }
+    });
+    const {body} = await put(client, 'alice', {'eu-west-1': 30, 'ap-southeast-2': 250});
+    assert.deepStrictEqual(Object.keys(client.row.latencies).sort(), ['alice', 'recent']);
+    assert.strictEqual(body.autoRegion, 'eu-west-1');
+});
+
+test('leaves the region alone when no region was measured by everyone', async () => {
+    const client = documentClient({serverName: 'example', autoRegion: 'us-east-1'});
+    await put(client, 'alice', {'eu-west-1': 30});
+    await put(client, 'bob', {'ap-southeast-2': 30});
+    assert.strictEqual(client.row.autoRegion, 'eu-west-1');
+    assert.strictEqual(client.updates[1].UpdateExpression, 'SET latencies = :reports');
+});
+
+test('ignores regions that are not configured and rejects reports without any', async () => {
+    const client = documentClient({serverName: 'example'});
+    await put(client, 'alice', {'eu-central-1': 5, 'us-east-1': 60, 'eu-west-1': -1});
+    assert.deepStrictEqual(client.row.latencies.alice.latencies, {'us-east-1': 60});
+    assert.strictEqual(client.row.autoRegion, 'us-east-1');
+
+    const rejected = await put(client, 'bob', {'eu-central-1': 5});
+    assert.strictEqual(rejected.statusCode, 400);
+    assert.strictEqual(client.updates.length, 1);
+});
+
+test('never adds a server', async () => {
+    const client = documentClient(undefined);
+    const {statusCode} = await put(client, 'alice', {'eu-west-1': 30});
+    assert.strictEqual(statusCode, 404);
+    assert.deepStrictEqual(client.updates, []);
+});
@@ -0,0 +1,149 @@
+const test = require('node:test');
+const assert = require('node:assert');
+const crypto = require('crypto');
+const {Readable} = require('stream');
+
+process.env.MOD_CACHE_BUCKET = 'mod-cache';
+process.env.CREDENTIALS_SECRET = 'FactorioCredentials';
+const mods = require('../mods');
+
+const respond = value => ({promise: async () => value});
+
+const ZIP = Buffer.from('PK krastorio');
+const SHA1 = crypto.createHash('sha1').update(ZIP).digest('hex');
+
+// A bucket holding the given keys, reading what the handler uploads
+function bucket(keys = []) {
+    const objects = new Map(keys.map(key => [key, Buffer.alloc(0)]));
+    return {
+        objects,
+        deleted: [],
+        headObject: ({Bucket, Key}) => {
+            assert.strictEqual(Bucket, 'mod-cache');
+            return {
+                promise: async () => {
+                    if (!objects.has(Key)) {
+                        throw Object.assign(new Error('Not Found'), {code: 'NotFound', statusCode: 404});
+                    }
+                    return {};
+                }
+            };
+        },
+        upload: ({Key, Body}) => ({
+            promise: async () => {
+                const chunks = [];
+                for await (const chunk of Body) {
+                    chunks.push(chunk);
+                }
+                objects.set(Key, Buffer.concat(chunks));
+                return {Key};
+            }
+        }),
+        deleteObject(params) {
+            this.deleted.push(params.Key);
+            objects.delete(params.Key);
+            return respond({});
+        }
+    };
+}
+
+const secretsManager = {
+    getSecretValue: () => respond({SecretString: JSON.stringify({FactorioUsername: 'user', FactorioToken: 'token'})})
+};
+
+// The mod portal, listing the releases with the given sha1 and serving the given file
+function portal({sha1 = SHA1, file = ZIP} = {}) {
+    const urls = [];
+    return {
+        urls,
+        fetchJson: async url => {
+            urls.push(url);
+            return {releases: [{version: '1.1.4', sha1, download_url: '/download/Krastorio2/1'}]};
+        },
+        download: async url => {
+            urls.push(url);
+            return Readable.from([file]);
+        }
+    };
+}
+
+function record(eventName, modList) {
+    return {
+        eventName,
+        dynamodb: {
+            NewImage: eventName === 'REMOVE' ? undefined : {
+                serverName: {S: 'example'},
+                mods: {L: modList.map(([name, version, sha1]) => ({M: {
+                    name: {S: name}, version: {S: version}, sha1: {S: sha1}
+                }}))}
+            }
+        }
+    };
+}
+
+async function quietly(operation) {
+    const log = console.log;
+    console.log = () => {};
+    try {
+        return await operation();
+    } finally {
+        console.log = log;
+    }
+}
+
+test('caches each mod once under the key the servers read', async () => {
+    const s3 = bucket();
+    const {urls, fetchJson, download} = portal();
+    const handler = mods.handler({s3, secretsManager, fetchJson, download});
+
+    const result = await quietly(() => handler({Records: [
+        record('INSERT', [['Krastorio2', '1.1.4', SHA1.toUpperCase()]]),
+        record('MODIFY', [['Krastorio2', '1.1.4', SHA1]])
+    ]}));
+    // ModReferenceTest expects the same key
+    const key = 'mods/Krastorio2/1.1.4/' + SHA1 + '.zip';
+    assert.deepStrictEqual(result, {cached: [key]});
+    assert.deepStrictEqual(s3.objects.get(key), ZIP);
+    assert.deepStrictEqual(urls, [
+        'https://mods.factorio.com/api/mods/Krastorio2',
+        'https://mods.factorio.com/download/Krastorio2/1?username=user&token=token'
+    ]);
+});
+
+test('skips mods already in the cache and removed rows', async () => {
+    const s3 = bucket(['mods/Krastorio2/1.1.4/' + SHA1 + '.zip']);
+    const {urls, fetchJson, download} = portal();
+    const handler = mods.handler({
+        s3, fetchJson, download,
+        secretsManager: {getSecretValue: () => assert.fail('Read the credentials with nothing to download')}
+    });
+
+    const result = await handler({Records: [
+        record('MODIFY', [['Krastorio2', '1.1.4', SHA1]]),
+        record('REMOVE', [])
+    ]});
+    assert.deepStrictEqual(result, {cached: []});
+    assert.deepStrictEqual(urls, []);
+});
+
+test('refuses a release whose sha1 on the portal differs from the row', async () => {
+    const s3 = bucket();
+    const {urls, fetchJson, download} = portal({sha1: 'f'.repeat(40)});
+    const handler = mods.handler({s3, secretsManager, fetchJson, download});
+
+    await assert.rejects(handler({Records: [record('INSERT', [['Krastorio2', '1.1.4', SHA1]])]}),
+        /has sha1 f{40}, not /);
+    assert.strictEqual(urls.length, 1);
+    assert.strictEqual(s3.objects.size, 0);
+});
+
+test('deletes a download that does not match its sha1', async () => {
+    const s3 = bucket();
+    const {fetchJson, download} = portal({file: Buffer.from('PK tampered')});
+    const handler = mods.handler({s3, secretsManager, fetchJson, download});
+
+    await assert.rejects(handler({Records: [record('INSERT', [['Krastorio2', '1.1.4', SHA1]])]}),
+        /Downloaded Krastorio2 1\.1\.4 has sha1/);
+    assert.deepStrictEqual(s3.deleted, ['mods/Krastorio2/1.1.4/' + SHA1 + '.zip']);
+    assert.strictEqual(s3.objects.size, 0);
+});
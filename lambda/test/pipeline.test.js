@@ -0,0 +1,195 @@
+const test = require('node:test');
+const assert = require('node:assert');
+
+process.env.STATE_TABLE = 'deploy-state';
+process.env.PIPELINE = 'factorio-pipeline';
+const pipeline = require('../pipeline');
+
+// The state table, applying the SET and REMOVE clauses the handler and deploy.sh use
+function stateTable() {
+    const items = new Map();
+    const respond = value => ({promise: async () => value});
+    return {
+        items,
+        getItem: ({Key}) => respond(items.has(Key.serverName.S) ? {Item: {...items.get(Key.serverName.S)}} : {}),
+        updateItem: ({Key, UpdateExpression, ExpressionAttributeValues}) => {
+            const item = {...items.get(Key.serverName.S), serverName: Key.serverName};
+            const [, set = '', remove = ''] = UpdateExpression.match(/^SET (.*?)(?: REMOVE (.*))?$/);
+            for (const assignment of set.split(', ')) {
+                const [name, value] = assignment.split(' = ');
+                item[name] = ExpressionAttributeValues[value];
+            }
+            for (const name of remove.split(', ').filter(name => name)) {
+                delete item[name];
+            }
+            items.set(Key.serverName.S, item);
+            return respond({});
+        }
+    };
+}
+
+function codePipeline() {
+    const executions = [];
+    return {
+        executions,
+        startPipelineExecution: params => {
+            executions.push(params);
+            return {promise: async () => ({pipelineExecutionId: 'execution-' + executions.length})};
+        }
+    };
+}
+
+function image(serverName, attributes) {
+    const item = {serverName: {S: serverName}};
+    for (const [name, value] of Object.entries(attributes)) {
+        item[name] = {S: value};
+    }
+    return item;
+}
+
+// A DynamoDB stream record of the server table, an INSERT unless the attributes before are given
+function record(serverName, attributes, oldAttributes) {
+    const Keys = {serverName: {S: serverName}};
+    if (!attributes) {
+        return {eventName: 'REMOVE', dynamodb: {Keys, OldImage: oldAttributes && image(serverName, oldAttributes)}};
+    }
+    if (!oldAttributes) {
+        return {eventName: 'INSERT', dynamodb: {Keys, NewImage: image(serverName, attributes)}};
+    }
+    return {
+        eventName: 'MODIFY',
+        dynamodb: {Keys, NewImage: image(serverName, attributes), OldImage: image(serverName, oldAttributes)}
+    };
+}
+
+// What deploy.sh records once a run deployed everything
+function deployed(table) {
+    for (const item of table.items.values()) {
+        if (item.pending && item.pending.BOOL) {
+            item.pending = {BOOL: false};
+            item.removed = {BOOL: !item.pendingFingerprint};
+            item.fingerprint = item.pendingFingerprint;
+            delete item.pendingFingerprint;
+        }
+    }
+}
+
+async function quietly(operation) {
+    const log = console.log;
+    console.log = () => {};
+    try {
+        return await operation();
+    } finally {
+        console.log = log;
+    }
+}
+
+test('starts one execution for the last change of each server in a batch', async () => {
+    const table = stateTable();
+    const stubs = {codePipeline: codePipeline(), dynamoDb: table};
+    const handler = pipeline.handler(stubs);
+
+    const result = await quietly(() => handler({
+        Records: [
+            record('one', {version: '1.1.100'}),
+            record('two', {version: '1.1.100'}),
+            record('one', {version: '1.1.110'})
+        ]
+    }));
+    assert.deepStrictEqual(result.affected, ['one', 'two']);
+    assert.deepStrictEqual(result.versions.sort(), ['1.1.100', '1.1.110']);
+    assert.deepStrictEqual(stubs.codePipeline.executions, [{name: 'factorio-pipeline'}]);
+    assert.strictEqual(table.items.get('one').version.S, '1.1.110');
+});
+
+test('skips rows that are deployed already and latency reports', async () => {
+    const table = stateTable();
+    const stubs = {codePipeline: codePipeline(), dynamoDb: table};
+    const handler = pipeline.handler(stubs);
+
+    await quietly(() => handler({Records: [record('one', {version: '1.1.110', latencies: '{"eu-west-1": 20}'})]}));
+    deployed(table);
+    const result = await quietly(() => handler({
+        Records: [record('one', {version: '1.1.110', latencies: '{"eu-west-1": 35}'})]
+    }));
+    assert.deepStrictEqual(result.affected, []);
+    assert.strictEqual(stubs.codePipeline.executions.length, 1);
+});
+
+test('does not start a run for latency reports while a deploy is pending', async () => {
+    const table = stateTable();
+    const stubs = {codePipeline: codePipeline(), dynamoDb: table};
+    const handler = pipeline.handler(stubs);
+
+    await quietly(() => handler({Records: [record('one', {version: '1.1.110'})]}));
+    const result = await quietly(() => handler({
+        Records: [
+            record('one', {version: '1.1.110', latencies: '{"eu-west-1": 20}'}, {version: '1.1.110'}),
+            record('one', {version: '1.1.110', latencies: '{"eu-west-1": 35}'},
+                {version: '1.1.110', latencies: '{"eu-west-1": 20}'})
+        ]
+    }));
+    assert.deepStrictEqual(result.affected, []);
+    assert.strictEqual(stubs.codePipeline.executions.length, 1);
+});
+
+test('keeps a change that a later latency report in the same batch follows', async () => {
+    const table = stateTable();
+    const stubs = {codePipeline: codePipeline(), dynamoDb: table};
+    const handler = pipeline.handler(stubs);
+
+    await quietly(() => handler({Records: [record('one', {version: '1.1.100'})]}));
+    deployed(table);
+    const result = await quietly(() => handler({
+        Records: [
+            record('one', {version: '1.1.110'}, {version: '1.1.100'}),
+            record('one', {version: '1.1.110', latencies: '{"eu-west-1": 35}'}, {version: '1.1.110'})
+        ]
+    }));
+    assert.deepStrictEqual(result.affected, ['one']);
+    assert.deepStrictEqual(result.versions, ['1.1.110']);
+    assert.strictEqual(stubs.codePipeline.executions.length, 2);
+});
+
+test('deploys again after a failed deploy, also when the row is reverted', async () => {
+    const table = stateTable();
+    const stubs = {codePipeline: codePipeline(), dynamoDb: table};
+    const handler = pipeline.handler(stubs);
+
+    await quietly(() => handler({Records: [record('one', {version: '1.1.100'})]}));
+    deployed(table);
+    const deployedFingerprint = table.items.get('one').fingerprint.S;
+
+    // The deploy of 1.1.110 fails, so deploy.sh records nothing
+    await quietly(() => handler({Records: [record('one', {version: '1.1.110'})]}));
+    assert.strictEqual(table.items.get('one').fingerprint.S, deployedFingerprint);
+
+    const retried = await quietly(() => handler({Records: [record('one', {version: '1.1.110'})]}));
+    assert.deepStrictEqual(retried.affected, ['one']);
+    // The failed execution may have synthesized 1.1.110, so going back still needs a deploy
+    const reverted = await quietly(() => handler({Records: [record('one', {version: '1.1.100'})]}));
+    assert.deepStrictEqual(reverted.affected, ['one']);
+    assert.strictEqual(table.items.get('one').pendingFingerprint.S, deployedFingerprint);
+    assert.strictEqual(stubs.codePipeline.executions.length, 4);
+
+    deployed(table);
+    const settled = await quietly(() => handler({Records: [record('one', {version: '1.1.100'})]}));
+    assert.deepStrictEqual(settled.affected, []);
+});
+
+test('deploys a removal once', async () => {
+    const table = stateTable();
+    const stubs = {codePipeline: codePipeline(), dynamoDb: table};
+    const handler = pipeline.handler(stubs);
+
+    await quietly(() => handler({Records: [record('one', {version: '1.1.110'})]}));
+    deployed(table);
+    const removed = await quietly(() => handler({Records: [record('one')]}));
+    assert.deepStrictEqual(removed.affected, ['one']);
+    assert.strictEqual(table.items.get('one').pendingFingerprint, undefined);
+
+    deployed(table);
+    const again = await quietly(() => handler({Records: [record('one')]}));
+    assert.deepStrictEqual(again.affected, []);
+    assert.strictEqual(stubs.codePipeline.executions.length, 2);
+});
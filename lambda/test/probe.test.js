@@ -0,0 +1,176 @@
+const test = require('node:test');
+const assert = require('node:assert');
+const rconServer = require('./rcon-server');
+
+process.env.SERVER_TABLE = 'servers';
+process.env.STATUS_TABLE = 'status';
+process.env.SECRET_NAME = 'rcon';
+process.env.CLUSTER = 'factorio-cluster';
+
+const respond = value => ({promise: async () => value});
+
+// The game the RCON server stands in for, ticking when the probe waits between its two samples
+const game = {tick: 1000, players: 1, paused: false, upsWhileWaiting: 60};
+let server;
+let probe;
+
+test.before(async () => {
+    server = await rconServer.start({
+        respond: command => command.startsWith('/silent-command')
+            ? game.tick + ' ' + game.players + ' ' + game.paused
+            : 'Version: 1.1.110'
+    });
+    process.env.RCON_PORT = String(server.port);
+    probe = require('../probe');
+});
+
+test.after(() => server.close());
+
+test.beforeEach(() => Object.assign(game, {players: 1, paused: false, upsWhileWaiting: 60}));
+
+// The server and status tables, applying the unhealthyChecks updates the probe makes
+function tables(serverRow, {startedAt = new Date(Date.now() - 10 * 60 * 1000).toISOString()} = {}) {
+    const status = {
+        serverName: 'example',
+        tasks: {
+            'task-1': {lastStatus: 'RUNNING', desiredStatus: 'RUNNING', publicIp: '127.0.0.1', startedAt}
+        }
+    };
+    return {
+        status,
+        scan: ({TableName}) => respond({
+            Items: TableName === 'servers' ? [Object.assign({serverName: 'example', version: '1.1.110'}, serverRow)]
+                : [status]
+        }),
+        update: ({UpdateExpression, ExpressionAttributeValues}) => {
+            status.unhealthyChecks = UpdateExpression.startsWith('SET') ? 0
+                : (status.unhealthyChecks || 0) + ExpressionAttributeValues[':one'];
+            return respond({Attributes: {unhealthyChecks: status.unhealthyChecks}});
+        }
+    };
+}
+
+function handlerWith(documentClient, stopped = []) {
+    return probe.handler({
+        documentClient,
+        secretsManager: {getSecretValue: () => respond({SecretString: 'password'})},
+        ecs: {
+            stopTask: params => {
+                stopped.push(params);
+                return respond({});
+            }
+        },
+        // The game ticks on while the probe waits between its samples
+        wait: async millis => {
+            game.tick += game.paused || game.players === 0 ? 0 : Math.round(game.upsWhileWaiting * millis / 1000);
+        }
+    });
+}
+
+// The embedded metric lines the handler logged, and the other lines
+async function logsOf(operation) {
+    const lines = [];
+    const log = console.log;
+    console.log = line => lines.push(line);
+    try {
+        await operation();
+    } finally {
+        console.log = log;
+    }
+    return {
+        metrics: lines.filter(line => line.startsWith('{')).map(line => JSON.parse(line)),
+        messages: lines.filter(line => !line.startsWith('{'))
+    };
+}
+
+test('measures the UPS from two tick samples', async () => {
+    const table = tables({});
+    const commands = server.commands.length;
+
+    const {metrics} = await logsOf(() => handlerWith(table)({}));
+    assert.strictEqual(metrics.length, 1);
+    // The round trips count towards the sample, so it is a bit below the 60 UPS the game ran at
+    assert.ok(metrics[0].UPS > 55 && metrics[0].UPS <= 60, String(metrics[0].UPS));
+    assert.ok(metrics[0].ResponseTime >= 0);
+    assert.strictEqual(server.commands.length - commands, 2);
+    assert.strictEqual(table.status.unhealthyChecks, 0);
+});
+
+test('has nothing to measure on a paused or empty server', async () => {
+    for (const state of [{paused: true}, {players: 0}]) {
+        Object.assign(game, state);
+        const table = tables({});
+
+        const {metrics} = await logsOf(() => handlerWith(table)({}));
+        assert.strictEqual(metrics.length, 1);
+        assert.strictEqual(metrics[0].UPS, undefined);
+        assert.ok(metrics[0].ResponseTime >= 0);
+        assert.strictEqual(table.status.unhealthyChecks, 0);
+    }
+});
+
+test('counts a slow server as failed unless minUps is 0', async () => {
+    game.upsWhileWaiting = 10;
+    const slow = tables({});
+    await logsOf(() => handlerWith(slow)({}));
+    assert.strictEqual(slow.status.unhealthyChecks, 1);
+
+    const accepted = tables({minUps: 0});
+    await logsOf(() => handlerWith(accepted)({}));
+    assert.strictEqual(accepted.status.unhealthyChecks, 0);
+});
+
+test('only asks for the version with healthProbe=rcon', async () => {
+    const table = tables({healthProbe: 'rcon'});
+    const commands = server.commands.length;
+
+    const {metrics} = await logsOf(() => handlerWith(table)({}));
+    assert.deepStrictEqual(server.commands.slice(commands), ['/version']);
+    assert.strictEqual(metrics[0].UPS, undefined);
+    assert.strictEqual(table.status.unhealthyChecks, 0);
+});
+
+test('replaces the task after unhealthyChecks failed probes in a row', async () => {
+    game.upsWhileWaiting = 10;
+    const table = tables({unhealthyChecks: 3});
+    const stopped = [];
+    const handler = handlerWith(table, stopped);
+
+    await logsOf(() => handler({}));
+    await logsOf(() => handler({}));
+    assert.deepStrictEqual(stopped, []);
+    assert.strictEqual(table.status.unhealthyChecks, 2);
+
+    const {messages} = await logsOf(() => handler({}));
+    assert.deepStrictEqual(stopped,
+        [{cluster: 'factorio-cluster', task: 'task-1', reason: 'Failed 3 health probes'}]);
+    assert.ok(messages.includes('Replacing example after 3 failed checks'), messages.join('\n'));
+    // The replacement starts with a clean count
+    assert.strictEqual(table.status.unhealthyChecks, 0);
+});
+
+test('starts counting again once a probe passes', async () => {
+    const table = tables({unhealthyChecks: 3});
+    const stopped = [];
+    const handler = handlerWith(table, stopped);
+
+    game.upsWhileWaiting = 10;
+    await logsOf(() => handler({}));
+    await logsOf(() => handler({}));
+    game.upsWhileWaiting = 60;
+    await logsOf(() => handler({}));
+    game.upsWhileWaiting = 10;
+    await logsOf(() => handler({}));
+    assert.strictEqual(table.status.unhealthyChecks, 1);
+    assert.deepStrictEqual(stopped, []);
+});
+
+test('leaves a task alone while its map is loading', async () => {
+    const table = tables({}, {startedAt: new Date().toISOString()});
+    const commands = server.commands.length;
+
+    const {metrics} = await logsOf(() => handlerWith(table)({}));
+    assert.deepStrictEqual(metrics, []);
+    assert.strictEqual(server.commands.length, commands);
+    assert.strictEqual(table.status.unhealthyChecks, undefined);
+});
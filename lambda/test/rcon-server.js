@@ -0,0 +1,68 @@
+const net = require('net');
+
+// Source RCON packet types, as used by Factorio
+const SERVERDATA_AUTH = 3;
+const SERVERDATA_AUTH_RESPONSE = 2;
+const SERVERDATA_RESPONSE_VALUE = 0;
+
+function encode(id, type, body) {
+    const length = Buffer.byteLength(body);
+    const packet = Buffer.alloc(length + 14);
+    packet.writeInt32LE(length + 10, 0);
+    packet.writeInt32LE(id, 4);
+    packet.writeInt32LE(type, 8);
+    packet.write(body, 12);
+    packet.writeInt16LE(0, length + 12);
+    return packet;
+}
+
+// A local stand-in for a Factorio server's RCON port. Answers every command with respond(command), after
+// delay(command) milliseconds, and records the commands and connections it got. authDelay stands in for the
+// round trips of connecting and authenticating to a real server. Listens on a free port unless given one.
+exports.start = function({password = 'password', respond = () => '', delay = () => 0, authDelay = 0,
+                          port = 0} = {}) {
+    const server = {commands: [], connections: 0, sockets: new Set(), stalled: new Set()};
+    const listener = net.createServer(socket => {
+        server.connections++;
+        server.sockets.add(socket);
+        socket.on('close', () => server.sockets.delete(socket));
+        socket.on('error', () => {});
+        let buffer = Buffer.alloc(0);
+        socket.on('data', data => {
+            buffer = Buffer.concat([buffer, data]);
+            while (buffer.length >= 4 && buffer.length >= buffer.readInt32LE(0) + 4) {
+                const size = buffer.readInt32LE(0);
+                const id = buffer.readInt32LE(4);
+                const type = buffer.readInt32LE(8);
+                const body = buffer.toString('utf8', 12, size + 2);
+                buffer = buffer.slice(size + 4);
+                if (type === SERVERDATA_AUTH) {
+                    setTimeout(() => socket.write(encode(body === password ? id : -1, SERVERDATA_AUTH_RESPONSE, '')),
+                        authDelay);
+                    continue;
+                }
+                server.commands.push(body);
+                if (server.stalled.has(socket)) {
+                    continue;
+                }
+                setTimeout(() => {
+                    if (!socket.destroyed) {
+                        socket.write(encode(id, SERVERDATA_RESPONSE_VALUE, String(respond(body))));
+                    }
+                }, delay(body));
+            }
+        });
+    });
+    // Drops every open connection, like a server that restarted while the Lambda was frozen
+    server.dropConnections = () => server.sockets.forEach(socket => socket.destroy());
+    // Stops answering on the open connections without closing them, like a connection whose other end is gone
+    server.stallConnections = () => server.sockets.forEach(socket => server.stalled.add(socket));
+    server.close = () => new Promise(resolve => {
+        server.dropConnections();
+        listener.close(resolve);
+    });
+    return new Promise(resolve => listener.listen(port, '127.0.0.1', () => {
+        server.port = listener.address().port;
+        resolve(server);
+    }));
+};
@@ -0,0 +1,199 @@
+const test = require('node:test');
+const assert = require('node:assert');
+const rconServer = require('./rcon-server');
+
+// Secrets Manager and the RCON handshake are local here, these stand in for their round trips
+const SECRET_MILLIS = 15;
+const HANDSHAKE_MILLIS = 15;
+const SAMPLES = 50;
+
+let server;
+
+test.before(async () => {
+    server = await rconServer.start({respond: command => 'ran ' + command, authDelay: HANDSHAKE_MILLIS});
+    process.env.RCON_HOST = '127.0.0.1';
+    process.env.RCON_PORT = String(server.port);
+    process.env.RCON_TIMEOUT_SECONDS = '0.2';
+    process.env.SECRET_NAME = 'rcon';
+});
+
+test.after(() => server.close());
+
+// A fresh copy of the module, like a cold Lambda instance without cached connections or secret
+function coldHandler(secretCalls = []) {
+    delete require.cache[require.resolve('../rcon')];
+    return require('../rcon').handler({
+        secretsManager: {
+            getSecretValue: params => {
+                secretCalls.push(params);
+                return {
+                    promise: () => new Promise(resolve =>
+                        setTimeout(() => resolve({SecretString: 'password'}), SECRET_MILLIS))
+                };
+            }
+        }
+    });
+}
+
+function command(serverName, command) {
+    return {
+        resource: '/rcon/{serverName}',
+        pathParameters: {serverName},
+        body: JSON.stringify({command})
+    };
+}
+
+async function quietly(operation) {
+    const log = console.log;
+    console.log = () => {};
+    try {
+        return await operation();
+    } finally {
+        console.log = log;
+    }
+}
+
+function percentile(millis, p) {
+    const sorted = [...millis].sort((a, b) => a - b);
+    return sorted[Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1)];
+}
+
+test('reuses the connection and the secret across invocations', async () => {
+    const secretCalls = [];
+    const handler = coldHandler(secretCalls);
+    const connections = server.connections;
+
+    for (const name of ['/players', '/time', '/evolution']) {
+        const response = await handler(command('example', name));
+        assert.strictEqual(response.statusCode, 200);
+        assert.deepStrictEqual(JSON.parse(response.body), {response: 'ran ' + name});
+    }
+    assert.strictEqual(server.connections - connections, 1);
+    assert.strictEqual(secretCalls.length, 1);
+});
+
+test('reconnects after the server closed the connection', async () => {
+    const handler = coldHandler();
+    await handler(command('example', '/players'));
+    const connections = server.connections;
+
+    server.dropConnections();
+    // Once the close has arrived the next command isn't written to that connection, so it can be retried
+    await new Promise(resolve => setTimeout(resolve, 20));
+    const response = await handler(command('example', '/players'));
+    assert.strictEqual(response.statusCode, 200);
+    assert.strictEqual(server.connections - connections, 1);
+});
+
+test('does not send a command again when its connection stops answering', async () => {
+    const handler = coldHandler();
+    await handler(command('example', '/players'));
+    const commands = server.commands.length;
+
+    server.stallConnections();
+    const response = await handler(command('example', '/ban someone'));
+    assert.strictEqual(response.statusCode, 504);
+    assert.deepStrictEqual(server.commands.slice(commands), ['/ban someone']);
+
+    // The stalled connection isn't reused
+    const connections = server.connections;
+    const next = await handler(command('example', '/time'));
+    assert.deepStrictEqual(JSON.parse(next.body), {response: 'ran /time'});
+    assert.strictEqual(server.connections - connections, 1);
+});
+
+test('does not send a batch again when its connection stops answering', async () => {
+    const handler = coldHandler();
+    await handler(command('example', '/players'));
+    const commands = server.commands.length;
+
+    server.stallConnections();
+    const response = await handler({
+        resource: '/rcon/{serverName}/batch',
+        pathParameters: {serverName: 'example'},
+        body: JSON.stringify({commands: ['/promote someone', '/time']})
+    });
+    assert.strictEqual(response.statusCode, 200);
+    assert.ok(JSON.parse(response.body).results.every(result => result.error));
+    assert.deepStrictEqual(server.commands.slice(commands), ['/promote someone', '/time']);
+});
+
+test('rejects a command that is not a string', async () => {
+    const handler = coldHandler();
+    const commands = server.commands.length;
+
+    const response = await handler({
+        resource: '/rcon/{serverName}',
+        pathParameters: {serverName: 'example'},
+        body: JSON.stringify({command: ['/players']})
+    });
+    assert.strictEqual(response.statusCode, 400);
+    assert.strictEqual(server.commands.length, commands);
+});
+
+test('runs a batch in order on one connection', async () => {
+    const handler = coldHandler();
+    const connections = server.connections;
+    const commands = Array.from({length: 100}, (_, i) => '/c ' + i);
+
+    const response = await handler({
+        resource: '/rcon/{serverName}/batch',
+        pathParameters: {serverName: 'example'},
+        body: JSON.stringify({commands})
+    });
+    assert.strictEqual(response.statusCode, 200);
+    assert.deepStrictEqual(JSON.parse(response.body).results,
+        commands.map(command => ({command, response: 'ran ' + command})));
+    assert.deepStrictEqual(server.commands.slice(-commands.length), commands);
+    assert.strictEqual(server.connections - connections, 1);
+
+    const tooMany = await handler({
+        resource: '/rcon/{serverName}/batch',
+        pathParameters: {serverName: 'example'},
+        body: JSON.stringify({commands: [...commands, '/c 100']})
+    });
+    assert.strictEqual(tooMany.statusCode, 400);
+});
+
+test('fans a command out to every server', async () => {
+    const handler = coldHandler();
+
+    const response = await handler({
+        resource: '/rcon',
+        body: JSON.stringify({servers: ['one', 'two'], command: '/players'})
+    });
+    assert.strictEqual(response.statusCode, 200);
+    assert.deepStrictEqual(JSON.parse(response.body).results, {
+        one: {response: 'ran /players'},
+        two: {response: 'ran /players'}
+    });
+});
+
+test('reused connections cut p50 and p99 command latency', async t => {
+    const cold = [];
+    const warm = [];
+    await quietly(async () => {
+        for (let i = 0; i < SAMPLES; i++) {
+            const handler = coldHandler();
+            const start = process.hrtime.bigint();
+            await handler(command('example', '/time'));
+            cold.push(Number(process.hrtime.bigint() - start) / 1e6);
+            server.dropConnections();
+        }
+
+        const handler = coldHandler();
+        await handler(command('example', '/time'));
+        for (let i = 0; i < SAMPLES; i++) {
+            const start = process.hrtime.bigint();
+            await handler(command('example', '/time'));
+            warm.push(Number(process.hrtime.bigint() - start) / 1e6);
+        }
+    });
+
+    const report = samples => 'p50 ' + percentile(samples, 50).toFixed(1) + ' ms, p99 '
+        + percentile(samples, 99).toFixed(1) + ' ms';
+    t.diagnostic('new connection and secret per command: ' + report(cold));
+    t.diagnostic('reused connection and cached secret: ' + report(warm));
+    assert.ok(percentile(warm, 50) < percentile(cold, 50));
+    assert.ok(percentile(warm, 99) < percentile(cold, 99));
+});
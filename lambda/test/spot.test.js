@@ -0,0 +1,112 @@
+const test = require('node:test');
+const assert = require('node:assert');
+const rconServer = require('./rcon-server');
+const interruption = require('../events/spot-interruption.json');
+
+const CONTEXT = {getRemainingTimeInMillis: () => 60000};
+
+function respond(value) {
+    return {promise: async () => typeof value === 'function' ? value() : value};
+}
+
+// Clients that record every call, with a service currently on Spot unless told otherwise
+function clients({strategy = 'FARGATE_SPOT', desiredCount = 1, failUpdate = false} = {}) {
+    const calls = [];
+    return {
+        calls,
+        ecs: {
+            describeServices: params => {
+                calls.push(['describeServices', params]);
+                return respond({
+                    services: [{desiredCount, capacityProviderStrategy: [{capacityProvider: strategy}]}]
+                });
+            },
+            updateService: params => {
+                calls.push(['updateService', params]);
+                return respond(() => {
+                    if (failUpdate) {
+                        throw new Error('Throttled');
+                    }
+                    return {};
+                });
+            },
+            describeTasks: params => {
+                calls.push(['describeTasks', params]);
+                return respond({tasks: [{lastStatus: 'STOPPED'}]});
+            }
+        },
+        ec2: {
+            describeNetworkInterfaces: () => respond({
+                NetworkInterfaces: [{Association: {PublicIp: '127.0.0.1'}}]
+            })
+        },
+        secretsManager: {getSecretValue: () => respond({SecretString: 'password'})},
+        autoScaling: {
+            registerScalableTarget: params => {
+                calls.push(['registerScalableTarget', params]);
+                return respond({});
+            }
+        },
+        wait: async () => {}
+    };
+}
+
+let server;
+let spot;
+
+test.before(async () => {
+    server = await rconServer.start({respond: () => 'Saving map...'});
+    process.env.RCON_PORT = String(server.port);
+    process.env.CLUSTER = 'factorio-cluster';
+    process.env.SECRET_NAME = 'rcon';
+    spot = require('../spot');
+});
+
+test.after(() => server.close());
+
+test('saves an interrupted server and moves it to on-demand', async () => {
+    const stubs = clients();
+    await spot.handler(stubs)(interruption, CONTEXT);
+
+    assert.deepStrictEqual(server.commands, ['/server-save']);
+    assert.deepStrictEqual(stubs.calls.map(([name]) => name), [
+        'describeServices',
+        'registerScalableTarget',
+        'updateService',
+        'describeTasks',
+        'updateService',
+        'registerScalableTarget'
+    ]);
+    const [, suspend, hold, , start, resume] = stubs.calls.map(([, params]) => params);
+    assert.deepStrictEqual(suspend.SuspendedState,
+        {DynamicScalingInSuspended: true, DynamicScalingOutSuspended: true});
+    assert.strictEqual(suspend.ResourceId, 'service/factorio-cluster/factorio-example');
+    assert.deepStrictEqual(hold, {cluster: 'factorio-cluster', service: 'factorio-example', desiredCount: 0});
+    assert.strictEqual(start.desiredCount, 1);
+    assert.deepStrictEqual(start.capacityProviderStrategy, [{capacityProvider: 'FARGATE', weight: 1}]);
+    assert.deepStrictEqual(resume.SuspendedState,
+        {DynamicScalingInSuspended: false, DynamicScalingOutSuspended: false});
+});
+
+test('ignores a repeated event once the service is on-demand', async () => {
+    const stubs = clients({strategy: 'FARGATE'});
+    await spot.handler(stubs)(interruption, CONTEXT);
+
+    assert.deepStrictEqual(stubs.calls.map(([name]) => name), ['describeServices']);
+});
+
+test('ignores the interruption of a server that is being stopped', async () => {
+    const stubs = clients({desiredCount: 0});
+    await spot.handler(stubs)(interruption, CONTEXT);
+
+    assert.deepStrictEqual(stubs.calls.map(([name]) => name), ['describeServices']);
+});
+
+test('resumes scaling when the hand-over fails', async () => {
+    const stubs = clients({failUpdate: true});
+    await assert.rejects(spot.handler(stubs)(interruption, CONTEXT), /Throttled/);
+
+    const last = stubs.calls[stubs.calls.length - 1];
+    assert.strictEqual(last[0], 'registerScalableTarget');
+    assert.strictEqual(last[1].SuspendedState.DynamicScalingOutSuspended, false);
+});
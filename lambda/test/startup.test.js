@@ -0,0 +1,164 @@
+const test = require('node:test');
+const assert = require('node:assert');
+
+const rconServer = require('./rcon-server');
+
+process.env.STARTUP_TABLE = 'startup';
+process.env.SECRET_NAME = 'rcon';
+const startup = require('../startup');
+
+let server;
+
+const version = command => command === '/version' ? '1.1.110' : '';
+
+test.before(async () => {
+    server = await rconServer.start({respond: version});
+});
+
+test.after(() => server.close());
+
+// A table that honours attribute_not_exists(taskArn) like DynamoDB does
+function documentClient() {
+    const items = new Map();
+    return {
+        items,
+        put: ({Item, ConditionExpression}) => ({
+            promise: async () => {
+                if (ConditionExpression && items.has(Item.taskArn)) {
+                    throw Object.assign(new Error('The conditional request failed'),
+                        {code: 'ConditionalCheckFailedException'});
+                }
+                items.set(Item.taskArn, Item);
+                return {};
+            }
+        })
+    };
+}
+
+const respond = value => ({promise: async () => value});
+
+// The task runs on this machine, its RCON port is the given one
+function handlerWith(documentClient, {port = server.port, wait} = {}) {
+    process.env.RCON_PORT = String(port);
+    return startup.handler({
+        documentClient,
+        secretsManager: {getSecretValue: () => respond({SecretString: 'password'})},
+        ec2: {describeNetworkInterfaces: () => respond({NetworkInterfaces: [{Association: {PublicIp: '127.0.0.1'}}]})},
+        ecs: {},
+        wait
+    });
+}
+
+// Counts down like a Lambda that was given a minute, by the time the handler waited
+function lambdaContext() {
+    const context = {waited: 0};
+    context.getRemainingTimeInMillis = () => 60000 - context.waited;
+    return context;
+}
+
+// Created a minute and a half ago, so that the times until now are positive
+function healthy(taskArn) {
+    const at = seconds => new Date(Date.now() - 90000 + seconds * 1000).toISOString();
+    return {
+        time: at(80),
+        detail: {
+            taskArn,
+            group: 'service:factorio-example',
+            createdAt: at(0),
+            pullStartedAt: at(20),
+            pullStoppedAt: at(60),
+            attachments: [{type: 'eni', details: [{name: 'networkInterfaceId', value: 'eni-1'}]}]
+        }
+    };
+}
+
+// The embedded metric lines the handler logged
+async function metricsOf(operation) {
+    const lines = [];
+    const log = console.log;
+    console.log = line => lines.push(line);
+    try {
+        await operation();
+    } finally {
+        console.log = log;
+    }
+    return lines.filter(line => line.startsWith('{')).map(line => JSON.parse(line));
+}
+
+test('publishes the startup time of a task once', async () => {
+    const handler = handlerWith(documentClient());
+    const taskArn = 'arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/1';
+    const commands = server.commands.length;
+
+    const metrics = await metricsOf(async () => {
+        await handler(healthy(taskArn), lambdaContext());
+        await handler(healthy(taskArn), lambdaContext());
+    });
+    assert.strictEqual(metrics.length, 1);
+    // Until the server answered just now, not until the health check passed 10 seconds ago
+    assert.ok(metrics[0].StartupTime >= 90000 && metrics[0].StartupTime < 95000, String(metrics[0].StartupTime));
+    assert.ok(metrics[0].ContainerStartTime >= 30000 && metrics[0].ContainerStartTime < 35000);
+    assert.strictEqual(metrics[0].ImagePullTime, 40000);
+    assert.deepStrictEqual(server.commands.slice(commands), ['/version']);
+});
+
+test('publishes every new task of a server', async () => {
+    const handler = handlerWith(documentClient());
+
+    const metrics = await metricsOf(async () => {
+        await handler(healthy('arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/1'), lambdaContext());
+        await handler(healthy('arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/2'), lambdaContext());
+    });
+    assert.strictEqual(metrics.length, 2);
+});
+
+// A port nothing listens on, like the RCON port of a server still loading its map
+async function closedPort() {
+    const closed = await rconServer.start();
+    await closed.close();
+    return closed.port;
+}
+
+test('waits for a healthy task that is still loading its map', async () => {
+    const port = await closedPort();
+    const context = lambdaContext();
+    let loaded;
+    const handler = handlerWith(documentClient(), {
+        port,
+        wait: async millis => {
+            context.waited += millis;
+            if (context.waited === 3 * 2000) {
+                loaded = await rconServer.start({port, respond: version});
+            }
+        }
+    });
+
+    try {
+        const metrics = await metricsOf(() =>
+            handler(healthy('arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/3'), context));
+        assert.strictEqual(context.waited, 6000);
+        assert.deepStrictEqual(loaded.commands, ['/version']);
+        assert.strictEqual(metrics.length, 1);
+        assert.ok(metrics[0].StartupTime >= 90000);
+    } finally {
+        await (loaded && loaded.close());
+    }
+});
+
+test('leaves the startup time out when the task never answers', async () => {
+    const context = lambdaContext();
+    const handler = handlerWith(documentClient(), {
+        port: await closedPort(),
+        wait: async millis => {
+            context.waited += millis;
+        }
+    });
+
+    const metrics = await metricsOf(() =>
+        handler(healthy('arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/4'), context));
+    assert.ok(context.waited > 50000);
+    assert.strictEqual(metrics.length, 1);
+    assert.strictEqual(metrics[0].StartupTime, undefined);
+    assert.strictEqual(metrics[0].ContainerStartTime, undefined);
+    assert.strictEqual(metrics[0].ImagePullTime, 40000);
+});
@@ -0,0 +1,110 @@
+const test = require('node:test');
+const assert = require('node:assert');
+
+process.env.STATUS_TABLE = 'status';
+const status = require('../status');
+
+const respond = value => ({promise: async () => value});
+
+// A table that keeps the items by serverName, without checking conditions as there is one writer here
+function documentClient() {
+    const items = new Map();
+    return {
+        items,
+        get: ({Key}) => respond({
+            Item: items.has(Key.serverName) ? structuredClone(items.get(Key.serverName)) : undefined
+        }),
+        update: ({Key, ExpressionAttributeValues: values}) => {
+            const item = items.get(Key.serverName) || {serverName: Key.serverName};
+            items.set(Key.serverName, Object.assign(item, {
+                tasks: values[':tasks'],
+                desiredCount: values[':desiredCount'],
+                revision: values[':next']
+            }));
+            return respond({});
+        },
+        scan: () => respond({Items: [...items.values()]})
+    };
+}
+
+// A service whose desired count the test sets, like the scale Lambda or an alarm would
+function ecs(service) {
+    return {
+        describeServices: ({services}) => respond({
+            services: [Object.assign({serviceName: services[0], status: 'ACTIVE'}, service)]
+        })
+    };
+}
+
+const ec2 = {
+    describeNetworkInterfaces: () => respond({NetworkInterfaces: [{Association: {PublicIp: '203.0.113.10'}}]})
+};
+
+let version = 0;
+
+function taskEvent(taskId, lastStatus, desiredStatus) {
+    return {
+        region: 'eu-west-1',
+        detail: {
+            taskArn: 'arn:aws:ecs:eu-west-1:123456789012:task/factorio-cluster/' + taskId,
+            clusterArn: 'arn:aws:ecs:eu-west-1:123456789012:cluster/factorio-cluster',
+            group: 'service:factorio-example',
+            lastStatus,
+            desiredStatus,
+            version: ++version,
+            updatedAt: new Date(Date.UTC(2024, 4, 1, 12, 0, version)).toISOString(),
+            attachments: [{type: 'eni', details: [{name: 'networkInterfaceId', value: 'eni-' + taskId}]}]
+        }
+    };
+}
+
+async function view(handlers) {
+    const response = await handlers.main({pathParameters: {serverName: 'example'}});
+    assert.strictEqual(response.statusCode, 200);
+    return JSON.parse(response.body);
+}
+
+test('takes the desired count from the service and the running count from the tasks', async () => {
+    const service = {desiredCount: 1};
+    const handlers = status.handler({documentClient: documentClient(), ec2, ecs: ecs(service)});
+
+    await handlers.onTaskEvent(taskEvent('1', 'PROVISIONING', 'RUNNING'));
+    const starting = await view(handlers);
+    assert.deepStrictEqual([starting.desiredCount, starting.runningCount], [1, 0]);
+
+    await handlers.onTaskEvent(taskEvent('1', 'RUNNING', 'RUNNING'));
+    const running = await view(handlers);
+    assert.deepStrictEqual([running.desiredCount, running.runningCount], [1, 1]);
+    assert.strictEqual(running.publicIp, '203.0.113.10');
+});
+
+test('reports a server scaled to zero while its task is still stopping', async () => {
+    const service = {desiredCount: 1};
+    const handlers = status.handler({documentClient: documentClient(), ec2, ecs: ecs(service)});
+    await handlers.onTaskEvent(taskEvent('2', 'RUNNING', 'RUNNING'));
+
+    service.desiredCount = 0;
+    await handlers.onTaskEvent(taskEvent('2', 'RUNNING', 'STOPPED'));
+    const stopping = await view(handlers);
+    assert.deepStrictEqual([stopping.desiredCount, stopping.runningCount], [0, 1]);
+});
+
+test('counts one wanted task while a deployment replaces it', async () => {
+    // The old task keeps running until the new one is healthy, both want to be RUNNING meanwhile
+    const service = {desiredCount: 1};
+    const handlers = status.handler({documentClient: documentClient(), ec2, ecs: ecs(service)});
+    await handlers.onTaskEvent(taskEvent('3', 'RUNNING', 'RUNNING'));
+    await handlers.onTaskEvent(taskEvent('4', 'PROVISIONING', 'RUNNING'));
+
+    const deploying = await view(handlers);
+    assert.deepStrictEqual([deploying.desiredCount, deploying.runningCount], [1, 1]);
+});
+
+test('reports a deleted service as not wanted', async () => {
+    const handlers = status.handler({
+        documentClient: documentClient(), ec2,
+        ecs: {describeServices: () => respond({services: [], failures: [{reason: 'MISSING'}]})}
+    });
+    await handlers.onTaskEvent(taskEvent('5', 'STOPPED', 'STOPPED'));
+    assert.strictEqual((await view(handlers)).desiredCount, 0);
+});
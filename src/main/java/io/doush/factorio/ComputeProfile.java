@@ -0,0 +1,85 @@
+package io.doush.factorio;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CPU units, memory and ephemeral storage of a server's Fargate task, checked against the combinations
+ * Fargate accepts.
+ */
+public class ComputeProfile {
+    // CPU units to the memory sizes in MiB Fargate allows with them
+    private static final Map<Integer, List<Integer>> MEMORY_BY_CPU = new TreeMap<>() {{
+        put(256, List.of(512, 1024, 2048));
+        put(512, range(1024, 4096, 1024));
+        put(1024, range(2048, 8192, 1024));
+        put(2048, range(4096, 16384, 1024));
+        put(4096, range(8192, 30720, 1024));
+        put(8192, range(16384, 61440, 4096));
+        put(16384, range(32768, 122880, 8192));
+    }};
+
+    // On-demand Linux/x86 prices per hour, only used to order profiles by cost
+    private static final double PRICE_PER_VCPU = 0.04048;
+    private static final double PRICE_PER_GIB = 0.004445;
+
+    static final ComputeProfile DEFAULT = new ComputeProfile(512, 1024, 0);
+
+    final int cpu;
+    final int memoryMiB;
+    /**
+     * Ephemeral storage in GiB, 0 for the Fargate default of 20 GiB.
+     */
+    final int ephemeralStorageGiB;
+
+    ComputeProfile(int cpu, int memoryMiB, int ephemeralStorageGiB) {
+        var memory = MEMORY_BY_CPU.get(cpu);
+        if (memory == null) {
+            throw new IllegalArgumentException("Fargate doesn't support " + cpu + " CPU units, use one of "
+                    + MEMORY_BY_CPU.keySet());
+        }
+        if (!memory.contains(memoryMiB)) {
+            throw new IllegalArgumentException("Fargate doesn't support " + memoryMiB + " MiB with " + cpu
+                    + " CPU units, use one of " + memory);
+        }
+        if (ephemeralStorageGiB != 0 && (ephemeralStorageGiB < 21 || ephemeralStorageGiB > 200)) {
+            throw new IllegalArgumentException("Ephemeral storage must be between 21 and 200 GiB, got "
+                    + ephemeralStorageGiB);
+        }
+        this.cpu = cpu;
+        this.memoryMiB = memoryMiB;
+        this.ephemeralStorageGiB = ephemeralStorageGiB;
+    }
+
+    double hourlyPrice() {
+        return cpu / 1024.0 * PRICE_PER_VCPU + memoryMiB / 1024.0 * PRICE_PER_GIB;
+    }
+
+    /**
+     * Every legal CPU and memory combination, cheapest first.
+     */
+    static List<ComputeProfile> all() {
+        var profiles = new ArrayList<ComputeProfile>();
+        MEMORY_BY_CPU.forEach((cpu, memory) -> memory.forEach(memoryMiB ->
+                profiles.add(new ComputeProfile(cpu, memoryMiB, 0))));
+        profiles.sort(Comparator.comparingDouble(ComputeProfile::hourlyPrice));
+        return profiles;
+    }
+
+    private static List<Integer> range(int from, int to, int step) {
+        var values = new ArrayList<Integer>();
+        for (int value = from; value <= to; value += step) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return cpu + " CPU / " + memoryMiB + " MiB"
+                + (ephemeralStorageGiB == 0 ? "" : " / " + ephemeralStorageGiB + " GiB");
+    }
+}
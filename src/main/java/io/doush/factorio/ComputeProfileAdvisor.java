@@ -0,0 +1,108 @@
+package io.doush.factorio;
+
+import com.amazonaws.regions.DefaultAwsRegionProviderChain;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.DoubleStream;
+
+/**
+ * Suggests a compute profile per server from the last two weeks of CPU, memory and UPS metrics.
+ * <p>
+ * Run with {@code mvn compile exec:java -Dexec.mainClass=io.doush.factorio.ComputeProfileAdvisor
+ * -Dexec.args="<clusterName> <tableName>"}. Nothing is changed, apply a suggestion by setting {@code cpu}
+ * and {@code memory} on the server row.
+ */
+public class ComputeProfileAdvisor {
+    private static final Duration LOOKBACK = Duration.ofDays(14);
+    // Headroom kept on top of the observed peaks
+    private static final double CPU_TARGET = 0.7;
+    private static final double MEMORY_TARGET = 0.8;
+    // Factorio runs at 60 UPS, a server regularly below this needs more CPU whatever the utilization says
+    private static final double MIN_UPS = 55;
+
+    private final AmazonCloudWatch cloudWatch;
+    private final String clusterName;
+
+    public ComputeProfileAdvisor(AmazonCloudWatch cloudWatch, String clusterName) {
+        this.cloudWatch = cloudWatch;
+        this.clusterName = clusterName;
+    }
+
+    public static void main(final String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: ComputeProfileAdvisor <clusterName> <tableName>");
+            System.exit(1);
+        }
+        var region = new DefaultAwsRegionProviderChain().getRegion();
+        var registry = new ServerRegistry(AmazonDynamoDBClientBuilder.standard().withRegion(region).build(),
+                Paths.get(".factorio-registry"),
+                ServerRegistry.snapshotPrefix(System.getenv("CDK_DEFAULT_ACCOUNT"), region, ""),
+                Duration.ZERO, 4, false);
+        var advisor = new ComputeProfileAdvisor(AmazonCloudWatchClientBuilder.defaultClient(), args[0]);
+        for (var server : registry.load(args[1])) {
+            System.out.println(server.serverName + ": " + advisor.recommend(server));
+        }
+    }
+
+    String recommend(ServerConfig server) {
+        var current = server.computeProfile;
+        var service = List.of(
+                new Dimension().withName("ClusterName").withValue(clusterName),
+                new Dimension().withName("ServiceName").withValue("factorio-" + server.serverName)
+        );
+        // Hourly percentiles are combined pessimistically: the highest for utilization, the lowest for UPS
+        var cpuPercent = hourly("AWS/ECS", "CPUUtilization", service, "p95").max();
+        var memoryPercent = hourly("AWS/ECS", "MemoryUtilization", service, "p99").max();
+        var ups = hourly("Factorio-" + server.serverName, "UPS", List.of(), "p5").min();
+        if (cpuPercent.isEmpty() || memoryPercent.isEmpty()) {
+            return "keep " + current + ", not enough data";
+        }
+
+        double requiredCpu = cpuPercent.getAsDouble() / 100 * current.cpu / CPU_TARGET;
+        if (ups.isPresent() && ups.getAsDouble() < MIN_UPS) {
+            requiredCpu = Math.max(requiredCpu, current.cpu * 2);
+        }
+        double requiredMemory = memoryPercent.getAsDouble() / 100 * current.memoryMiB / MEMORY_TARGET;
+
+        double cpu = requiredCpu;
+        var recommended = ComputeProfile.all().stream()
+                .filter(profile -> profile.cpu >= cpu && profile.memoryMiB >= requiredMemory)
+                .findFirst();
+        var reason = String.format("p95 CPU %.0f%%, p99 memory %.0f%%%s", cpuPercent.getAsDouble(),
+                memoryPercent.getAsDouble(),
+                ups.isPresent() ? String.format(", p5 UPS %.1f", ups.getAsDouble()) : "");
+        if (recommended.isEmpty()) {
+            return "no Fargate profile is large enough (" + reason + ")";
+        }
+        var profile = new ComputeProfile(recommended.get().cpu, recommended.get().memoryMiB,
+                current.ephemeralStorageGiB);
+        if (profile.cpu == current.cpu && profile.memoryMiB == current.memoryMiB) {
+            return "keep " + current + " (" + reason + ")";
+        }
+        return String.format("change %s to %s, %+.3f USD/hour (%s)", current, profile,
+                profile.hourlyPrice() - current.hourlyPrice(), reason);
+    }
+
+    private DoubleStream hourly(String namespace, String metricName, List<Dimension> dimensions,
+                                String statistic) {
+        var end = Instant.now();
+        return cloudWatch.getMetricStatistics(new GetMetricStatisticsRequest()
+                .withNamespace(namespace)
+                .withMetricName(metricName)
+                .withDimensions(dimensions)
+                .withStartTime(Date.from(end.minus(LOOKBACK)))
+                .withEndTime(Date.from(end))
+                .withPeriod(3600)
+                .withExtendedStatistics(statistic)
+        ).getDatapoints().stream().mapToDouble(datapoint -> datapoint.getExtendedStatistics().get(statistic));
+    }
+}
@@ -0,0 +1,107 @@
+package io.doush.factorio;
+
+import software.amazon.awscdk.services.codebuild.BuildSpec;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Buildspec for the factorio-docker image, one build per Factorio version.
+ * <p>
+ * Every image is also tagged with {@code build-<hash>}, a hash of the factorio-docker commit, the
+ * Factorio version and the platforms. If that tag is already in the repository the build only moves the
+ * version tag back to it. Otherwise the image is built with buildx for every platform in {@code PLATFORMS}
+ * and pushed as one manifest list, with a registry cache per version since buildx doesn't use the local
+ * docker layer cache.
+ * <p>
+ * With {@code LAZY_LOADING=true} a SOCI index is pushed next to each new image, which lets Fargate start
+ * the container before the whole image has been pulled.
+ * <p>
+ * Expects {@code AWS_ACCOUNT_ID}, {@code IMAGE_REPO_NAME}, {@code FACTORIO_VERSION}, {@code PLATFORMS},
+ * {@code DOCKER_COMMIT} and {@code LAZY_LOADING} in the environment.
+ */
+final class DockerBuildSpec {
+    private static final String SOCI_VERSION = "0.4.0";
+    // containerd as started by the docker daemon in CodeBuild's privileged mode
+    private static final String CONTAINERD = "/var/run/docker/containerd/containerd.sock";
+    // Media types of single and multi platform images, batch-get-image only returns the ones asked for
+    private static final String MANIFEST_TYPES = "application/vnd.docker.distribution.manifest.v2+json"
+            + " application/vnd.docker.distribution.manifest.list.v2+json"
+            + " application/vnd.oci.image.manifest.v1+json"
+            + " application/vnd.oci.image.index.v1+json";
+
+    private DockerBuildSpec() {
+    }
+
+    static BuildSpec create() {
+        return BuildSpec.fromObject(new TreeMap<>() {{
+            put("version", "0.2");
+            put("phases", new TreeMap<>() {{
+                put("pre_build", Map.of("commands", List.of(
+                        "REGISTRY=$AWS_ACCOUNT_ID.dkr.ecr.$AWS_DEFAULT_REGION.amazonaws.com",
+                        "REPOSITORY_URI=$REGISTRY/$IMAGE_REPO_NAME",
+                        "PLATFORMS=${PLATFORMS:-linux/amd64}",
+                        "BUILD_TAG=build-$(echo -n \"$DOCKER_COMMIT:$FACTORIO_VERSION:$PLATFORMS\""
+                                + " | sha256sum | cut -c1-32)",
+                        "aws ecr get-login-password | docker login --username AWS --password-stdin $REGISTRY"
+                )));
+                put("build", Map.of("commands", List.of(
+                        // Only a missing tag means the image has to be built, any other error fails the build
+                        "if DESCRIBE=$(aws ecr describe-images --repository-name $IMAGE_REPO_NAME"
+                                + " --image-ids imageTag=$BUILD_TAG 2>&1); then\n"
+                                + "  echo \"$BUILD_TAG is already built, retagging\"\n"
+                                + "  IMAGE=$(aws ecr batch-get-image --repository-name $IMAGE_REPO_NAME"
+                                + " --image-ids imageTag=$BUILD_TAG --accepted-media-types " + MANIFEST_TYPES
+                                + " --query 'images[0]' --output json)\n"
+                                // ECR refuses to put a manifest the tag already points to, that one is fine
+                                + "  if ! PUT=$(aws ecr put-image --repository-name $IMAGE_REPO_NAME"
+                                + " --image-tag $FACTORIO_VERSION"
+                                + " --image-manifest \"$(echo \"$IMAGE\" | jq -r .imageManifest)\""
+                                + " --image-manifest-media-type \"$(echo \"$IMAGE\" | jq -r .imageManifestMediaType)\""
+                                + " 2>&1) && ! echo \"$PUT\" | grep -q ImageAlreadyExistsException; then\n"
+                                + "    echo \"$PUT\"\n"
+                                + "    exit 1\n"
+                                + "  fi\n"
+                                + "  SKIP_BUILD=true\n"
+                                + "elif echo \"$DESCRIBE\" | grep -q ImageNotFoundException; then\n"
+                                + "  SKIP_BUILD=false\n"
+                                + "else\n"
+                                + "  echo \"$DESCRIBE\"\n"
+                                + "  exit 1\n"
+                                + "fi",
+                        // Registers QEMU for the non-native platforms, and a builder that can push manifest lists
+                        "if [ \"$SKIP_BUILD\" = \"false\" ]; then\n"
+                                + "  docker run --privileged --rm tonistiigi/binfmt --install all\n"
+                                + "  docker buildx create --use --driver docker-container --name factorio\n"
+                                + "  docker buildx build --platform $PLATFORMS --push"
+                                + " --cache-from type=registry,ref=$REPOSITORY_URI:cache-$FACTORIO_VERSION"
+                                + " --cache-to type=registry,ref=$REPOSITORY_URI:cache-$FACTORIO_VERSION"
+                                + ",mode=max,image-manifest=true,oci-mediatypes=true"
+                                + " --build-arg FACTORIO_VERSION=$FACTORIO_VERSION"
+                                + " -t $REPOSITORY_URI:$FACTORIO_VERSION -t $REPOSITORY_URI:$BUILD_TAG .\n"
+                                + "fi"
+                )));
+                put("post_build", Map.of("commands", List.of(
+                        // buildx already pushed both tags, one index per platform
+                        "if [ \"$CODEBUILD_BUILD_SUCCEEDING\" = \"1\" ] && [ \"$SKIP_BUILD\" = \"false\" ]"
+                                + " && [ \"$LAZY_LOADING\" = \"true\" ]; then\n"
+                                + "  curl -sSL https://github.com/awslabs/soci-snapshotter/releases/download/v" + SOCI_VERSION
+                                + "/soci-snapshotter-" + SOCI_VERSION + "-linux-amd64.tar.gz"
+                                + " | tar -xz -C /usr/local/bin soci\n"
+                                + "  PASSWORD=$(aws ecr get-login-password)\n"
+                                + "  ctr -a " + CONTAINERD + " -n soci image pull --all-platforms --user AWS:$PASSWORD"
+                                + " $REPOSITORY_URI:$BUILD_TAG\n"
+                                + "  for PLATFORM in $(echo $PLATFORMS | tr ',' ' '); do\n"
+                                + "    soci --address " + CONTAINERD + " -n soci create --platform $PLATFORM"
+                                + " $REPOSITORY_URI:$BUILD_TAG\n"
+                                + "    soci --address " + CONTAINERD + " -n soci push --platform $PLATFORM"
+                                + " --user AWS:$PASSWORD $REPOSITORY_URI:$BUILD_TAG\n"
+                                + "  done\n"
+                                + "fi"
+                )));
+            }});
+            put("env", Map.of("exported-variables", List.of("BUILD_TAG", "SKIP_BUILD")));
+        }});
+    }
+}
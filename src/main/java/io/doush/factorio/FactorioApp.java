@@ -5,6 +5,8 @@ import software.amazon.awscdk.core.App;
 import software.amazon.awscdk.core.Environment;
 import software.amazon.awscdk.core.StackProps;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 public class FactorioApp {
@@ -17,14 +19,56 @@ public class FactorioApp {
                 .account(System.getenv("CDK_DEFAULT_ACCOUNT"))
                 .region(System.getenv("CDK_DEFAULT_REGION"))
                 .build();
-        new FactorioStack(app, "factorio-stack-" + domainName.replaceAll("\\.", "-"),
+        build(app, domainName, environment, FactorioRegions.fromContext(app.getNode(), environment.getRegion()),
+                ServerRegistry.fromContext(app.getNode(), environment.getAccount(), environment.getRegion()));
+
+        app.synth();
+    }
+
+    /**
+     * Adds a cluster stack per region and one stack per server, in the region the server is placed in, to the
+     * app. Server stacks keep their name when a server moves, deploy.sh deletes the stack left behind.
+     */
+    static FactorioStack build(App app, String domainName, Environment environment, FactorioRegions regions,
+                               ServerSource serverSource) {
+        var stackName = "factorio-stack-" + domainName.replaceAll("\\.", "-");
+        var stack = new FactorioStack(app, stackName,
                 StackProps.builder()
                         .env(environment)
                         .build(),
-                domainName
+                domainName,
+                serverSource,
+                regions
         );
 
-        app.synth();
+        var clusters = new ArrayList<>(List.of(stack.cluster));
+        for (var region : regions.secondary()) {
+            clusters.add(new FactorioStack(app, stackName + "-region-" + region,
+                    StackProps.builder()
+                            .env(inRegion(environment, region))
+                            .build(),
+                    stack.cluster
+            ).cluster);
+        }
+
+        for (var cluster : clusters) {
+            for (var config : cluster.servers) {
+                new FactorioServerStack(app, stackName + "-server-" + config.serverName,
+                        StackProps.builder()
+                                .env(inRegion(environment, regions.regionOf(config)))
+                                .build(),
+                        cluster, config
+                );
+            }
+        }
+        return stack;
+    }
+
+    private static Environment inRegion(Environment environment, String region) {
+        return Environment.builder()
+                .account(environment.getAccount())
+                .region(region)
+                .build();
     }
 
     @NotNull
@@ -1,10 +1,8 @@
 package io.doush.factorio;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import org.jetbrains.annotations.NotNull;
 import software.amazon.awscdk.core.*;
+import software.amazon.awscdk.core.Stack;
 import software.amazon.awscdk.services.apigateway.LambdaIntegration;
 import software.amazon.awscdk.services.apigateway.MethodOptions;
 import software.amazon.awscdk.services.apigateway.RestApi;
@@ -17,14 +15,33 @@ import software.amazon.awscdk.services.codepipeline.actions.CodeBuildActionType;
 import software.amazon.awscdk.services.codepipeline.actions.GitHubSourceAction;
 import software.amazon.awscdk.services.codepipeline.actions.GitHubTrigger;
 import software.amazon.awscdk.services.dynamodb.*;
+import software.amazon.awscdk.services.autoscaling.AutoScalingGroup;
+import software.amazon.awscdk.services.autoscaling.PoolState;
+import software.amazon.awscdk.services.autoscaling.WarmPoolOptions;
 import software.amazon.awscdk.services.ec2.IVpc;
+import software.amazon.awscdk.services.ec2.InstanceType;
 import software.amazon.awscdk.services.ec2.Peer;
 import software.amazon.awscdk.services.ec2.Port;
 import software.amazon.awscdk.services.ec2.SecurityGroup;
+import software.amazon.awscdk.services.ec2.SubnetSelection;
+import software.amazon.awscdk.services.ec2.SubnetType;
+import software.amazon.awscdk.services.ec2.UserData;
+import software.amazon.awscdk.services.ecs.AsgCapacityProvider;
+import software.amazon.awscdk.services.ecr.CfnReplicationConfiguration;
+import software.amazon.awscdk.services.ecr.IRepository;
 import software.amazon.awscdk.services.ecr.LifecycleRule;
 import software.amazon.awscdk.services.ecr.Repository;
 import software.amazon.awscdk.services.ecr.TagStatus;
 import software.amazon.awscdk.services.ecs.Cluster;
+import software.amazon.awscdk.services.ecs.EcsOptimizedImage;
+import software.amazon.awscdk.services.efs.FileSystem;
+import software.amazon.awscdk.services.efs.LifecyclePolicy;
+import software.amazon.awscdk.services.efs.PerformanceMode;
+import software.amazon.awscdk.services.efs.ThroughputMode;
+import software.amazon.awscdk.services.events.EventPattern;
+import software.amazon.awscdk.services.events.Rule;
+import software.amazon.awscdk.services.events.Schedule;
+import software.amazon.awscdk.services.events.targets.LambdaFunction;
 import software.amazon.awscdk.services.iam.*;
 import software.amazon.awscdk.services.lambda.Runtime;
 import software.amazon.awscdk.services.lambda.*;
@@ -32,7 +49,16 @@ import software.amazon.awscdk.services.lambda.eventsources.DynamoEventSource;
 import software.amazon.awscdk.services.lambda.eventsources.DynamoEventSourceProps;
 import software.amazon.awscdk.services.route53.HostedZone;
 import software.amazon.awscdk.services.route53.HostedZoneProviderProps;
-import software.amazon.awscdk.services.s3.assets.AssetOptions;
+import software.amazon.awscdk.services.route53.IHostedZone;
+import software.amazon.awscdk.services.s3.BlockPublicAccess;
+import software.amazon.awscdk.services.s3.Bucket;
+import software.amazon.awscdk.services.s3.BucketEncryption;
+import software.amazon.awscdk.services.s3.BucketProps;
+import software.amazon.awscdk.services.s3.IBucket;
+import software.amazon.awscdk.services.s3.assets.Asset;
+import software.amazon.awscdk.services.s3.assets.AssetProps;
+import software.amazon.awscdk.services.secretsmanager.ISecret;
+import software.amazon.awscdk.services.secretsmanager.ReplicaRegion;
 import software.amazon.awscdk.services.secretsmanager.Secret;
 import software.amazon.awscdk.services.secretsmanager.SecretStringGenerator;
 
@@ -40,103 +66,249 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class FactorioCluster extends Construct {
+    // CodeBuild's Ubuntu image with buildx, CDK 1.x has no constant newer than STANDARD_5_0
+    private static final IBuildImage BUILD_IMAGE = LinuxBuildImage.fromCodeBuildImageId("aws/codebuild/standard:7.0");
+    // CDK 1.x stops at NODEJS_16_X, which Lambda has deprecated
+    private static final Runtime NODEJS_18_X = new Runtime("nodejs18.x", RuntimeFamily.NODEJS);
+    // Branch of factorio-docker the image is built from. The dockerBranch context value points it at a branch that
+    // takes the environment FactorioServer sets, see the README.
+    static final String DOCKER_BRANCH = "master";
+
+    final String domainName;
+    final Cluster cluster;
+    final ISecret rconSecret;
+    final IHostedZone hostedZone;
+    final IRepository ecrRepo;
+    final Role executionRole;
+    final Role taskRole;
+    final SecurityGroup serverSecurityGroup;
+    /**
+     * File system of the servers with storage=efs, null while there are none.
+     */
+    final FileSystem fileSystem;
+    final IBucket modCache;
+    final Asset firelensConfig;
+    /**
+     * Capacity for servers with placement ec2, null while there are none.
+     */
+    final AsgCapacityProvider ec2CapacityProvider;
+    /**
+     * The servers placed in this cluster's region.
+     */
+    final List<ServerConfig> servers;
+    /**
+     * Every server in the table, in any region.
+     */
+    final List<ServerConfig> allServers;
+    final FactorioRegions regions;
+    final String tableName;
+    // Oldest Factorio version whose headless server runs on arm64, null while none does
+    private final String arm64MinVersion;
+
+    /**
+     * The cluster in the primary region, which also owns the server table, the API and the pipeline.
+     */
     public FactorioCluster(@NotNull Construct scope, @NotNull String id, String domainName,
-                           IVpc vpc, String region, String account) {
+                           IVpc vpc, String region, String account, ServerSource serverSource,
+                           FactorioRegions regions) {
+        this(scope, id, domainName, vpc, region, account, serverSource, regions, null);
+    }
+
+    /**
+     * The cluster in one of the other regions, for the servers placed there.
+     */
+    public FactorioCluster(@NotNull Construct scope, @NotNull String id, IVpc vpc, String region, String account,
+                           FactorioCluster primaryCluster) {
+        this(scope, id, primaryCluster.domainName, vpc, region, account, tableName -> primaryCluster.allServers,
+                primaryCluster.regions, primaryCluster);
+    }
+
+    private FactorioCluster(@NotNull Construct scope, @NotNull String id, String domainName,
+                            IVpc vpc, String region, String account, ServerSource serverSource,
+                            FactorioRegions regions, FactorioCluster primaryCluster) {
         super(scope, id);
+        this.domainName = domainName;
+        this.regions = regions;
+        var primary = primaryCluster == null;
+        var multiRegion = regions.isMultiRegion();
+        // Cross-region references aren't possible, so with more than one region the other regions find the
+        // resources the primary region shares by these names
+        var sharedName = "factorio-" + domainName.replaceAll("\\.", "-");
+        var modCacheName = sharedName + "-mods-" + account;
+        if (multiRegion && (Token.isUnresolved(account) || modCacheName.length() > 63)) {
+            throw new IllegalArgumentException("regions needs an explicit account, and the mod cache bucket name "
+                    + modCacheName + " must be at most 63 characters");
+        }
 
-        var tableName = this.getNode().getPath().replaceAll("/", "-");
-        var dynamoTable = Table.Builder.create(this, "table")
+        this.tableName = primary ? this.getNode().getPath().replaceAll("/", "-") : primaryCluster.tableName;
+        this.allServers = serverSource.load(tableName);
+        var dynamoTable = primary ? Table.Builder.create(this, "table")
                 .tableName(tableName)
                 .billingMode(BillingMode.PAY_PER_REQUEST)
                 .partitionKey(Attribute.builder().name("serverName").type(AttributeType.STRING).build())
                 .removalPolicy(RemovalPolicy.DESTROY)
                 .serverSideEncryption(true)
-                .stream(StreamViewType.NEW_IMAGE)
-                .build();
+                // The old image lets lambda/pipeline.js ignore writes that only changed reported latencies
+                .stream(StreamViewType.NEW_AND_OLD_IMAGES)
+                .build()
+                : Table.fromTableArn(this, "table",
+                "arn:aws:dynamodb:" + regions.primary + ":" + account + ":table/" + tableName);
 
-        var cluster = Cluster.Builder.create(this, "cluster")
+        this.cluster = Cluster.Builder.create(this, "cluster")
+                // The other regions' clusters are found by this name, lambda/scale.js looks for a server's service
+                // in each of them
+                .clusterName(primary ? null : sharedName)
                 .vpc(vpc)
-                .containerInsights(true)
-                .build();
-
-        String domainNameUnderlined = domainName.replaceAll("\\.", "_");
-        var api = RestApi.Builder.create(this, "restApi")
-                .restApiName("factorio_" + domainNameUnderlined)
-                .build();
-
-        var commonLayer = LayerVersion.Builder.create(this, "common-layer")
-                .compatibleRuntimes(List.of(Runtime.NODEJS_12_X))
-                .code(Code.fromAsset("lambda"))
+                // Per task CPU and memory at a cost per metric, the game metrics are on the dashboards either way
+                .containerInsights(FactorioContext.getBoolean(this.getNode(), "containerInsights", false))
+                .enableFargateCapacityProviders(true)
                 .build();
 
-
-        var rconSecret = Secret.Builder.create(this, "rconSecret")
+        // Replicated to the other regions under the same name
+        this.rconSecret = primary ? Secret.Builder.create(this, "rconSecret")
+                .secretName(multiRegion ? sharedName + "-rcon" : null)
+                .replicaRegions(multiRegion ? regions.secondary().stream()
+                        .map(replica -> ReplicaRegion.builder().region(replica).build())
+                        .collect(Collectors.toList()) : null)
                 .generateSecretString(SecretStringGenerator.builder()
                         .excludePunctuation(true)
                         .build())
-                .build();
+                .build()
+                : Secret.fromSecretNameV2(this, "rconSecret", sharedName + "-rcon");
 
-        var lambdaRcon = Function.Builder.create(this, "lambdaRcon")
-                .runtime(Runtime.NODEJS_12_X)
-                .layers(List.of(commonLayer))
-                .code(Code.fromAsset("lambda", AssetOptions.builder()
-                        .exclude(List.of("node_modules"))
-                        .build())
-                )
-                .handler("rcon.main")
-                .environment(new TreeMap<>() {{
-                    put("DOMAIN_NAME", domainName);
-                    put("SECRET_NAME", rconSecret.getSecretArn());
-                }})
-                .build();
+        RestApi api = null;
+        if (primary) {
+            String domainNameUnderlined = domainName.replaceAll("\\.", "_");
+            api = RestApi.Builder.create(this, "restApi")
+                    .restApiName("factorio_" + domainNameUnderlined)
+                    .build();
 
-        rconSecret.grantRead(lambdaRcon);
+            // Connects by DNS name, so it reaches servers in any region
+            var lambdaRcon = lambdaBuilder("lambdaRcon", "rcon.main")
+                    .environment(new TreeMap<>() {{
+                        put("DOMAIN_NAME", domainName);
+                        put("SECRET_NAME", rconSecret.getSecretArn());
+                    }})
+                    // Connecting and sending time out after 5 seconds each and are retried once, also for every
+                    // server of a fan-out and every command of a batch as those run in parallel. API Gateway
+                    // gives up after 29 seconds.
+                    .timeout(Duration.seconds(29))
+                    .build();
 
-        api.getRoot().addResource("rcon").addResource("{serverName}").addMethod("POST",
-                LambdaIntegration.Builder.create(lambdaRcon)
-                        .build(),
-                MethodOptions.builder()
-                        .apiKeyRequired(true)
-                        .build()
-        );
+            rconSecret.grantRead(lambdaRcon);
+            var rconTarget = provisioned(lambdaRcon, "rconProvisionedConcurrency");
 
-        var lambdaScale = Function.Builder.create(this, "lambdaScale")
-                .runtime(Runtime.NODEJS_12_X)
-                .layers(List.of(commonLayer))
-                .code(Code.fromAsset("lambda", AssetOptions.builder()
-                        .exclude(List.of("node_modules"))
-                        .build())
-                )
-                .handler("scale.main")
-                .environment(Collections.singletonMap("CLUSTER", cluster.getClusterName()))
-                .build();
+            var rconResource = api.getRoot().addResource("rcon");
+            var rconServerResource = rconResource.addResource("{serverName}");
+            rconServerResource.addMethod("POST",
+                    LambdaIntegration.Builder.create(rconTarget)
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
+            );
 
-        api.getRoot().addResource("scale").addResource("{service}").addMethod("PUT",
-                LambdaIntegration.Builder.create(lambdaScale)
-                        .build(),
-                MethodOptions.builder()
-                        .apiKeyRequired(true)
-                        .build()
-        );
+            // {"commands": [...]} runs the commands in order over one connection
+            rconServerResource.addResource("batch").addMethod("POST",
+                    LambdaIntegration.Builder.create(rconTarget)
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
+            );
 
-        var hostedZone = HostedZone.fromLookup(this, "hostedZone",
+            // {"servers": [...], "command": "..."} runs one command on many servers in parallel
+            rconResource.addMethod("POST",
+                    LambdaIntegration.Builder.create(rconTarget)
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
+            );
+
+            var lambdaScale = lambdaBuilder("lambdaScale", "scale.main")
+                    .environment(new TreeMap<>() {{
+                        put("CLUSTER", cluster.getClusterName());
+                        put("REGION_CLUSTER", sharedName);
+                        put("REGIONS", String.join(",", regions.all));
+                    }})
+                    .build();
+
+            api.getRoot().addResource("scale").addResource("{service}").addMethod("PUT",
+                    LambdaIntegration.Builder.create(provisioned(lambdaScale, "scaleProvisionedConcurrency"))
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
+            );
+
+            // Server stacks are deployed separately, so this must not depend on which servers exist
+            lambdaScale.addToRolePolicy(PolicyStatement.Builder.create()
+                    .resources(List.of(
+                            "arn:aws:ecs:" + region + ":" + account + ":service/" + cluster.getClusterName()
+                                    + "/factorio-*",
+                            "arn:aws:ecs:*:" + account + ":service/" + sharedName + "/factorio-*"))
+                    .actions(List.of("ecs:UpdateService", "ecs:DescribeServices"))
+                    .build());
+
+            // Players' latencies to each region, which decide where servers with region=auto run
+            var latencyLambda = lambdaBuilder("latencyLambda", "latency.main")
+                    .environment(new TreeMap<>() {{
+                        put("SERVER_TABLE", tableName);
+                        put("REGIONS", String.join(",", regions.all));
+                    }})
+                    .build();
+            dynamoTable.grantReadWriteData(latencyLambda);
+
+            api.getRoot().addResource("latency").addResource("{serverName}").addMethod("PUT",
+                    LambdaIntegration.Builder.create(latencyLambda)
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
+            );
+        }
+
+        this.hostedZone = HostedZone.fromLookup(this, "hostedZone",
                 HostedZoneProviderProps.builder()
                         .domainName(domainName)
                         .build()
         );
 
-        var ecrRepo = Repository.Builder.create(this, "repository")
-                .removalPolicy(RemovalPolicy.DESTROY)
-                .lifecycleRules(List.of(
-                        LifecycleRule.builder()
-                                .tagStatus(TagStatus.UNTAGGED)
-                                .maxImageAge(Duration.days(1))
-                                .build()
-                ))
-                .build();
+        if (primary) {
+            this.ecrRepo = Repository.Builder.create(this, "repository")
+                    .repositoryName(multiRegion ? sharedName : null)
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .lifecycleRules(imageLifecycleRules())
+                    .build();
+
+            if (multiRegion) {
+                // Registry wide, images pushed by the pipeline show up in the other regions within minutes
+                CfnReplicationConfiguration.Builder.create(this, "repositoryReplication")
+                        .replicationConfiguration(CfnReplicationConfiguration.ReplicationConfigurationProperty.builder()
+                                .rules(List.of(CfnReplicationConfiguration.ReplicationRuleProperty.builder()
+                                        .destinations(regions.secondary().stream()
+                                                .map(destination -> CfnReplicationConfiguration
+                                                        .ReplicationDestinationProperty.builder()
+                                                        .region(destination)
+                                                        .registryId(account)
+                                                        .build())
+                                                .collect(Collectors.toList()))
+                                        .repositoryFilters(List.of(CfnReplicationConfiguration
+                                                .RepositoryFilterProperty.builder()
+                                                .filter(sharedName)
+                                                .filterType("PREFIX_MATCH")
+                                                .build()))
+                                        .build()))
+                                .build())
+                        .build();
+            }
+        } else {
+            this.ecrRepo = Repository.fromRepositoryName(this, "repository", sharedName);
+        }
 
         ServicePrincipal ecsTasksPrincipal = new ServicePrincipal("ecs-tasks.amazonaws.com");
-        var executionRole = Role.Builder.create(this, "executionRole")
+        this.executionRole = Role.Builder.create(this, "executionRole")
                 .managedPolicies(List.of(ManagedPolicy
                         .fromAwsManagedPolicyName("service-role/AmazonECSTaskExecutionRolePolicy")))
                 .assumedBy(ecsTasksPrincipal)
@@ -144,76 +316,344 @@ public class FactorioCluster extends Construct {
 
         ecrRepo.grantPull(executionRole);
 
-        var taskRole = Role.Builder.create(this, "taskRole")
-                .managedPolicies(List.of(
-                        ManagedPolicy.fromAwsManagedPolicyName("service-role" +
-                                "/AmazonECSTaskExecutionRolePolicy")
-                ))
-                .inlinePolicies(new TreeMap<>() {{
-                    put("FactorioRoute53", PolicyDocument.Builder.create()
-                            .statements(List.of(
-                                    PolicyStatement.Builder.create()
-                                            .actions(List.of("route53:ChangeResourceRecordSets"))
-                                            .resources(List.of(hostedZone.getHostedZoneArn()))
-                                            .build()
-                            ))
-                            .build());
-                    put("FactorioCloudwatch", PolicyDocument.Builder.create()
-                            .statements(List.of(
-                                    PolicyStatement.Builder.create()
-                                            .actions(List.of("cloudwatch:PutMetricData"))
-                                            .resources(List.of("*"))
-                                            .build()
-                            ))
-                            .build());
-                }})
-                .assumedBy(ecsTasksPrincipal)
-                .build();
-
-        rconSecret.grantRead(taskRole);
-
-        var serverSecurityGroup = SecurityGroup.Builder.create(this, "serverSecurityGroup")
+        this.serverSecurityGroup = SecurityGroup.Builder.create(this, "serverSecurityGroup")
                 .vpc(vpc)
                 .build();
         serverSecurityGroup.addIngressRule(Peer.anyIpv4(), Port.udp(34197));
         serverSecurityGroup.addIngressRule(Peer.anyIpv4(), Port.tcp(27015));
         serverSecurityGroup.addEgressRule(Peer.anyIpv4(), Port.allTraffic());
 
-        List<Map<String, AttributeValue>> items = new ArrayList<>();
-        try {
-            var dynamoClient = AmazonDynamoDBClientBuilder.standard()
-                    .withRegion(System.getenv("CDK_DEFAULT_REGION"))
+        // Mods of all servers, keyed by name, version and hash, see ModReference. Servers in the other regions
+        // download them from the primary region when they start.
+        this.modCache = primary ? new Bucket(this, "modCache", BucketProps.builder()
+                .bucketName(multiRegion ? modCacheName : null)
+                .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
+                .encryption(BucketEncryption.S3_MANAGED)
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .build()
+        ) : Bucket.fromBucketName(this, "modCache", modCacheName);
+
+        // Fluent Bit filters and outputs for servers with logRouting=firelens
+        this.firelensConfig = new Asset(this, "firelensConfig", AssetProps.builder()
+                .path("firelens/factorio.conf")
+                .build());
+
+        this.taskRole = newTaskRole(this, "taskRole");
+
+        // Tasks whose startup time was published, so that later events of the same task are ignored
+        var startupTable = Table.Builder.create(this, "startupTable")
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .partitionKey(Attribute.builder().name("taskArn").type(AttributeType.STRING).build())
+                .timeToLiveAttribute("expiresAt")
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .serverSideEncryption(true)
+                .build();
+
+        // Time from a task being created (right after a scale call) until it answers over RCON
+        var startupMetricsLambda = lambdaBuilder("startupMetricsLambda", "startup.main")
+                .environment(new TreeMap<>() {{
+                    put("STARTUP_TABLE", startupTable.getTableName());
+                    put("SECRET_NAME", rconSecret.getSecretArn());
+                }})
+                // Polls the server from its health check passing until the map is loaded
+                .timeout(Duration.minutes(10))
+                .build();
+        startupTable.grantWriteData(startupMetricsLambda);
+        rconSecret.grantRead(startupMetricsLambda);
+        startupMetricsLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                // Instances for tasks on EC2, which use host networking
+                .actions(List.of("ec2:DescribeNetworkInterfaces", "ec2:DescribeInstances",
+                        "ecs:DescribeContainerInstances"))
+                .resources(List.of("*"))
+                .build());
+
+        Rule.Builder.create(this, "taskHealthyRule")
+                .eventPattern(EventPattern.builder()
+                        .source(List.of("aws.ecs"))
+                        .detailType(List.of("ECS Task State Change"))
+                        .detail(new TreeMap<>() {{
+                            put("clusterArn", List.of(cluster.getClusterArn()));
+                            put("lastStatus", List.of("RUNNING"));
+                            // A task that is being stopped still reports RUNNING and HEALTHY for a while
+                            put("desiredStatus", List.of("RUNNING"));
+                            put("healthStatus", List.of("HEALTHY"));
+                        }})
+                        .build())
+                .targets(List.of(new LambdaFunction(startupMetricsLambda)))
+                .build();
+
+        // Materialized fleet status, kept current by task state changes and a PlayersOnline poll, so that
+        // GET /status never has to call ECS or CloudWatch. A global table with more than one region, each region
+        // writes the status of its own servers to its replica.
+        var statusTable = primary ? Table.Builder.create(this, "statusTable")
+                .tableName(multiRegion ? sharedName + "-status" : null)
+                .replicationRegions(multiRegion ? regions.secondary() : null)
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .partitionKey(Attribute.builder().name("serverName").type(AttributeType.STRING).build())
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .serverSideEncryption(true)
+                .build()
+                : Table.fromTableName(this, "statusTable", sharedName + "-status");
+
+        var statusTaskEventLambda = lambdaBuilder("statusTaskEventLambda", "status.onTaskEvent")
+                .environment(Collections.singletonMap("STATUS_TABLE", statusTable.getTableName()))
+                .build();
+        statusTable.grantReadWriteData(statusTaskEventLambda);
+        statusTaskEventLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                // Instances for tasks on EC2, which use host networking
+                .actions(List.of("ec2:DescribeNetworkInterfaces", "ec2:DescribeInstances",
+                        "ecs:DescribeContainerInstances"))
+                .resources(List.of("*"))
+                .build());
+        statusTaskEventLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .actions(List.of("ecs:DescribeServices"))
+                .resources(List.of("arn:aws:ecs:" + region + ":" + account + ":service/" + cluster.getClusterName()
+                        + "/factorio-*"))
+                .build());
+
+        Rule.Builder.create(this, "taskStatusRule")
+                .eventPattern(EventPattern.builder()
+                        .source(List.of("aws.ecs"))
+                        .detailType(List.of("ECS Task State Change"))
+                        .detail(Collections.singletonMap("clusterArn", List.of(cluster.getClusterArn())))
+                        .build())
+                .targets(List.of(new LambdaFunction(statusTaskEventLambda)))
+                .build();
+
+        // Keeps {serverName}.factorio.{domain} pointed at the server's task
+        var dnsTtl = FactorioContext.getInt(this.getNode(), "dnsTtl", 30);
+        var dnsLambda = lambdaBuilder("dnsLambda", "dns.main")
+                .environment(new TreeMap<>() {{
+                    put("HOSTED_ZONE", hostedZone.getHostedZoneId());
+                    put("DOMAIN", "factorio." + domainName);
+                    put("DNS_TTL", Integer.toString(dnsTtl));
+                }})
+                // Waits for the change to be in sync to measure the cut-over
+                .timeout(Duration.minutes(2))
+                .build();
+        dnsLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .actions(List.of("route53:ChangeResourceRecordSets", "route53:ListResourceRecordSets"))
+                .resources(List.of(hostedZone.getHostedZoneArn()))
+                .build());
+        dnsLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .actions(List.of("route53:GetChange", "ec2:DescribeNetworkInterfaces", "ec2:DescribeInstances",
+                        "ecs:DescribeContainerInstances", "ecs:ListTasks"))
+                .resources(List.of("*"))
+                .build());
+
+        Rule.Builder.create(this, "taskDnsRule")
+                .eventPattern(EventPattern.builder()
+                        .source(List.of("aws.ecs"))
+                        .detailType(List.of("ECS Task State Change"))
+                        .detail(Collections.singletonMap("clusterArn", List.of(cluster.getClusterArn())))
+                        .build())
+                .targets(List.of(new LambdaFunction(dnsLambda)))
+                .build();
+
+        var statusMetricsLambda = lambdaBuilder("statusMetricsLambda", "status.refreshMetrics")
+                .environment(Collections.singletonMap("STATUS_TABLE", statusTable.getTableName()))
+                .timeout(Duration.minutes(1))
+                .build();
+        statusTable.grantReadWriteData(statusMetricsLambda);
+        statusMetricsLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .actions(List.of("cloudwatch:GetMetricData"))
+                .resources(List.of("*"))
+                .build());
+
+        Rule.Builder.create(this, "statusMetricsRule")
+                .schedule(Schedule.rate(Duration.minutes(1)))
+                .targets(List.of(new LambdaFunction(statusMetricsLambda)))
+                .build();
+
+        // Measures UPS and RCON response time of every running server, and replaces servers that stall
+        var probeLambda = lambdaBuilder("probeLambda", "probe.main")
+                .environment(new TreeMap<>() {{
+                    put("SERVER_TABLE", tableName);
+                    put("SERVER_TABLE_REGION", regions.primary);
+                    put("STATUS_TABLE", statusTable.getTableName());
+                    put("SECRET_NAME", rconSecret.getSecretArn());
+                    put("CLUSTER", cluster.getClusterName());
+                }})
+                .timeout(Duration.minutes(1))
+                .build();
+        dynamoTable.grantReadData(probeLambda);
+        statusTable.grantReadWriteData(probeLambda);
+        rconSecret.grantRead(probeLambda);
+        probeLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .resources(List.of("arn:aws:ecs:" + region + ":" + account + ":task/" +
+                        cluster.getClusterName() + "/*"))
+                .actions(List.of("ecs:StopTask"))
+                .build());
+
+        Rule.Builder.create(this, "probeRule")
+                .schedule(Schedule.rate(Duration.minutes(1)))
+                .targets(List.of(new LambdaFunction(probeLambda)))
+                .build();
+
+        if (primary) {
+            var lambdaStatus = lambdaBuilder("lambdaStatus", "status.main")
+                    .environment(Collections.singletonMap("STATUS_TABLE", statusTable.getTableName()))
                     .build();
-            items = dynamoClient.scan(tableName, List.of(
-                    "serverName",
-                    "version"
-            )).getItems();
-        } catch (ResourceNotFoundException ex) {
-            //System.err.println("Table " + tableName + " does not exist (yet)");
-            //ex.printStackTrace(System.err);
-        } catch (Exception ex) {
-            //System.err.println("Failed to fetch from DynamoDB");
-            //ex.printStackTrace(System.err);
-        }
+            statusTable.grantReadData(lambdaStatus);
 
-        for (var item : items) {
-            var serverName = item.get("serverName").getS();
-            var version = item.get("version").getS();
-            var server = new FactorioServer(this, "factorio-server-" + serverName, serverName,
-                    domainName, version, hostedZone, serverSecurityGroup,
-                    cluster, executionRole, taskRole, ecrRepo, rconSecret
+            var statusResource = api.getRoot().addResource("status");
+            statusResource.addMethod("GET",
+                    LambdaIntegration.Builder.create(lambdaStatus)
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
             );
-            lambdaScale.addToRolePolicy(PolicyStatement.Builder.create()
-                    .resources(List.of("arn:aws:ecs:" + region + ":" + account + ":service/" +
-                            cluster.getClusterName() + "/" + server.service.getServiceName()))
-                    .actions(List.of("ecs:UpdateService"))
-                    .build());
+            statusResource.addResource("{serverName}").addMethod("GET",
+                    LambdaIntegration.Builder.create(lambdaStatus)
+                            .build(),
+                    MethodOptions.builder()
+                            .apiKeyRequired(true)
+                            .build()
+            );
+        }
+
+        this.servers = allServers.stream()
+                .filter(server -> regions.regionOf(server).equals(region))
+                .collect(Collectors.toList());
+        this.arm64MinVersion = FactorioContext.getString(this.getNode(), "arm64MinVersion", null);
+        for (var server : servers) {
+            if (server.architecture.equals(ServerConfig.ARM64) && !runsOnArm64(server)) {
+                Annotations.of(this).addInfo(server.serverName + " falls back to " + ServerConfig.X86_64
+                        + ", version " + server.version + " has no arm64 build");
+            }
         }
 
+        var ec2Servers = servers.stream()
+                .filter(server -> server.placement.equals(ServerConfig.EC2))
+                .collect(Collectors.toList());
+        this.ec2CapacityProvider = ec2Servers.isEmpty() ? null : addEc2Capacity(vpc, ec2Servers);
+        this.fileSystem = servers.stream().anyMatch(server -> server.storage.equals(ServerConfig.EFS))
+                ? addFileSystem(vpc)
+                : null;
+
+        // Dashboard names are global, and each region's dashboard shows the servers in that region
+        FactorioDashboards.fleet(this, primary ? sharedName : sharedName + "-" + region, cluster.getClusterName());
+
+        // Saves and moves Spot servers to on-demand Fargate on an interruption or when Spot has no capacity.
+        // Invoke it with lambda/events/spot-interruption.json to simulate an interruption, lambda/test/spot.test.js
+        // does the same against stubbed clients.
+        var spotLambda = lambdaBuilder("spotLambda", "spot.main")
+                .environment(new TreeMap<>() {{
+                    put("CLUSTER", cluster.getClusterName());
+                    put("SECRET_NAME", rconSecret.getSecretArn());
+                }})
+                // Waits for the interrupted task to stop, which takes up to the two minute notice
+                .timeout(Duration.minutes(5))
+                .build();
+        rconSecret.grantRead(spotLambda);
+        spotLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .resources(List.of("arn:aws:ecs:" + region + ":" + account + ":service/" +
+                        cluster.getClusterName() + "/factorio-*"))
+                .actions(List.of("ecs:UpdateService", "ecs:DescribeServices"))
+                .build());
+        // Suspends the PlayersOnline scaling of a service while it is handed over
+        spotLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .actions(List.of("application-autoscaling:RegisterScalableTarget",
+                        "application-autoscaling:DescribeScalableTargets"))
+                .resources(List.of("*"))
+                .build());
+        spotLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .resources(List.of("arn:aws:ecs:" + region + ":" + account + ":task/" +
+                        cluster.getClusterName() + "/*"))
+                .actions(List.of("ecs:DescribeTasks"))
+                .build());
+        spotLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                .actions(List.of("ec2:DescribeNetworkInterfaces"))
+                .resources(List.of("*"))
+                .build());
+
+        Rule.Builder.create(this, "spotInterruptionRule")
+                .eventPattern(EventPattern.builder()
+                        .source(List.of("aws.ecs"))
+                        .detailType(List.of("ECS Task State Change"))
+                        .detail(new TreeMap<>() {{
+                            put("clusterArn", List.of(cluster.getClusterArn()));
+                            put("stopCode", List.of("SpotInterruption"));
+                            // Only the notice, while the task can still save. The same stopCode is on every
+                            // later state change of the task.
+                            put("lastStatus", List.of("RUNNING"));
+                            put("desiredStatus", List.of("STOPPED"));
+                        }})
+                        .build())
+                .targets(List.of(new LambdaFunction(spotLambda)))
+                .build();
+
+        Rule.Builder.create(this, "spotPlacementFailureRule")
+                .eventPattern(EventPattern.builder()
+                        .source(List.of("aws.ecs"))
+                        .detailType(List.of("ECS Service Action"))
+                        .detail(new TreeMap<>() {{
+                            put("clusterArn", List.of(cluster.getClusterArn()));
+                            put("eventName", List.of("SERVICE_TASK_PLACEMENT_FAILURE"));
+                        }})
+                        .build())
+                .targets(List.of(new LambdaFunction(spotLambda)))
+                .build();
+
+        if (primary) {
+            addPipeline(dynamoTable, account);
+        }
+
+        // The SDK clients are created once per instance, keep-alive lets warm invocations reuse their connections
+        for (var child : this.getNode().getChildren()) {
+            if (child instanceof Function) {
+                ((Function) child).addEnvironment("AWS_NODEJS_CONNECTION_REUSE_ENABLED", "1");
+            }
+        }
+    }
+
+    /**
+     * Expires untagged images and old builds, but never the image a version tag of a server points to. That
+     * image also has a {@code build-} tag, and an image matched by a rule isn't expired by rules of lower
+     * priority, so the versions' rules come first.
+     */
+    private List<LifecycleRule> imageLifecycleRules() {
+        var rules = new ArrayList<LifecycleRule>();
+        rules.add(LifecycleRule.builder()
+                .rulePriority(1)
+                .tagStatus(TagStatus.UNTAGGED)
+                .maxImageAge(Duration.days(1))
+                .build());
+        // A rule per version, as a rule with several prefixes only matches images that have all of them. A
+        // prefix may match longer versions too, the count is high enough that they are all kept.
+        allServers.stream()
+                .map(server -> server.version)
+                .distinct()
+                .sorted()
+                .forEach(version -> rules.add(LifecycleRule.builder()
+                        .rulePriority(rules.size() + 1)
+                        .description("Keeps the image of version " + version)
+                        .tagStatus(TagStatus.TAGGED)
+                        .tagPrefixList(List.of(version))
+                        .maxImageCount(1000)
+                        .build()));
+        rules.add(LifecycleRule.builder()
+                .rulePriority(rules.size() + 1)
+                .tagStatus(TagStatus.TAGGED)
+                .tagPrefixList(List.of("build-"))
+                .maxImageCount(100)
+                .build());
+        return rules;
+    }
+
+    /**
+     * Builds the images and deploys the stacks of every region. Started by changes to the server table,
+     * which also feeds the mod cache.
+     */
+    private void addPipeline(ITable dynamoTable, String account) {
+        var lazyLoading = FactorioContext.getBoolean(this.getNode(), "lazyLoading", true);
         var codeBuildDocker = PipelineProject.Builder.create(this, "dockerCodeBuild")
+                .buildSpec(DockerBuildSpec.create())
                 .environment(BuildEnvironment.builder()
                         .computeType(ComputeType.SMALL)
-                        .buildImage(LinuxBuildImage.STANDARD_3_0)
+                        // buildx and QEMU for the arm64 half of the manifest
+                        .buildImage(BUILD_IMAGE)
                         .environmentVariables(Collections.singletonMap(
                                 "FACTORIO_VERSION", BuildEnvironmentVariable.builder()
                                         .type(BuildEnvironmentVariableType.PLAINTEXT)
@@ -225,11 +665,14 @@ public class FactorioCluster extends Construct {
                 .build();
 
         ecrRepo.grantPullPush(codeBuildDocker.getGrantPrincipal());
+        // The buildspec looks up the build tag before deciding to build
+        ecrRepo.grant(codeBuildDocker.getGrantPrincipal(), "ecr:DescribeImages");
 
         var codeBuildCdk = PipelineProject.Builder.create(this, "cdkCodeBuild")
                 .environment(BuildEnvironment.builder()
                         .computeType(ComputeType.SMALL)
-                        .buildImage(LinuxBuildImage.STANDARD_3_0)
+                        // Has the nodejs 18 and corretto11 runtimes buildspec.yml asks for
+                        .buildImage(BUILD_IMAGE)
                         .environmentVariables(Collections.singletonMap(
                                 "DOMAIN_NAME", BuildEnvironmentVariable.builder()
                                         .type(BuildEnvironmentVariableType.PLAINTEXT)
@@ -253,19 +696,30 @@ public class FactorioCluster extends Construct {
                 .restartExecutionOnUpdate(true)
                 .build();
 
-        var triggerPipelineLambda = Function.Builder.create(this, "triggerPipelineLambda")
-                .runtime(Runtime.NODEJS_12_X)
-                .layers(List.of(commonLayer))
-                .code(Code.fromAsset("lambda", AssetOptions.builder()
-                        .exclude(List.of("node_modules"))
-                        .build())
-                )
-                .handler("pipeline.main")
-                .environment(Collections.singletonMap("PIPELINE", codePipeline.getPipelineName()))
+        // Last state deploy.sh deployed per server and the one it should deploy next, so repeated writes of a
+        // deployed row are ignored while a failed deploy is retried
+        var deployStateTable = Table.Builder.create(this, "deployStateTable")
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .partitionKey(Attribute.builder().name("serverName").type(AttributeType.STRING).build())
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .serverSideEncryption(true)
+                .build();
+
+        var triggerPipelineLambda = lambdaBuilder("triggerPipelineLambda", "pipeline.main")
+                .environment(new TreeMap<>() {{
+                    put("PIPELINE", codePipeline.getPipelineName());
+                    put("STATE_TABLE", deployStateTable.getTableName());
+                }})
                 .events(List.of(
                         new DynamoEventSource(dynamoTable, DynamoEventSourceProps.builder()
                                 .batchSize(1000)
                                 .startingPosition(StartingPosition.LATEST)
+                                .maxBatchingWindow(Duration.seconds(
+                                        FactorioContext.getInt(this.getNode(), "pipelineDebounceSeconds", 60)))
+                                // Splits a failing batch down to the record that fails instead of holding up
+                                // the stream until it expires, a record is dropped after the retries
+                                .retryAttempts(3)
+                                .bisectBatchOnError(true)
                                 .build()
                         )
                 ))
@@ -276,6 +730,28 @@ public class FactorioCluster extends Construct {
                 .resources(List.of(codePipeline.getPipelineArn()))
                 .build()
         );
+        deployStateTable.grantReadWriteData(triggerPipelineLambda);
+
+        // Downloads mods that rows refer to into the cache, usually well before the pipeline deploys them
+        var modsLambda = lambdaBuilder("modsLambda", "mods.main")
+                .environment(new TreeMap<>() {{
+                    put("MOD_CACHE_BUCKET", modCache.getBucketName());
+                    put("CREDENTIALS_SECRET", "FactorioCredentials");
+                }})
+                .memorySize(512)
+                .timeout(Duration.minutes(15))
+                .events(List.of(
+                        new DynamoEventSource(dynamoTable, DynamoEventSourceProps.builder()
+                                .batchSize(100)
+                                .startingPosition(StartingPosition.LATEST)
+                                .retryAttempts(3)
+                                .build()
+                        )
+                ))
+                .build();
+        modCache.grantReadWrite(modsLambda);
+        // FactorioUsername and FactorioToken, next to the GitHub token
+        Secret.fromSecretNameV2(this, "credentials", "FactorioCredentials").grantRead(modsLambda);
 
         codePipeline.getRole().grant(codeBuildCdk.getGrantPrincipal(), "*");
         codePipeline.getRole().grant(codeBuildDocker.getGrantPrincipal(), "*");
@@ -283,12 +759,13 @@ public class FactorioCluster extends Construct {
         codePipeline.addStage(StageOptions.builder()
                 .stageName("Source")
                 .actions(List.of(
+                        // Pinned to the branch with the container contract these stacks expect, see the README
                         GitHubSourceAction.Builder.create()
                                 .actionName("Docker-Image")
                                 .owner("Jinxit")
                                 .repo("factorio-docker")
                                 .trigger(GitHubTrigger.WEBHOOK)
-                                .branch("master")
+                                .branch(FactorioContext.getString(this.getNode(), "dockerBranch", DOCKER_BRANCH))
                                 .variablesNamespace("factorio-docker-ns")
                                 .output(Artifact.artifact("factorio-docker"))
                                 .oauthToken(oauthToken)
@@ -317,11 +794,11 @@ public class FactorioCluster extends Construct {
                 .build()
         );
 
-        if (items.size() > 0) {
+        if (allServers.size() > 0) {
             codePipeline.addStage(StageOptions.builder()
                     .stageName("Build")
-                    .actions(items.stream()
-                            .map(server -> server.get("version").getS())
+                    .actions(allServers.stream()
+                            .map(server -> server.version)
                             .distinct()
                             .map(version -> CodeBuildAction.Builder.create()
                                     .actionName(version)
@@ -336,6 +813,10 @@ public class FactorioCluster extends Construct {
                                                         .type(BuildEnvironmentVariableType.PLAINTEXT)
                                                         .value(version)
                                                         .build());
+                                        put("PLATFORMS", BuildEnvironmentVariable.builder()
+                                                .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                                .value(platformsOf(version))
+                                                .build());
                                         put("IMAGE_REPO_NAME",
                                                 BuildEnvironmentVariable.builder()
                                                         .type(BuildEnvironmentVariableType.PLAINTEXT)
@@ -343,7 +824,15 @@ public class FactorioCluster extends Construct {
                                                         .build());
                                         put("AWS_ACCOUNT_ID", BuildEnvironmentVariable.builder()
                                                 .type(BuildEnvironmentVariableType.PLAINTEXT)
-                                                .value(System.getenv("CDK_DEFAULT_ACCOUNT"))
+                                                .value(account)
+                                                .build());
+                                        put("DOCKER_COMMIT", BuildEnvironmentVariable.builder()
+                                                .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                                .value("#{factorio-docker-ns.CommitId}")
+                                                .build());
+                                        put("LAZY_LOADING", BuildEnvironmentVariable.builder()
+                                                .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                                .value(Boolean.toString(lazyLoading))
                                                 .build());
                                     }})
                                     .build()
@@ -359,16 +848,193 @@ public class FactorioCluster extends Construct {
                                 .actionName("Deploy")
                                 .project(codeBuildCdk)
                                 .input(Artifact.artifact("factorio-aws"))
-                                .environmentVariables(Collections.singletonMap(
-                                        "DOMAIN_NAME", BuildEnvironmentVariable.builder()
-                                                .type(BuildEnvironmentVariableType.PLAINTEXT)
-                                                .value(domainName)
-                                                .build()
-                                ))
+                                .environmentVariables(new TreeMap<>() {{
+                                    put("DOMAIN_NAME", BuildEnvironmentVariable.builder()
+                                            .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                            .value(domainName)
+                                            .build());
+                                    put("DEPLOY_STATE_TABLE", BuildEnvironmentVariable.builder()
+                                            .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                            .value(deployStateTable.getTableName())
+                                            .build());
+                                    put("INFRA_COMMIT", BuildEnvironmentVariable.builder()
+                                            .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                            .value("#{factorio-aws-ns.CommitId}")
+                                            .build());
+                                    put("REGIONS", BuildEnvironmentVariable.builder()
+                                            .type(BuildEnvironmentVariableType.PLAINTEXT)
+                                            .value(String.join(",", regions.all))
+                                            .build());
+                                }})
                                 .build()
                 ))
                 .build()
         );
     }
 
+    /**
+     * A role with what every server's task needs. Servers share the cluster's {@link #taskRole}, servers with
+     * storage=efs get their own so that only they can mount their access point.
+     */
+    Role newTaskRole(Construct scope, String id) {
+        var role = Role.Builder.create(scope, id)
+                .managedPolicies(List.of(
+                        ManagedPolicy.fromAwsManagedPolicyName("service-role" +
+                                "/AmazonECSTaskExecutionRolePolicy")
+                ))
+                .inlinePolicies(new TreeMap<>() {{
+                    put("FactorioCloudwatch", PolicyDocument.Builder.create()
+                            .statements(List.of(
+                                    PolicyStatement.Builder.create()
+                                            .actions(List.of("cloudwatch:PutMetricData"))
+                                            .resources(List.of("*"))
+                                            .build()
+                            ))
+                            .build());
+                }})
+                .assumedBy(new ServicePrincipal("ecs-tasks.amazonaws.com"))
+                .build();
+        rconSecret.grantRead(role);
+        modCache.grantRead(role);
+        firelensConfig.grantRead(role);
+        return role;
+    }
+
+    /**
+     * Saves and mods of the servers with storage=efs, one access point each. Like the EC2 capacity, it goes
+     * away with the last server that uses it.
+     */
+    private FileSystem addFileSystem(IVpc vpc) {
+        var fileSystem = FileSystem.Builder.create(this, "fileSystem")
+                .vpc(vpc)
+                .vpcSubnets(SubnetSelection.builder().subnetType(SubnetType.PUBLIC).build())
+                .encrypted(true)
+                .lifecyclePolicy(LifecyclePolicy.AFTER_30_DAYS)
+                .performanceMode(PerformanceMode.GENERAL_PURPOSE)
+                .throughputMode(ThroughputMode.BURSTING)
+                // It goes out of the template when the last server leaves storage=efs, its saves must not go too
+                .removalPolicy(RemovalPolicy.RETAIN)
+                .build();
+        fileSystem.getConnections().allowDefaultPortFrom(serverSecurityGroup);
+        return fileSystem;
+    }
+
+    /**
+     * One instance per EC2 server, as they use host networking and so the same ports. Stopped instances
+     * are kept in a warm pool after they pulled the images once, starting one only takes a boot.
+     */
+    private AsgCapacityProvider addEc2Capacity(IVpc vpc, List<ServerConfig> ec2Servers) {
+        var stack = Stack.of(this);
+        var userData = UserData.forLinux();
+        userData.addCommands(
+                // Lets the agent know not to register while the instance is prepared for the warm pool
+                "echo ECS_WARM_POOLS_CHECK=true >> /etc/ecs/ecs.config",
+                "yum install -y awscli",
+                "systemctl is-active docker || systemctl start docker",
+                "aws ecr get-login-password --region " + stack.getRegion()
+                        + " | docker login --username AWS --password-stdin "
+                        + stack.getAccount() + ".dkr.ecr." + stack.getRegion() + ".amazonaws.com"
+        );
+        ec2Servers.stream()
+                .map(server -> server.version)
+                .distinct()
+                .forEach(version -> userData.addCommands(
+                        "docker pull " + ecrRepo.repositoryUriForTag(version) + " || true"));
+
+        var autoScalingGroup = AutoScalingGroup.Builder.create(this, "ec2Capacity")
+                .vpc(vpc)
+                .vpcSubnets(SubnetSelection.builder().subnetType(SubnetType.PUBLIC).build())
+                .associatePublicIpAddress(true)
+                .securityGroup(serverSecurityGroup)
+                // ServerConfig only accepts profiles that fit the default
+                .instanceType(new InstanceType(FactorioContext.getString(this.getNode(), "ec2InstanceType",
+                        "c5.large")))
+                .machineImage(EcsOptimizedImage.amazonLinux2())
+                .userData(userData)
+                .minCapacity(0)
+                .maxCapacity(ec2Servers.size())
+                .build();
+        ecrRepo.grantPull(autoScalingGroup.getRole());
+        autoScalingGroup.addWarmPool(WarmPoolOptions.builder()
+                .poolState(PoolState.STOPPED)
+                .minSize(ec2Servers.size())
+                .reuseOnScaleIn(true)
+                .build());
+
+        var capacityProvider = AsgCapacityProvider.Builder.create(this, "ec2CapacityProvider")
+                .autoScalingGroup(autoScalingGroup)
+                .enableManagedScaling(true)
+                .targetCapacityPercent(100)
+                .build();
+        cluster.addAsgCapacityProvider(capacityProvider);
+        return capacityProvider;
+    }
+
+    /**
+     * Whether the server gets an arm64 task. Servers asking for arm64 on a version older than the
+     * {@code arm64MinVersion} context value stay on x86_64.
+     */
+    boolean runsOnArm64(ServerConfig server) {
+        return server.architecture.equals(ServerConfig.ARM64)
+                && arm64MinVersion != null
+                && compareVersions(server.version, arm64MinVersion) >= 0;
+    }
+
+    /**
+     * Docker platforms to build a version for, arm64 only when a server needs it as it builds under
+     * emulation.
+     */
+    private String platformsOf(String version) {
+        return allServers.stream().anyMatch(server -> server.version.equals(version) && runsOnArm64(server))
+                ? "linux/amd64,linux/arm64"
+                : "linux/amd64";
+    }
+
+    // Numeric comparison of dotted versions, anything else (e.g. "stable") sorts below every number
+    private static int compareVersions(String a, String b) {
+        var left = a.split("\\.");
+        var right = b.split("\\.");
+        for (int i = 0; i < Math.max(left.length, right.length); i++) {
+            int l = i < left.length ? parsePart(left[i]) : 0;
+            int r = i < right.length ? parsePart(right[i]) : 0;
+            if (l != r) {
+                return Integer.compare(l, r);
+            }
+        }
+        return 0;
+    }
+
+    private static int parsePart(String part) {
+        try {
+            return Integer.parseInt(part);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // lambda/build.js bundles each handler file into lambda/dist/<file>/index.js during the Maven build
+    private Function.Builder lambdaBuilder(String id, String handler) {
+        var dot = handler.indexOf('.');
+        return Function.Builder.create(this, id)
+                .runtime(NODEJS_18_X)
+                .code(Code.fromAsset("lambda/dist/" + handler.substring(0, dot)))
+                .handler("index" + handler.substring(dot));
+    }
+
+    /**
+     * The function itself, or when the context value is above zero, a {@code live} alias with that many
+     * initialized instances. Worth it for the API routes players wait on, it is billed while idle.
+     */
+    private IFunction provisioned(Function function, String contextKey) {
+        var concurrency = FactorioContext.getInt(this.getNode(), contextKey, 0);
+        if (concurrency <= 0) {
+            return function;
+        }
+        return Alias.Builder.create(this, function.getNode().getId() + "Live")
+                .aliasName("live")
+                .version(function.getCurrentVersion())
+                .provisionedConcurrentExecutions(concurrency)
+                .build();
+    }
+
 }
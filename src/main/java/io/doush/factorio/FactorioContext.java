@@ -0,0 +1,34 @@
+package io.doush.factorio;
+
+import software.amazon.awscdk.core.ConstructNode;
+
+import java.util.Optional;
+
+/**
+ * Optional settings passed with {@code cdk -c key=value} or in cdk.json.
+ */
+final class FactorioContext {
+    private FactorioContext() {
+    }
+
+    static String getString(ConstructNode node, String key, String defaultValue) {
+        return Optional.ofNullable(node.tryGetContext(key))
+                .map(Object::toString)
+                .filter(value -> !value.trim().isEmpty())
+                .orElse(defaultValue);
+    }
+
+    static int getInt(ConstructNode node, String key, int defaultValue) {
+        var value = getString(node, key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Context value " + key + " must be a number, got " + value);
+        }
+    }
+
+    static boolean getBoolean(ConstructNode node, String key, boolean defaultValue) {
+        var value = getString(node, key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,130 @@
+package io.doush.factorio;
+
+import software.amazon.awscdk.core.Construct;
+import software.amazon.awscdk.core.Duration;
+import software.amazon.awscdk.services.cloudwatch.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CloudWatch dashboards for one server and for the whole fleet.
+ * <p>
+ * The game metrics are published without dimensions to the {@code Factorio-<serverName>} namespace: players by
+ * the container, UPS and RCON timings by the Lambdas as embedded metric log lines (lambda/metrics.js), saves by
+ * metric filters on the container log. The fleet dashboard finds them with search expressions, so it doesn't
+ * change when servers are added.
+ */
+final class FactorioDashboards {
+    private static final int WIDTH = 12;
+    private static final int HEIGHT = 6;
+
+    private FactorioDashboards() {
+    }
+
+    static Dashboard server(Construct scope, String dashboardName, ServerConfig config, String clusterName) {
+        var namespace = "Factorio-" + config.serverName;
+        var service = Map.of("ClusterName", clusterName, "ServiceName", "factorio-" + config.serverName);
+
+        var dashboard = Dashboard.Builder.create(scope, "dashboard")
+                .dashboardName(dashboardName)
+                .build();
+        dashboard.addWidgets(
+                graph("Players", List.of(metric(namespace, "PlayersOnline", "Maximum"))),
+                GraphWidget.Builder.create()
+                        .title("UPS")
+                        .left(List.of(
+                                metric(namespace, "UPS", "Minimum"),
+                                metric(namespace, "UPS", "Average")))
+                        .leftAnnotations(List.of(HorizontalAnnotation.builder()
+                                .value(config.minUps)
+                                .label("minUps")
+                                .color(Color.RED)
+                                .build()))
+                        .width(WIDTH)
+                        .height(HEIGHT)
+                        .build()
+        );
+        dashboard.addWidgets(
+                graph("RCON response time (ms)", List.of(
+                        metric(namespace, "ResponseTime", "Maximum"),
+                        metric(namespace, "RconLatency", "p90"))),
+                graph("Startup (ms)", List.of(
+                        metric(namespace, "StartupTime", "Average"),
+                        metric(namespace, "ProvisioningTime", "Average"),
+                        metric(namespace, "ImagePullTime", "Average"),
+                        metric(namespace, "ContainerStartTime", "Average"),
+                        metric(namespace, "DnsCutoverTime", "Average")))
+        );
+        dashboard.addWidgets(
+                GraphWidget.Builder.create()
+                        .title("Saves")
+                        .left(List.of(metric(namespace, "SaveDuration", "Maximum")))
+                        .right(List.of(metric(namespace, "SaveSize", "Maximum")))
+                        .width(WIDTH)
+                        .height(HEIGHT)
+                        .build(),
+                graph("CPU and memory (%)", List.of(
+                        metric("AWS/ECS", "CPUUtilization", "Average", service),
+                        metric("AWS/ECS", "MemoryUtilization", "Average", service)))
+        );
+        return dashboard;
+    }
+
+    static Dashboard fleet(Construct scope, String dashboardName, String clusterName) {
+        var dashboard = Dashboard.Builder.create(scope, "fleetDashboard")
+                .dashboardName(dashboardName)
+                .build();
+        dashboard.addWidgets(
+                graph("Players", List.of(search("PlayersOnline", "Maximum"))),
+                graph("Lowest UPS", List.of(search("UPS", "Minimum")))
+        );
+        dashboard.addWidgets(
+                graph("Startup time (ms)", List.of(search("StartupTime", "Average"))),
+                graph("RCON latency p90 (ms)", List.of(search("RconLatency", "p90")))
+        );
+        dashboard.addWidgets(
+                graph("CPU (%)", List.of(MathExpression.Builder.create()
+                        .expression("SEARCH('{AWS/ECS,ClusterName,ServiceName} ClusterName=\"" + clusterName
+                                + "\" MetricName=\"CPUUtilization\"', 'Average', 300)")
+                        .usingMetrics(Map.of())
+                        .period(Duration.minutes(5))
+                        .build())),
+                graph("Save duration (ms)", List.of(search("SaveDuration", "Maximum")))
+        );
+        return dashboard;
+    }
+
+    private static GraphWidget graph(String title, List<IMetric> metrics) {
+        return GraphWidget.Builder.create()
+                .title(title)
+                .left(metrics)
+                .width(WIDTH)
+                .height(HEIGHT)
+                .build();
+    }
+
+    private static IMetric metric(String namespace, String metricName, String statistic) {
+        return metric(namespace, metricName, statistic, Map.of());
+    }
+
+    private static IMetric metric(String namespace, String metricName, String statistic,
+                                  Map<String, String> dimensions) {
+        return Metric.Builder.create()
+                .namespace(namespace)
+                .metricName(metricName)
+                .statistic(statistic)
+                .dimensionsMap(dimensions)
+                .period(Duration.minutes(1))
+                .build();
+    }
+
+    // One line per server, every Factorio-<serverName> namespace has the same metric names
+    private static IMetric search(String metricName, String statistic) {
+        return MathExpression.Builder.create()
+                .expression("SEARCH('Factorio MetricName=\"" + metricName + "\"', '" + statistic + "', 60)")
+                .usingMetrics(Map.of())
+                .period(Duration.minutes(1))
+                .build();
+    }
+}
@@ -0,0 +1,65 @@
+package io.doush.factorio;
+
+import software.amazon.awscdk.core.ConstructNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The regions servers can run in, from the comma separated {@code regions} context value.
+ * <p>
+ * The primary region, where the app is deployed to, always comes first and owns the server table, the API
+ * and the pipeline. Every other region gets a cluster stack of its own.
+ */
+final class FactorioRegions {
+    final String primary;
+    /**
+     * Primary region first, then the others in the order they were configured.
+     */
+    final List<String> all;
+
+    FactorioRegions(String primary, List<String> others) {
+        this.primary = primary;
+        this.all = new ArrayList<>();
+        all.add(primary);
+        others.stream()
+                .filter(region -> !all.contains(region))
+                .forEach(all::add);
+    }
+
+    static FactorioRegions fromContext(ConstructNode node, String primary) {
+        var regions = FactorioContext.getString(node, "regions", "");
+        return new FactorioRegions(primary, Arrays.stream(regions.split(","))
+                .map(String::trim)
+                .filter(region -> !region.isEmpty())
+                .collect(Collectors.toList()));
+    }
+
+    boolean isMultiRegion() {
+        return all.size() > 1;
+    }
+
+    List<String> secondary() {
+        return all.subList(1, all.size());
+    }
+
+    /**
+     * The region a server runs in. {@code auto} servers go where lambda/latency.js found the players to have
+     * the lowest worst-case latency, and stay in the primary region until someone reported theirs.
+     */
+    String regionOf(ServerConfig server) {
+        if (server.region == null) {
+            return primary;
+        }
+        if (server.region.equals(ServerConfig.AUTO)) {
+            return server.autoRegion != null && all.contains(server.autoRegion) ? server.autoRegion : primary;
+        }
+        if (!all.contains(server.region)) {
+            throw new IllegalArgumentException("region of " + server.serverName + " is " + server.region
+                    + ", which is not one of the configured regions " + all);
+        }
+        return server.region;
+    }
+}
@@ -1,94 +1,185 @@
 package io.doush.factorio;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jetbrains.annotations.NotNull;
 import software.amazon.awscdk.core.*;
-import software.amazon.awscdk.services.applicationautoscaling.AdjustmentType;
-import software.amazon.awscdk.services.applicationautoscaling.BasicStepScalingPolicyProps;
-import software.amazon.awscdk.services.applicationautoscaling.EnableScalingProps;
-import software.amazon.awscdk.services.applicationautoscaling.ScalingInterval;
-import software.amazon.awscdk.services.cloudwatch.Metric;
-import software.amazon.awscdk.services.cloudwatch.MetricProps;
-import software.amazon.awscdk.services.ec2.ISecurityGroup;
+import software.amazon.awscdk.services.applicationautoscaling.*;
+import software.amazon.awscdk.services.cloudwatch.*;
+import software.amazon.awscdk.services.cloudwatch.actions.ApplicationScalingAction;
+import software.amazon.awscdk.services.datasync.CfnLocationEFS;
+import software.amazon.awscdk.services.datasync.CfnLocationS3;
+import software.amazon.awscdk.services.datasync.CfnTask;
 import software.amazon.awscdk.services.ec2.SubnetSelection;
 import software.amazon.awscdk.services.ec2.SubnetType;
-import software.amazon.awscdk.services.ecr.IRepository;
 import software.amazon.awscdk.services.ecs.*;
+import software.amazon.awscdk.services.efs.AccessPoint;
+import software.amazon.awscdk.services.efs.AccessPointProps;
+import software.amazon.awscdk.services.efs.Acl;
+import software.amazon.awscdk.services.efs.PosixUser;
 import software.amazon.awscdk.services.iam.IRole;
+import software.amazon.awscdk.services.iam.PolicyStatement;
 import software.amazon.awscdk.services.iam.Role;
+import software.amazon.awscdk.services.iam.ServicePrincipal;
+import software.amazon.awscdk.services.logs.FilterPattern;
+import software.amazon.awscdk.services.logs.LogGroup;
+import software.amazon.awscdk.services.logs.MetricFilterOptions;
 import software.amazon.awscdk.services.logs.RetentionDays;
-import software.amazon.awscdk.services.route53.IHostedZone;
 import software.amazon.awscdk.services.s3.BlockPublicAccess;
 import software.amazon.awscdk.services.s3.Bucket;
 import software.amazon.awscdk.services.s3.BucketEncryption;
 import software.amazon.awscdk.services.s3.BucketProps;
-import software.amazon.awscdk.services.secretsmanager.Secret;
 
+import java.io.UncheckedIOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 public class FactorioServer extends Construct {
+    // Where the EFS access point is mounted, and the user of the factorio image that owns it
+    private static final String DATA_DIR = "/factorio";
+    private static final String FACTORIO_UID = "845";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     final Bucket bucket;
-    final FargateTaskDefinition taskDefinition;
+    final TaskDefinition taskDefinition;
     final EcrImage containerImage;
     final ContainerDefinition container;
-    final FargateService service;
+    final BaseService service;
     final ScalableTaskCount scalableTaskCount;
     final Metric playersOnline;
+    final Alarm playersOnlineAlarm;
+    final Alarm idleAlarm;
+    final LogGroup logGroup;
+    final Dashboard dashboard;
 
     public FactorioServer(@NotNull Construct scope, @NotNull String id,
-                          String serverName, String domainName,
-                          String version, IHostedZone hostedZone,
-                          ISecurityGroup securityGroup, ICluster cluster, IRole executionRole,
-                          Role taskRole, IRepository ecrRepo, Secret rconSecret) {
+                          FactorioCluster factorioCluster, ServerConfig config) {
         super(scope, id);
 
+        var serverName = config.serverName;
+        var version = config.version;
+        var domainName = factorioCluster.domainName;
+        var rconSecret = factorioCluster.rconSecret;
+
+        // The shared roles live in the cluster stack, importing them keeps the grants below in this
+        // stack instead of creating a dependency cycle between the two. A server on EFS gets its own task
+        // role, as the shared one would let every task mount its access point.
+        var efs = config.storage.equals(ServerConfig.EFS);
+        var executionRole = Role.fromRoleArn(this, "executionRole", factorioCluster.executionRole.getRoleArn());
+        var taskRole = efs
+                ? factorioCluster.newTaskRole(this, "taskRole")
+                : Role.fromRoleArn(this, "taskRole", factorioCluster.taskRole.getRoleArn());
 
+        // Kept when the stack is deleted, so that deleting the server's row doesn't lose its save. When the
+        // server moves to another region, deploy.sh removes it after copying the save.
         this.bucket = new Bucket(this, "bucket", BucketProps.builder()
                 .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
                 .encryption(BucketEncryption.S3_MANAGED)
-                .removalPolicy(RemovalPolicy.DESTROY)
+                .removalPolicy(RemovalPolicy.RETAIN)
                 .versioned(false)
                 .build()
         );
 
         bucket.grantReadWrite(taskRole);
 
-        this.taskDefinition = new FargateTaskDefinition(this, "taskDefinition",
+        var profile = config.computeProfile;
+        var onEc2 = config.placement.equals(ServerConfig.EC2);
+        // Host networking puts the ports on the instance's public IP, one server per instance
+        this.taskDefinition = onEc2 ? new Ec2TaskDefinition(this, "taskDefinition",
+                Ec2TaskDefinitionProps.builder()
+                        .networkMode(NetworkMode.HOST)
+                        .executionRole(executionRole)
+                        .taskRole(taskRole)
+                        .build()
+        ) : new FargateTaskDefinition(this, "taskDefinition",
                 FargateTaskDefinitionProps.builder()
-                        .cpu(512)
-                        .memoryLimitMiB(1024)
+                        .cpu(profile.cpu)
+                        .memoryLimitMiB(profile.memoryMiB)
+                        .ephemeralStorageGiB(profile.ephemeralStorageGiB == 0 ? null : profile.ephemeralStorageGiB)
+                        .runtimePlatform(RuntimePlatform.builder()
+                                .operatingSystemFamily(OperatingSystemFamily.LINUX)
+                                .cpuArchitecture(factorioCluster.runsOnArm64(config)
+                                        ? CpuArchitecture.ARM64
+                                        : CpuArchitecture.X86_64)
+                                .build())
                         .executionRole(executionRole)
                         .taskRole(taskRole)
                         .build()
         );
 
-        this.containerImage = ContainerImage.fromEcrRepository(ecrRepo, version);
+        this.logGroup = LogGroup.Builder.create(this, "logGroup")
+                .retention(RetentionDays.ONE_WEEK)
+                .removalPolicy(RemovalPolicy.DESTROY)
+                .build();
+        // The container logs a {"SaveDuration": <ms>, "SaveSize": <bytes>} line after every save
+        for (var metricName : List.of("SaveDuration", "SaveSize")) {
+            logGroup.addMetricFilter(metricName, MetricFilterOptions.builder()
+                    .filterPattern(FilterPattern.exists("$." + metricName))
+                    .metricNamespace("Factorio-" + serverName)
+                    .metricName(metricName)
+                    .metricValue("$." + metricName)
+                    .build());
+        }
+
+        // Counted from the lines Factorio itself logs
+        logGroup.addMetricFilter("Joins", MetricFilterOptions.builder()
+                .filterPattern(FilterPattern.literal("\"[JOIN]\""))
+                .metricNamespace("Factorio-" + serverName)
+                .metricName("Joins")
+                .metricValue("1")
+                .build());
+        logGroup.addMetricFilter("Errors", MetricFilterOptions.builder()
+                .filterPattern(FilterPattern.literal("\" Error \""))
+                .metricNamespace("Factorio-" + serverName)
+                .metricName("Errors")
+                .metricValue("1")
+                .build());
+
+        var firelens = config.logRouting.equals(ServerConfig.FIRELENS);
+        if (firelens) {
+            addLogRouter(factorioCluster, config, taskRole);
+        }
+
+        this.containerImage = ContainerImage.fromEcrRepository(factorioCluster.ecrRepo, version);
 
         this.container = taskDefinition.addContainer("container",
                 ContainerDefinitionOptions.builder()
-                        .cpu(512)
+                        .cpu(profile.cpu)
+                        .memoryLimitMiB(onEc2 ? profile.memoryMiB : null)
                         .environment(new TreeMap<>() {{
                             put("S3_BUCKET", bucket.getBucketName());
-                            put("HOSTED_ZONE", hostedZone.getHostedZoneId());
                             put("DOMAIN", "factorio." + domainName);
                             put("SERVER_NAME", serverName);
                             put("SECRET_NAME", rconSecret.getSecretArn());
+                            put("SAVE_STORAGE", config.storage);
+                            put("MOD_CACHE_BUCKET", factorioCluster.modCache.getBucketName());
+                            put("MOD_MANIFEST", modManifest(config.mods));
+                            put("LOG_LEVEL", config.logLevel);
                         }})
                         .essential(true)
+                        // The most Fargate allows, and as long as a Spot interruption notice, for the save
+                        // on shutdown
+                        .stopTimeout(Duration.seconds(120))
                         .healthCheck(HealthCheck.builder()
-                                .command(List.of("CMD-SHELL", "cat /opt/factorio/server.pid"))
+                                // Only whether the server process is alive, lambda/probe.js checks it is responsive
+                                .command(List.of("CMD-SHELL", "kill -0 $(cat /opt/factorio/server.pid)"))
+                                // Checked often, lambda/startup.js starts waiting for RCON once it passes
+                                .interval(Duration.seconds(10))
                                 .build()
                         )
                         .dockerLabels(Collections.singletonMap(
                                 "version", version
                         ))
                         .image(containerImage)
-                        .logging(LogDriver.awsLogs(AwsLogDriverProps.builder()
-                                .streamPrefix("factorio-" + serverName)
-                                .logRetention(RetentionDays.ONE_WEEK)
-                                .build())
+                        .logging(firelens
+                                ? LogDrivers.firelens(FireLensLogDriverProps.builder().build())
+                                : LogDriver.awsLogs(AwsLogDriverProps.builder()
+                                        .streamPrefix("factorio-" + serverName)
+                                        .logGroup(logGroup)
+                                        .build())
                         )
                         .build()
         );
@@ -107,20 +198,47 @@ public class FactorioServer extends Construct {
                 .build()
         );
 
-        this.service = new FargateService(this, "service", FargateServiceProps.builder()
+        if (efs) {
+            addFileSystem(factorioCluster, serverName, taskRole);
+        }
+
+        this.service = onEc2 ? new Ec2Service(this, "service", Ec2ServiceProps.builder()
+                .cluster(factorioCluster.cluster)
+                .desiredCount(0)
+                // The old task has to free the ports before the new one can start
+                .minHealthyPercent(0)
+                .maxHealthyPercent(100)
+                .serviceName("factorio-" + serverName)
+                .deploymentController(DeploymentController.builder().type(DeploymentControllerType.ECS).build())
+                .taskDefinition(taskDefinition)
+                .capacityProviderStrategies(List.of(CapacityProviderStrategy.builder()
+                        .capacityProvider(factorioCluster.ec2CapacityProvider.getCapacityProviderName())
+                        .weight(1)
+                        .build()))
+                .build()
+        ) : new FargateService(this, "service", FargateServiceProps.builder()
                 .assignPublicIp(true)
-                .cluster(cluster)
+                .cluster(factorioCluster.cluster)
                 .desiredCount(0)
                 .minHealthyPercent(100)
                 .maxHealthyPercent(200)
                 .serviceName("factorio-" + serverName)
-                .securityGroup(securityGroup)
+                .securityGroup(factorioCluster.serverSecurityGroup)
                 .vpcSubnets(SubnetSelection.builder().onePerAz(true).subnetType(SubnetType.PUBLIC).build())
                 .deploymentController(DeploymentController.builder().type(DeploymentControllerType.ECS).build())
+                // LATEST is 1.4.0 or newer, which lazily loads images that have a SOCI index
                 .platformVersion(FargatePlatformVersion.LATEST)
                 .taskDefinition(taskDefinition)
+                .capacityProviderStrategies(config.spot
+                        ? List.of(CapacityProviderStrategy.builder()
+                                .capacityProvider("FARGATE_SPOT")
+                                .weight(1)
+                                .build())
+                        : null)
                 .build()
         );
+        // Read by scale.js to move the service back to Spot after spot.js moved it to on-demand
+        Tags.of(service).add("factorio:spot", Boolean.toString(config.spot));
 
         this.scalableTaskCount = service.autoScaleTaskCount(EnableScalingProps.builder()
                 .minCapacity(0)
@@ -131,18 +249,218 @@ public class FactorioServer extends Construct {
         this.playersOnline = new Metric(MetricProps.builder()
                 .metricName("PlayersOnline")
                 .namespace("Factorio-" + serverName)
-                .period(Duration.minutes(15))
+                .period(Duration.minutes(1))
+                .statistic("Maximum")
                 .build()
         );
 
-        scalableTaskCount.scaleOnMetric("scaleOnMetric", BasicStepScalingPolicyProps.builder()
+        // scaleOnMetric uses one evaluation period for both directions, but scaling up should be immediate
+        // while scaling down waits for the configured idle time, so both alarms are set up by hand
+        var scalableTarget = (ScalableTarget) scalableTaskCount.getNode().findChild("Target");
+
+        var scaleUpAction = StepScalingAction.Builder.create(this, "scaleUpAction")
+                .scalingTarget(scalableTarget)
                 .adjustmentType(AdjustmentType.EXACT_CAPACITY)
+                .metricAggregationType(MetricAggregationType.MAXIMUM)
+                .build();
+        scaleUpAction.addAdjustment(AdjustmentTier.builder().lowerBound(0).adjustment(1).build());
+
+        this.playersOnlineAlarm = Alarm.Builder.create(this, "playersOnlineAlarm")
                 .metric(playersOnline)
-                .scalingSteps(List.of(
-                        ScalingInterval.builder().lower(0).upper(0).change(0).build(),
-                        ScalingInterval.builder().lower(1).change(1).build()
-                ))
-                .build()
-        );
+                .comparisonOperator(ComparisonOperator.GREATER_THAN_OR_EQUAL_TO_THRESHOLD)
+                .threshold(1)
+                .evaluationPeriods(1)
+                .treatMissingData(TreatMissingData.NOT_BREACHING)
+                .build();
+        playersOnlineAlarm.addAlarmAction(new ApplicationScalingAction(scaleUpAction));
+
+        var scaleDownAction = StepScalingAction.Builder.create(this, "scaleDownAction")
+                .scalingTarget(scalableTarget)
+                .adjustmentType(AdjustmentType.EXACT_CAPACITY)
+                .metricAggregationType(MetricAggregationType.MAXIMUM)
+                .build();
+        scaleDownAction.addAdjustment(AdjustmentTier.builder().upperBound(0).adjustment(0).build());
+
+        // Only counted minutes: a stopped server reports nothing, and an alarm that stayed in ALARM would keep
+        // scaling it back to zero right after /scale or a schedule started it. Hung servers are the probe's job.
+        this.idleAlarm = Alarm.Builder.create(this, "idleAlarm")
+                .metric(playersOnline)
+                .comparisonOperator(ComparisonOperator.LESS_THAN_OR_EQUAL_TO_THRESHOLD)
+                .threshold(0)
+                .evaluationPeriods(config.idleMinutes)
+                .datapointsToAlarm(config.idleDatapoints)
+                .treatMissingData(TreatMissingData.NOT_BREACHING)
+                .build();
+        idleAlarm.addAlarmAction(new ApplicationScalingAction(scaleDownAction));
+
+        this.dashboard = FactorioDashboards.server(this,
+                "factorio-" + domainName.replaceAll("\\.", "-") + "-" + serverName, config,
+                factorioCluster.cluster.getClusterName());
+
+        // Raising the minimum starts the server ahead of a session, lowering it again hands it back to the
+        // idle alarm once the session is underway
+        for (int i = 0; i < config.schedules.size(); i++) {
+            var schedule = config.schedules.get(i);
+            scalableTaskCount.scaleOnSchedule("prewarm" + i, ScalingSchedule.builder()
+                    .schedule(Schedule.expression(schedule.startExpression()))
+                    .minCapacity(1)
+                    .build()
+            );
+            scalableTaskCount.scaleOnSchedule("release" + i, ScalingSchedule.builder()
+                    .schedule(Schedule.expression(schedule.releaseExpression()))
+                    .minCapacity(0)
+                    .build()
+            );
+        }
+    }
+
+    /**
+     * Fluent Bit sidecar that sends lines at or above the server's log level to CloudWatch, without autosave,
+     * chat and mod script noise, and every line to the bucket as gzipped batches. The configuration is
+     * firelens/factorio.conf, loaded from S3 by the init image as Fargate only reads it from the image.
+     */
+    private void addLogRouter(FactorioCluster factorioCluster, ServerConfig config, IRole taskRole) {
+        var below = ServerConfig.LOG_LEVELS.subList(0, ServerConfig.LOG_LEVELS.indexOf(config.logLevel));
+        // Factorio lines look like "  12.345 Info Something.cpp:42: message"
+        var exclude = below.isEmpty() ? "(?!)" : below.stream()
+                .map(level -> level.substring(0, 1).toUpperCase() + level.substring(1))
+                .collect(Collectors.joining("|", "^\\s*\\d+\\.\\d+ (", ") "));
+        var firelensConfig = factorioCluster.firelensConfig;
+        var region = Stack.of(this).getRegion();
+
+        taskDefinition.addFirelensLogRouter("logRouter", FirelensLogRouterDefinitionOptions.builder()
+                .image(ContainerImage.fromRegistry("public.ecr.aws/aws-observability/aws-for-fluent-bit:init-latest"))
+                .firelensConfig(FirelensConfig.builder().type(FirelensLogRouterType.FLUENTBIT).build())
+                .essential(true)
+                .memoryReservationMiB(50)
+                .environment(new TreeMap<>() {{
+                    put("aws_fluent_bit_init_s3_1",
+                            firelensConfig.getBucket().arnForObjects(firelensConfig.getS3ObjectKey()));
+                    put("LOG_GROUP", logGroup.getLogGroupName());
+                    put("LOG_EXCLUDE", exclude);
+                    put("S3_BUCKET", bucket.getBucketName());
+                    put("AWS_REGION", region);
+                }})
+                .logging(LogDriver.awsLogs(AwsLogDriverProps.builder()
+                        .streamPrefix("firelens")
+                        .logGroup(logGroup)
+                        .build()))
+                .build());
+        logGroup.grantWrite(taskRole);
+    }
+
+    /**
+     * The mods the container copies from the cache bucket into its local mods directory, skipping those it
+     * already has. As JSON: {@code [{"name": ..., "version": ..., "sha1": ..., "key": ...}]}.
+     */
+    private static String modManifest(List<ModReference> mods) {
+        var entries = mods.stream()
+                .map(mod -> new TreeMap<String, String>() {{
+                    put("name", mod.name);
+                    put("version", mod.version);
+                    put("sha1", mod.sha1);
+                    put("key", mod.key());
+                }})
+                .collect(Collectors.toList());
+        try {
+            return MAPPER.writeValueAsString(entries);
+        } catch (JsonProcessingException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Mounts the server's access point at {@link #DATA_DIR} and backs it up to the bucket every hour. DataSync
+     * only copies files that changed, and keeps files that were deleted on EFS.
+     */
+    private void addFileSystem(FactorioCluster factorioCluster, String serverName, IRole taskRole) {
+        var fileSystem = factorioCluster.fileSystem;
+        var path = "/servers/" + serverName;
+        var accessPoint = new AccessPoint(this, "accessPoint", AccessPointProps.builder()
+                .fileSystem(fileSystem)
+                .path(path)
+                .posixUser(PosixUser.builder().uid(FACTORIO_UID).gid(FACTORIO_UID).build())
+                .createAcl(Acl.builder().ownerUid(FACTORIO_UID).ownerGid(FACTORIO_UID).permissions("755").build())
+                .build());
+
+        taskDefinition.addVolume(Volume.builder()
+                .name("data")
+                .efsVolumeConfiguration(EfsVolumeConfiguration.builder()
+                        .fileSystemId(fileSystem.getFileSystemId())
+                        .transitEncryption("ENABLED")
+                        .authorizationConfig(AuthorizationConfig.builder()
+                                .accessPointId(accessPoint.getAccessPointId())
+                                .iam("ENABLED")
+                                .build())
+                        .build())
+                .build());
+        container.addMountPoints(MountPoint.builder()
+                .sourceVolume("data")
+                .containerPath(DATA_DIR)
+                .readOnly(false)
+                .build());
+        container.addEnvironment("DATA_DIR", DATA_DIR);
+
+        // The role is this server's own, the condition also keeps it to this server's directory
+        taskRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .actions(List.of("elasticfilesystem:ClientMount", "elasticfilesystem:ClientWrite"))
+                .resources(List.of(fileSystem.getFileSystemArn()))
+                .conditions(Map.of("StringEquals",
+                        Map.of("elasticfilesystem:AccessPointArn", accessPoint.getAccessPointArn())))
+                .build());
+
+        var stack = Stack.of(this);
+        var subnet = factorioCluster.cluster.getVpc().getPublicSubnets().get(0);
+        var efsLocation = CfnLocationEFS.Builder.create(this, "efsLocation")
+                .efsFilesystemArn(fileSystem.getFileSystemArn())
+                .subdirectory(path)
+                .ec2Config(CfnLocationEFS.Ec2ConfigProperty.builder()
+                        .subnetArn(stack.formatArn(ArnComponents.builder()
+                                .service("ec2")
+                                .resource("subnet")
+                                .resourceName(subnet.getSubnetId())
+                                .build()))
+                        // Allowed to reach the mount targets like the servers are
+                        .securityGroupArns(List.of(stack.formatArn(ArnComponents.builder()
+                                .service("ec2")
+                                .resource("security-group")
+                                .resourceName(factorioCluster.serverSecurityGroup.getSecurityGroupId())
+                                .build())))
+                        .build())
+                .build();
+
+        var dataSyncRole = Role.Builder.create(this, "dataSyncRole")
+                .assumedBy(new ServicePrincipal("datasync.amazonaws.com"))
+                .build();
+        bucket.grantReadWrite(dataSyncRole);
+        dataSyncRole.addToPrincipalPolicy(PolicyStatement.Builder.create()
+                .actions(List.of("s3:GetBucketLocation", "s3:ListBucketMultipartUploads"))
+                .resources(List.of(bucket.getBucketArn()))
+                .build());
+
+        var s3Location = CfnLocationS3.Builder.create(this, "s3Location")
+                .s3BucketArn(bucket.getBucketArn())
+                .subdirectory("/efs")
+                .s3Config(CfnLocationS3.S3ConfigProperty.builder()
+                        .bucketAccessRoleArn(dataSyncRole.getRoleArn())
+                        .build())
+                .build();
+        // DataSync checks its access to the bucket when the location is created
+        s3Location.getNode().addDependency(dataSyncRole);
+
+        CfnTask.Builder.create(this, "backupTask")
+                .name("factorio-" + serverName + "-backup")
+                .sourceLocationArn(efsLocation.getAttrLocationArn())
+                .destinationLocationArn(s3Location.getAttrLocationArn())
+                .schedule(CfnTask.TaskScheduleProperty.builder()
+                        .scheduleExpression("rate(1 hour)")
+                        .build())
+                .options(CfnTask.OptionsProperty.builder()
+                        .transferMode("CHANGED")
+                        .verifyMode("ONLY_FILES_TRANSFERRED")
+                        .preserveDeletedFiles("PRESERVE")
+                        .overwriteMode("ALWAYS")
+                        .build())
+                .build();
     }
 }
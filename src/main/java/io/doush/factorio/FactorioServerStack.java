@@ -0,0 +1,19 @@
+package io.doush.factorio;
+
+import software.amazon.awscdk.core.Construct;
+import software.amazon.awscdk.core.Stack;
+import software.amazon.awscdk.core.StackProps;
+
+/**
+ * A single server in its own stack, so that changing one server only redeploys that stack.
+ */
+public class FactorioServerStack extends Stack {
+    final FactorioServer server;
+
+    public FactorioServerStack(final Construct scope, String id, final StackProps props,
+                               FactorioCluster factorioCluster, ServerConfig config) {
+        super(scope, id, props);
+
+        this.server = new FactorioServer(this, "factorio-server", factorioCluster, config);
+    }
+}
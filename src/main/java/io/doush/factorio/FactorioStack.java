@@ -8,10 +8,28 @@ import software.amazon.awscdk.services.ec2.Vpc;
 import java.util.List;
 
 public class FactorioStack extends Stack {
-    public FactorioStack(final Construct scope, String id, final StackProps props, String domainName) {
+    final FactorioCluster cluster;
+
+    public FactorioStack(final Construct scope, String id, final StackProps props, String domainName,
+                         ServerSource serverSource, FactorioRegions regions) {
+        super(scope, id, props);
+
+        this.cluster = new FactorioCluster(this, "factorio-cluster", domainName, createVpc(), this.getRegion(),
+                this.getAccount(), serverSource, regions);
+    }
+
+    /**
+     * The cluster for the servers in one of the other regions.
+     */
+    public FactorioStack(final Construct scope, String id, final StackProps props, FactorioCluster primaryCluster) {
         super(scope, id, props);
 
-        var vpc = Vpc.Builder.create(this, "vpc")
+        this.cluster = new FactorioCluster(this, "factorio-cluster", createVpc(), this.getRegion(),
+                this.getAccount(), primaryCluster);
+    }
+
+    private Vpc createVpc() {
+        return Vpc.Builder.create(this, "vpc")
                 .cidr("10.1.0.0/16")
                 .subnetConfiguration(List.of(
                         SubnetConfiguration.builder()
@@ -22,7 +40,5 @@ public class FactorioStack extends Stack {
                 ))
                 .maxAzs(2)
                 .build();
-
-        new FactorioCluster(this, "factorio-cluster", domainName, vpc, this.getRegion(), this.getAccount());
     }
 }
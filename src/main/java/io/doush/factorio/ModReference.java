@@ -0,0 +1,43 @@
+package io.doush.factorio;
+
+import java.util.regex.Pattern;
+
+/**
+ * One mod from the {@code mods} list of a server row:
+ * <pre>
+ * {"name": "Krastorio2", "version": "1.1.4", "sha1": "..."}
+ * </pre>
+ * {@code sha1} is the one the mod portal lists for the release. Mods are stored once for the whole cluster
+ * under {@link #key()}, so servers sharing a mod share the file and an upgrade is downloaded only once.
+ */
+public class ModReference {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9 _.-]+");
+    private static final Pattern VERSION = Pattern.compile("\\d+\\.\\d+\\.\\d+");
+    private static final Pattern SHA1 = Pattern.compile("[0-9a-f]{40}");
+
+    final String name;
+    final String version;
+    final String sha1;
+
+    ModReference(String name, String version, String sha1) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid mod name '" + name + "'");
+        }
+        if (!VERSION.matcher(version).matches()) {
+            throw new IllegalArgumentException("Invalid version '" + version + "' of mod " + name);
+        }
+        if (!SHA1.matcher(sha1.toLowerCase()).matches()) {
+            throw new IllegalArgumentException("Invalid sha1 '" + sha1 + "' of mod " + name);
+        }
+        this.name = name;
+        this.version = version;
+        this.sha1 = sha1.toLowerCase();
+    }
+
+    /**
+     * Key of the mod in the cluster's mod cache bucket, the same as in lambda/mods.js.
+     */
+    String key() {
+        return "mods/" + name + "/" + version + "/" + sha1 + ".zip";
+    }
+}
@@ -0,0 +1,273 @@
+package io.doush.factorio;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * One row of the server table, parsed and validated.
+ * <p>
+ * Only {@code serverName} and {@code version} are required, everything else has a default.
+ */
+public class ServerConfig {
+    private static final Pattern SERVER_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final Pattern REGION = Pattern.compile("[a-z]{2}(-gov)?-[a-z]+-\\d");
+    static final String X86_64 = "x86_64";
+    static final String ARM64 = "arm64";
+    static final String S3 = "s3";
+    static final String EFS = "efs";
+    static final String FARGATE = "fargate";
+    static final String EC2 = "ec2";
+    static final String PROBE_UPS = "ups";
+    static final String PROBE_RCON = "rcon";
+    static final String AWSLOGS = "awslogs";
+    static final String FIRELENS = "firelens";
+    static final String AUTO = "auto";
+    // Factorio's log levels, least severe first
+    static final List<String> LOG_LEVELS = List.of("verbose", "info", "warning", "error");
+    // What a task can use on the default c5.large: 2 vCPUs, and the 4 GiB less what the OS, the ECS agent and
+    // a log router sidecar keep
+    static final int EC2_CPU = 2048;
+    static final int EC2_MEMORY_MIB = 3072;
+
+    final String serverName;
+    final String version;
+    /**
+     * Minutes without players before the server is scaled to zero.
+     */
+    final int idleMinutes;
+    /**
+     * How many of the last {@code idleMinutes} minutes must have been empty, lower values tolerate
+     * players briefly reconnecting.
+     */
+    final int idleDatapoints;
+    /**
+     * Sessions the server is started ahead of.
+     */
+    final List<SessionSchedule> schedules;
+    /**
+     * From the {@code cpu}, {@code memory} and {@code ephemeralStorageGiB} attributes.
+     */
+    final ComputeProfile computeProfile;
+    /**
+     * Requested CPU architecture, {@code x86_64} or {@code arm64}. Whether arm64 is actually used also
+     * depends on the version, see {@link FactorioCluster#runsOnArm64}.
+     */
+    final String architecture;
+    /**
+     * Runs on Fargate Spot, falling back to on-demand Fargate when interrupted or out of capacity.
+     */
+    final boolean spot;
+    /**
+     * Where the save and mods live while the server runs: {@code s3}, downloaded on start and uploaded on
+     * stop, or {@code efs}, mounted from the cluster's file system and only backed up to the bucket.
+     */
+    final String storage;
+    /**
+     * Mods from the shared mod cache, in the order of the {@code mods} list.
+     */
+    final List<ModReference> mods;
+    /**
+     * {@code fargate}, or {@code ec2} for the cluster's warm pool of instances that already have the image.
+     */
+    final String placement;
+    /**
+     * {@code ups} to measure the tick rate with a Lua command, or {@code rcon} to only check that the server
+     * answers, as Lua commands disable achievements.
+     */
+    final String healthProbe;
+    /**
+     * Probes below this UPS count as failed.
+     */
+    final int minUps;
+    /**
+     * Failed probes in a row, one per minute, after which the task is replaced.
+     */
+    final int unhealthyChecks;
+    /**
+     * Least severe Factorio log level that is sent to CloudWatch, one of {@link #LOG_LEVELS}.
+     */
+    final String logLevel;
+    /**
+     * {@code awslogs} to send every line to CloudWatch, or {@code firelens} to filter by {@link #logLevel}
+     * and keep the full log compressed in the bucket.
+     */
+    final String logRouting;
+    /**
+     * Region to run in, {@code auto} for the one {@link #autoRegion} names, or null for the primary region.
+     * See {@link FactorioRegions#regionOf}.
+     */
+    final String region;
+    /**
+     * Written by lambda/latency.js from the latencies players reported, null until someone did.
+     */
+    final String autoRegion;
+
+    ServerConfig(Map<String, AttributeValue> item) {
+        this.serverName = getString(item, "serverName", "<unnamed>");
+        if (!SERVER_NAME.matcher(serverName).matches()) {
+            throw new IllegalArgumentException("Invalid server name '" + serverName + "'");
+        }
+        this.version = getString(item, "version", serverName);
+
+        this.idleMinutes = getInt(item, "idleMinutes", 15);
+        if (idleMinutes < 1 || idleMinutes > 1440) {
+            throw new IllegalArgumentException("idleMinutes of " + serverName + " must be between 1 and 1440");
+        }
+        this.idleDatapoints = getInt(item, "idleDatapoints", idleMinutes);
+        if (idleDatapoints < 1 || idleDatapoints > idleMinutes) {
+            throw new IllegalArgumentException("idleDatapoints of " + serverName
+                    + " must be between 1 and idleMinutes");
+        }
+
+        this.computeProfile = new ComputeProfile(
+                getInt(item, "cpu", ComputeProfile.DEFAULT.cpu),
+                getInt(item, "memory", ComputeProfile.DEFAULT.memoryMiB),
+                getInt(item, "ephemeralStorageGiB", ComputeProfile.DEFAULT.ephemeralStorageGiB)
+        );
+
+        this.architecture = item.containsKey("architecture")
+                ? getString(item, "architecture", serverName).toLowerCase()
+                : X86_64;
+        if (!architecture.equals(X86_64) && !architecture.equals(ARM64)) {
+            throw new IllegalArgumentException("architecture of " + serverName + " must be " + X86_64 + " or "
+                    + ARM64 + ", got " + architecture);
+        }
+
+        this.spot = getBoolean(item, "spot", false);
+        if (spot && architecture.equals(ARM64)) {
+            throw new IllegalArgumentException(serverName + " can't use spot with " + ARM64
+                    + ", Fargate Spot only runs " + X86_64);
+        }
+
+        this.storage = item.containsKey("storage") ? getString(item, "storage", serverName).toLowerCase() : S3;
+        if (!storage.equals(S3) && !storage.equals(EFS)) {
+            throw new IllegalArgumentException("storage of " + serverName + " must be " + S3 + " or " + EFS
+                    + ", got " + storage);
+        }
+
+        this.placement = item.containsKey("placement")
+                ? getString(item, "placement", serverName).toLowerCase()
+                : FARGATE;
+        if (!placement.equals(FARGATE) && !placement.equals(EC2)) {
+            throw new IllegalArgumentException("placement of " + serverName + " must be " + FARGATE + " or " + EC2
+                    + ", got " + placement);
+        }
+        if (placement.equals(EC2) && (spot || architecture.equals(ARM64))) {
+            throw new IllegalArgumentException(serverName + " can't combine placement " + EC2
+                    + " with spot or " + ARM64 + ", the instances are on-demand " + X86_64);
+        }
+        // A task that doesn't fit any instance stays in PROVISIONING instead of failing
+        if (placement.equals(EC2) && (computeProfile.cpu > EC2_CPU || computeProfile.memoryMiB > EC2_MEMORY_MIB)) {
+            throw new IllegalArgumentException(serverName + " can't use " + computeProfile + " with placement "
+                    + EC2 + ", the instances fit at most " + EC2_CPU + " CPU units and " + EC2_MEMORY_MIB + " MiB");
+        }
+
+        this.healthProbe = item.containsKey("healthProbe")
+                ? getString(item, "healthProbe", serverName).toLowerCase()
+                : PROBE_UPS;
+        if (!healthProbe.equals(PROBE_UPS) && !healthProbe.equals(PROBE_RCON)) {
+            throw new IllegalArgumentException("healthProbe of " + serverName + " must be " + PROBE_UPS + " or "
+                    + PROBE_RCON + ", got " + healthProbe);
+        }
+        // Defaults are repeated in lambda/probe.js, which reads the row itself
+        this.minUps = getInt(item, "minUps", 30);
+        if (minUps < 0 || minUps > 60) {
+            throw new IllegalArgumentException("minUps of " + serverName + " must be between 0 and 60");
+        }
+        this.unhealthyChecks = getInt(item, "unhealthyChecks", 5);
+        if (unhealthyChecks < 1 || unhealthyChecks > 60) {
+            throw new IllegalArgumentException("unhealthyChecks of " + serverName + " must be between 1 and 60");
+        }
+
+        this.logLevel = item.containsKey("logLevel") ? getString(item, "logLevel", serverName).toLowerCase() : "info";
+        if (!LOG_LEVELS.contains(logLevel)) {
+            throw new IllegalArgumentException("logLevel of " + serverName + " must be one of " + LOG_LEVELS
+                    + ", got " + logLevel);
+        }
+        this.logRouting = item.containsKey("logRouting")
+                ? getString(item, "logRouting", serverName).toLowerCase()
+                : AWSLOGS;
+        if (!logRouting.equals(AWSLOGS) && !logRouting.equals(FIRELENS)) {
+            throw new IllegalArgumentException("logRouting of " + serverName + " must be " + AWSLOGS + " or "
+                    + FIRELENS + ", got " + logRouting);
+        }
+
+        this.region = item.containsKey("region") ? getString(item, "region", serverName).toLowerCase() : null;
+        if (region != null && !region.equals(AUTO) && !REGION.matcher(region).matches()) {
+            throw new IllegalArgumentException("region of " + serverName + " must be a region name or " + AUTO
+                    + ", got " + region);
+        }
+        this.autoRegion = item.containsKey("autoRegion") ? getString(item, "autoRegion", serverName) : null;
+
+        this.mods = new ArrayList<>();
+        var modList = item.get("mods");
+        if (modList != null && modList.getL() != null) {
+            for (var mod : modList.getL()) {
+                if (mod.getM() == null) {
+                    throw new IllegalArgumentException("mods of " + serverName + " must be a list of maps");
+                }
+                mods.add(new ModReference(
+                        getString(mod.getM(), "name", serverName),
+                        getString(mod.getM(), "version", serverName),
+                        getString(mod.getM(), "sha1", serverName)
+                ));
+            }
+        }
+
+        this.schedules = new ArrayList<>();
+        var scheduleList = item.get("schedules");
+        if (scheduleList != null && scheduleList.getL() != null) {
+            for (var schedule : scheduleList.getL()) {
+                if (schedule.getM() == null) {
+                    throw new IllegalArgumentException("schedules of " + serverName + " must be a list of maps");
+                }
+                schedules.add(new SessionSchedule(
+                        getString(schedule.getM(), "cron", serverName),
+                        getInt(schedule.getM(), "leadMinutes", 10),
+                        getInt(schedule.getM(), "holdMinutes", 30)
+                ));
+            }
+        }
+    }
+
+    @NotNull
+    private static String getString(Map<String, AttributeValue> item, String key, String serverName) {
+        var value = item.get(key);
+        if (value == null || value.getS() == null || value.getS().trim().isEmpty()) {
+            throw new IllegalArgumentException("Server row " + serverName + " is missing " + key);
+        }
+        return value.getS();
+    }
+
+    private boolean getBoolean(Map<String, AttributeValue> item, String key, boolean defaultValue) {
+        var value = item.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.getBOOL() != null) {
+            return value.getBOOL();
+        }
+        if ("true".equalsIgnoreCase(value.getS()) || "false".equalsIgnoreCase(value.getS())) {
+            return Boolean.parseBoolean(value.getS());
+        }
+        throw new IllegalArgumentException(key + " of " + serverName + " must be true or false");
+    }
+
+    private int getInt(Map<String, AttributeValue> item, String key, int defaultValue) {
+        var value = item.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        var number = value.getN() != null ? value.getN() : value.getS();
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " of " + serverName + " must be a whole number, got " + number);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package io.doush.factorio;
+
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awscdk.core.ConstructNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the server table during synth.
+ * <p>
+ * The table is read with a parallel, paginated scan and the result is written to a snapshot file per account,
+ * region (or endpoint) and table. Synths with {@code registryOffline=true}, or within {@code registryMaxAge}
+ * minutes of the last scan, read the snapshot instead of going to DynamoDB. The default age is 0, since
+ * deploys are decided from the rows and a cached row can be stale. Any failure other than the table not
+ * existing yet is fatal: an empty server list would tear down every server on the next deploy.
+ * <p>
+ * Context values: {@code registryEndpoint} (e.g. DynamoDB Local), {@code registrySegments},
+ * {@code registryMaxAge} and {@code registryOffline}.
+ */
+public class ServerRegistry implements ServerSource {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final AmazonDynamoDB dynamoClient;
+    private final Path snapshotDirectory;
+    private final String snapshotPrefix;
+    private final Duration maxAge;
+    private final int segments;
+    private final boolean offline;
+
+    /**
+     * @param snapshotPrefix where the table is, see {@link #snapshotPrefix}
+     */
+    public ServerRegistry(AmazonDynamoDB dynamoClient, Path snapshotDirectory, String snapshotPrefix,
+                          Duration maxAge, int segments, boolean offline) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("registrySegments must be at least 1");
+        }
+        this.dynamoClient = dynamoClient;
+        this.snapshotDirectory = snapshotDirectory;
+        this.snapshotPrefix = snapshotPrefix;
+        this.maxAge = maxAge;
+        this.segments = segments;
+        this.offline = offline;
+    }
+
+    /**
+     * Keeps the snapshots of tables with the same name apart, e.g. for another account or DynamoDB Local.
+     */
+    static String snapshotPrefix(String account, String region, String endpoint) {
+        var where = endpoint.isEmpty() ? region : endpoint;
+        return (account == null ? "unknown" : account) + "-" + where.replaceAll("[^A-Za-z0-9.-]+", "_");
+    }
+
+    static ServerRegistry fromContext(ConstructNode node, String account, String region) {
+        var builder = AmazonDynamoDBClientBuilder.standard();
+        var endpoint = FactorioContext.getString(node, "registryEndpoint", "");
+        if (endpoint.isEmpty()) {
+            builder.withRegion(region);
+        } else {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        }
+        return new ServerRegistry(builder.build(),
+                Paths.get(".factorio-registry"),
+                snapshotPrefix(account, region, endpoint),
+                Duration.ofMinutes(FactorioContext.getInt(node, "registryMaxAge", 0)),
+                FactorioContext.getInt(node, "registrySegments", 4),
+                FactorioContext.getBoolean(node, "registryOffline", false)
+        );
+    }
+
+    @Override
+    public List<ServerConfig> load(String tableName) {
+        var snapshot = snapshotDirectory.resolve(snapshotPrefix + "-" + tableName + ".json");
+        List<Map<String, AttributeValue>> items;
+        if (offline) {
+            if (!Files.exists(snapshot)) {
+                throw new IllegalStateException("registryOffline is set but there is no snapshot at " + snapshot);
+            }
+            items = readSnapshot(snapshot);
+        } else if (isFresh(snapshot)) {
+            items = readSnapshot(snapshot);
+        } else {
+            try {
+                items = scan(tableName);
+            } catch (ResourceNotFoundException ex) {
+                System.err.println("Table " + tableName + " does not exist (yet), synthesizing without servers");
+                return Collections.emptyList();
+            }
+            writeSnapshot(snapshot, items);
+        }
+
+        return items.stream()
+                .map(ServerConfig::new)
+                .sorted(Comparator.comparing(server -> server.serverName))
+                .collect(Collectors.toList());
+    }
+
+    private List<Map<String, AttributeValue>> scan(String tableName) {
+        var executor = Executors.newFixedThreadPool(segments);
+        try {
+            var futures = new ArrayList<Future<List<Map<String, AttributeValue>>>>();
+            for (int segment = 0; segment < segments; segment++) {
+                int currentSegment = segment;
+                futures.add(executor.submit(() -> scanSegment(tableName, currentSegment)));
+            }
+            var items = new ArrayList<Map<String, AttributeValue>>();
+            for (var future : futures) {
+                items.addAll(future.get());
+            }
+            return items;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ResourceNotFoundException) {
+                throw (ResourceNotFoundException) ex.getCause();
+            }
+            throw new IllegalStateException("Failed to scan server table " + tableName, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning server table " + tableName, ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Map<String, AttributeValue>> scanSegment(String tableName, int segment) {
+        var items = new ArrayList<Map<String, AttributeValue>>();
+        Map<String, AttributeValue> lastKey = null;
+        do {
+            var result = dynamoClient.scan(new ScanRequest()
+                    .withTableName(tableName)
+                    .withConsistentRead(true)
+                    .withSegment(segment)
+                    .withTotalSegments(segments)
+                    .withExclusiveStartKey(lastKey));
+            items.addAll(result.getItems());
+            lastKey = result.getLastEvaluatedKey();
+        } while (lastKey != null && !lastKey.isEmpty());
+        return items;
+    }
+
+    private boolean isFresh(Path snapshot) {
+        if (maxAge.isZero() || !Files.exists(snapshot)) {
+            return false;
+        }
+        try {
+            var modified = Files.getLastModifiedTime(snapshot).toInstant();
+            return modified.plus(maxAge).isAfter(Instant.now());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static List<Map<String, AttributeValue>> readSnapshot(Path snapshot) {
+        try {
+            var items = new ArrayList<Map<String, AttributeValue>>();
+            for (var node : MAPPER.readTree(snapshot.toFile()).get("items")) {
+                items.add(ItemUtils.toAttributeValues(Item.fromJSON(node.toString())));
+            }
+            return items;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to read server snapshot " + snapshot, ex);
+        }
+    }
+
+    private static void writeSnapshot(Path snapshot, List<Map<String, AttributeValue>> items) {
+        try {
+            Files.createDirectories(snapshot.getParent());
+            ObjectNode root = MAPPER.createObjectNode();
+            var array = root.putArray("items");
+            for (var item : items) {
+                array.add(MAPPER.readTree(ItemUtils.toItem(item).toJSON()));
+            }
+            var temporary = Files.createTempFile(snapshot.getParent(), "snapshot", ".tmp");
+            MAPPER.writeValue(temporary.toFile(), root);
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to write server snapshot " + snapshot, ex);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package io.doush.factorio;
+
+import java.util.List;
+
+/**
+ * Where {@link FactorioCluster} gets its servers from during synth: the server table through
+ * {@link ServerRegistry}, or fixed and generated ones in the tests.
+ */
+public interface ServerSource {
+    List<ServerConfig> load(String tableName);
+}
@@ -0,0 +1,122 @@
+package io.doush.factorio;
+
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * A recurring play session, from the {@code schedules} list of a server row:
+ * <pre>
+ * {"cron": "0 19 ? * FRI *", "leadMinutes": 10, "holdMinutes": 30}
+ * </pre>
+ * {@code cron} is the session start as a six field AWS cron expression in UTC. The server is started
+ * {@code leadMinutes} before that, and kept running until {@code holdMinutes} after it, at which point
+ * the idle timeout takes over.
+ * <p>
+ * Shifting the start by the lead and hold times needs plain numbers in the minute and hour fields. When the
+ * shift crosses midnight the day of week field is shifted as well, so it must not use {@code L} or
+ * {@code #}, and a specific day of month can't be shifted at all.
+ */
+public class SessionSchedule {
+    private static final List<String> DAY_NAMES = List.of("SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT");
+
+    final String cron;
+    final int leadMinutes;
+    final int holdMinutes;
+
+    SessionSchedule(String cron, int leadMinutes, int holdMinutes) {
+        if (leadMinutes < 0 || holdMinutes < 0) {
+            throw new IllegalArgumentException("leadMinutes and holdMinutes can't be negative in " + cron);
+        }
+        this.cron = cron;
+        this.leadMinutes = leadMinutes;
+        this.holdMinutes = holdMinutes;
+        // Fail at synth rather than when the scheduled action is created
+        startExpression();
+        releaseExpression();
+    }
+
+    /**
+     * When the server should be started, as a {@code cron(...)} expression.
+     */
+    String startExpression() {
+        return "cron(" + shift(cron, -leadMinutes) + ")";
+    }
+
+    /**
+     * When the server may be scaled down again, as a {@code cron(...)} expression.
+     */
+    String releaseExpression() {
+        return "cron(" + shift(cron, holdMinutes) + ")";
+    }
+
+    static String shift(String cron, int offsetMinutes) {
+        var fields = cron.trim().split("\\s+");
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("Expected six cron fields in '" + cron + "'");
+        }
+        if (offsetMinutes == 0) {
+            return String.join(" ", fields);
+        }
+        int minute;
+        int hour;
+        try {
+            minute = Integer.parseInt(fields[0]);
+            hour = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Minute and hour must be plain numbers to shift '" + cron + "'");
+        }
+        if (minute < 0 || minute > 59 || hour < 0 || hour > 23) {
+            throw new IllegalArgumentException("Minute or hour out of range in '" + cron + "'");
+        }
+
+        int total = hour * 60 + minute + offsetMinutes;
+        int dayShift = Math.floorDiv(total, 24 * 60);
+        total = Math.floorMod(total, 24 * 60);
+        fields[0] = Integer.toString(total % 60);
+        fields[1] = Integer.toString(total / 60);
+
+        if (dayShift != 0) {
+            var dayOfMonth = fields[2];
+            var dayOfWeek = fields[4];
+            if (!dayOfWeek.equals("?") && !dayOfWeek.equals("*")) {
+                fields[4] = shiftDaysOfWeek(dayOfWeek, dayShift, cron);
+            } else if (!dayOfMonth.equals("*") && !dayOfMonth.equals("?")) {
+                throw new IllegalArgumentException("Can't move a specific day of month across midnight in '"
+                        + cron + "'");
+            }
+        }
+        return String.join(" ", fields);
+    }
+
+    private static String shiftDaysOfWeek(String field, int dayShift, String cron) {
+        var days = new TreeSet<Integer>();
+        for (var part : field.split(",")) {
+            var range = part.split("-");
+            int first = parseDay(range[0], cron);
+            int last = range.length > 1 ? parseDay(range[1], cron) : first;
+            if (range.length > 2 || last < first) {
+                throw new IllegalArgumentException("Unsupported day of week range '" + part + "' in '" + cron + "'");
+            }
+            for (int day = first; day <= last; day++) {
+                days.add(Math.floorMod(day - 1 + dayShift, 7) + 1);
+            }
+        }
+        return days.stream().map(Object::toString).collect(Collectors.joining(","));
+    }
+
+    private static int parseDay(String day, String cron) {
+        var index = DAY_NAMES.indexOf(day.toUpperCase());
+        if (index >= 0) {
+            return index + 1;
+        }
+        try {
+            var number = Integer.parseInt(day);
+            if (number >= 1 && number <= 7) {
+                return number;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Unsupported day of week '" + day + "' in '" + cron + "'");
+    }
+}
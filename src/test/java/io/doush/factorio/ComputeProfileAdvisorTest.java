@@ -0,0 +1,104 @@
+package io.doush.factorio;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the advisor hourly datapoints per metric name, the way CloudWatch returns extended statistics.
+ */
+public class ComputeProfileAdvisorTest {
+    @Test
+    public void keepsAProfileWithHeadroomLeft() {
+        var recommendation = recommend(Map.of(), Map.of(
+                "CPUUtilization", List.of(40.0, 60.0),
+                "MemoryUtilization", List.of(70.0)));
+        assertEquals("keep 512 CPU / 1024 MiB (p95 CPU 60%, p99 memory 70%)", recommendation);
+    }
+
+    @Test
+    public void growsToTheCheapestProfileWithTheRequiredCpuAndMemory() {
+        // 90% of 512 units is 658 at a 70% target, which only 1024 units and at least 2 GiB provide
+        var recommendation = recommend(Map.of(), Map.of(
+                "CPUUtilization", List.of(90.0),
+                "MemoryUtilization", List.of(50.0)));
+        assertTrue(recommendation, recommendation.startsWith("change 512 CPU / 1024 MiB to 1024 CPU / 2048 MiB, +"));
+    }
+
+    @Test
+    public void shrinksAnIdleServer() {
+        var recommendation = recommend(Map.of(), Map.of(
+                "CPUUtilization", List.of(10.0),
+                "MemoryUtilization", List.of(20.0)));
+        assertTrue(recommendation, recommendation.startsWith("change 512 CPU / 1024 MiB to 256 CPU / 512 MiB, -"));
+    }
+
+    @Test
+    public void doublesTheCpuOfAServerBelow55Ups() {
+        var recommendation = recommend(Map.of(), Map.of(
+                "CPUUtilization", List.of(30.0),
+                "MemoryUtilization", List.of(30.0),
+                "UPS", List.of(59.0, 40.0)));
+        assertTrue(recommendation, recommendation.startsWith("change 512 CPU / 1024 MiB to 1024 CPU / 2048 MiB"));
+        assertTrue(recommendation, recommendation.endsWith("(p95 CPU 30%, p99 memory 30%, p5 UPS 40.0)"));
+    }
+
+    @Test
+    public void keepsTheEphemeralStorage() {
+        var recommendation = recommend(Map.of("ephemeralStorageGiB", "50"), Map.of(
+                "CPUUtilization", List.of(90.0),
+                "MemoryUtilization", List.of(50.0)));
+        assertTrue(recommendation, recommendation.startsWith("change 512 CPU / 1024 MiB / 50 GiB to "
+                + "1024 CPU / 2048 MiB / 50 GiB"));
+    }
+
+    @Test
+    public void saysWhenNoProfileIsLargeEnough() {
+        var recommendation = recommend(Map.of("cpu", "16384", "memory", "122880"), Map.of(
+                "CPUUtilization", List.of(100.0),
+                "MemoryUtilization", List.of(50.0)));
+        assertTrue(recommendation, recommendation.startsWith("no Fargate profile is large enough"));
+    }
+
+    @Test
+    public void waitsForUtilizationData() {
+        assertEquals("keep 512 CPU / 1024 MiB, not enough data",
+                recommend(Map.of(), Map.of("UPS", List.of(60.0))));
+    }
+
+    private static String recommend(Map<String, String> attributes, Map<String, List<Double>> hourly) {
+        var requested = new TreeMap<String, String>();
+        var cloudWatch = (AmazonCloudWatch) Proxy.newProxyInstance(AmazonCloudWatch.class.getClassLoader(),
+                new Class<?>[]{AmazonCloudWatch.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("getMetricStatistics")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    var request = (GetMetricStatisticsRequest) args[0];
+                    var statistic = request.getExtendedStatistics().get(0);
+                    requested.put(request.getMetricName(), request.getNamespace() + " " + statistic);
+                    return new GetMetricStatisticsResult().withDatapoints(
+                            hourly.getOrDefault(request.getMetricName(), List.of()).stream()
+                                    .map(value -> new Datapoint().withExtendedStatistics(Map.of(statistic, value)))
+                                    .collect(Collectors.toList()));
+                });
+
+        var recommendation = new ComputeProfileAdvisor(cloudWatch, "factorio-cluster")
+                .recommend(Templates.server("example", attributes));
+        assertEquals(Map.of(
+                "CPUUtilization", "AWS/ECS p95",
+                "MemoryUtilization", "AWS/ECS p99",
+                "UPS", "Factorio-example p5"), requested);
+        return recommendation;
+    }
+}
@@ -0,0 +1,68 @@
+package io.doush.factorio;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ComputeProfileTest {
+    @Test
+    public void acceptsTheSmallestAndLargestMemoryOfEveryCpu() {
+        for (var combination : List.of(
+                new int[]{256, 512}, new int[]{256, 2048},
+                new int[]{512, 1024}, new int[]{512, 4096},
+                new int[]{1024, 2048}, new int[]{1024, 8192},
+                new int[]{2048, 4096}, new int[]{2048, 16384},
+                new int[]{4096, 8192}, new int[]{4096, 30720},
+                new int[]{8192, 16384}, new int[]{8192, 61440},
+                new int[]{16384, 32768}, new int[]{16384, 122880})) {
+            var profile = new ComputeProfile(combination[0], combination[1], 0);
+            assertEquals(combination[0], profile.cpu);
+            assertEquals(combination[1], profile.memoryMiB);
+        }
+    }
+
+    @Test
+    public void rejectsCombinationsFargateDoesNot() {
+        assertRejected(1536, 4096, 0);
+        assertRejected(256, 4096, 0);
+        assertRejected(1024, 1024, 0);
+        assertRejected(2048, 16896, 0);
+        // Above 4 vCPUs memory goes up in steps of 4 and 8 GiB
+        assertRejected(8192, 18432, 0);
+        assertRejected(16384, 36864, 0);
+    }
+
+    @Test
+    public void acceptsEphemeralStorageFrom21To200GiB() {
+        assertEquals(0, new ComputeProfile(512, 1024, 0).ephemeralStorageGiB);
+        assertEquals(21, new ComputeProfile(512, 1024, 21).ephemeralStorageGiB);
+        assertEquals(200, new ComputeProfile(512, 1024, 200).ephemeralStorageGiB);
+        assertRejected(512, 1024, 20);
+        assertRejected(512, 1024, 201);
+    }
+
+    @Test
+    public void listsEveryCombinationCheapestFirst() {
+        var profiles = ComputeProfile.all();
+        assertEquals(3 + 4 + 7 + 13 + 23 + 12 + 12, profiles.size());
+        assertEquals(profiles.stream().sorted(Comparator.comparingDouble(ComputeProfile::hourlyPrice))
+                .collect(Collectors.toList()), profiles);
+        assertEquals("256 CPU / 512 MiB", profiles.get(0).toString());
+        assertEquals("16384 CPU / 122880 MiB", profiles.get(profiles.size() - 1).toString());
+        assertTrue(profiles.stream().allMatch(profile -> profile.ephemeralStorageGiB == 0));
+    }
+
+    private static void assertRejected(int cpu, int memoryMiB, int ephemeralStorageGiB) {
+        try {
+            fail("Accepted " + new ComputeProfile(cpu, memoryMiB, ephemeralStorageGiB));
+        } catch (IllegalArgumentException expected) {
+            // Not a Fargate task size
+        }
+    }
+}
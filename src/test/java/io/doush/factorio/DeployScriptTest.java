@@ -0,0 +1,51 @@
+package io.doush.factorio;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awscdk.core.App;
+import software.amazon.awscdk.core.CfnElement;
+import software.amazon.awscdk.core.Construct;
+import software.amazon.awscdk.core.Stack;
+import software.amazon.awscdk.services.s3.Bucket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the logical id patterns in deploy.sh against the ids CDK generates for those construct paths.
+ */
+public class DeployScriptTest {
+    private static Pattern legacyBucket;
+
+    @BeforeClass
+    public static void readPattern() throws IOException {
+        var matcher = Pattern.compile("(?m)^LEGACY_BUCKET='(.*)'$").matcher(Files.readString(Path.of("deploy.sh")));
+        assertTrue("No LEGACY_BUCKET in deploy.sh", matcher.find());
+        legacyBucket = Pattern.compile(matcher.group(1));
+    }
+
+    @Test
+    public void matchesTheSaveBucketsOfTheOldClusterStack() {
+        // Before every server had its own stack, the cluster stack held them all
+        var stack = new Stack(new App(), "factorio-stack-test-example-com");
+        var cluster = new Construct(stack, "factorio-cluster");
+        var oldBucket = logicalId(stack, new Bucket(new Construct(cluster, "factorio-server-my-server"), "bucket"));
+        assertTrue(oldBucket, legacyBucket.matcher(oldBucket).matches());
+    }
+
+    @Test
+    public void leavesTheBucketsOfServerStacksAlone() {
+        var stack = new Stack(new App(), "factorio-stack-test-example-com-server-my-server");
+        var bucket = logicalId(stack, new Bucket(new Construct(stack, "factorio-server"), "bucket"));
+        assertFalse(bucket, legacyBucket.matcher(bucket).matches());
+    }
+
+    private static String logicalId(Stack stack, Bucket bucket) {
+        return stack.getLogicalId((CfnElement) bucket.getNode().getDefaultChild());
+    }
+}
@@ -0,0 +1,115 @@
+package io.doush.factorio;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FactorioClusterTest {
+    @Test
+    public void createsTheFileSystemForServersOnEfsOnly() {
+        var withoutEfs = Templates.synthesize(List.of(Templates.server("s3", Map.of())));
+        assertEquals(0, Templates.resources(withoutEfs.cluster(), "AWS::EFS::FileSystem").size());
+
+        var withEfs = Templates.synthesize(List.of(
+                Templates.server("s3", Map.of()),
+                Templates.server("efs", Map.of("storage", "efs"))));
+        var fileSystems = Templates.resources(withEfs.cluster(), "AWS::EFS::FileSystem");
+        assertEquals(1, fileSystems.size());
+        assertTrue(fileSystems.get(0).path("Properties").path("Encrypted").asBoolean());
+        // Leaving the template with the last EFS server must not delete the saves on it
+        assertEquals("Retain", fileSystems.get(0).path("DeletionPolicy").asText());
+    }
+
+    @Test
+    public void keepsOneWarmInstancePerEc2Server() {
+        var templates = Templates.synthesize(List.of(
+                Templates.server("fargate", Map.of()),
+                Templates.server("first", Map.of("placement", "ec2")),
+                Templates.server("second", Map.of("placement", "ec2"))));
+        var cluster = templates.cluster();
+
+        var groups = Templates.resources(cluster, "AWS::AutoScaling::AutoScalingGroup");
+        assertEquals(1, groups.size());
+        var group = groups.get(0);
+        assertEquals("0", group.path("Properties").path("MinSize").asText());
+        assertEquals("2", group.path("Properties").path("MaxSize").asText());
+
+        var warmPools = Templates.resources(cluster, "AWS::AutoScaling::WarmPool");
+        assertEquals(1, warmPools.size());
+        var warmPool = warmPools.get(0).path("Properties");
+        assertEquals(group.path("LogicalId").asText(), warmPool.path("AutoScalingGroupName").path("Ref").asText());
+        assertEquals("Stopped", warmPool.path("PoolState").asText());
+        assertEquals(2, warmPool.path("MinSize").asInt());
+        assertTrue(warmPool.path("InstanceReusePolicy").path("ReuseOnScaleIn").asBoolean());
+    }
+
+    @Test
+    public void placesEc2ServersWithTheManagedCapacityProvider() {
+        var templates = Templates.synthesize(List.of(Templates.server("ec2", Map.of("placement", "ec2"))));
+        var cluster = templates.cluster();
+
+        var providers = Templates.resources(cluster, "AWS::ECS::CapacityProvider");
+        assertEquals(1, providers.size());
+        var provider = providers.get(0);
+        var autoScaling = provider.path("Properties").path("AutoScalingGroupProvider");
+        assertEquals("ENABLED", autoScaling.path("ManagedScaling").path("Status").asText());
+        assertEquals(100, autoScaling.path("ManagedScaling").path("TargetCapacity").asInt());
+        assertTrue(Templates.resources(cluster, "AWS::ECS::ClusterCapacityProviderAssociations").stream()
+                .anyMatch(associations -> associations.path("Properties").path("CapacityProviders").toString()
+                        .contains("\"" + provider.path("LogicalId").asText() + "\"")));
+
+        var strategy = Templates.resources(templates.server("ec2"), "AWS::ECS::Service").get(0)
+                .path("Properties").path("CapacityProviderStrategy");
+        assertEquals(1, strategy.size());
+        assertTrue(strategy.get(0).path("CapacityProvider").has("Fn::ImportValue"));
+    }
+
+    @Test
+    public void hasNoEc2CapacityWithoutEc2Servers() {
+        var cluster = Templates.synthesize(List.of(Templates.server("fargate", Map.of()))).cluster();
+        assertEquals(0, Templates.resources(cluster, "AWS::AutoScaling::AutoScalingGroup").size());
+        assertEquals(0, Templates.resources(cluster, "AWS::ECS::CapacityProvider").size());
+    }
+
+    @Test
+    public void keepsTheImagesOfTheServersVersionsOverOldBuilds() throws IOException {
+        var cluster = Templates.synthesize(List.of(
+                Templates.server("old", Map.of("version", "1.1.100")),
+                Templates.server("new", Map.of("version", "1.1.110")),
+                Templates.server("other", Map.of("version", "1.1.110")))).cluster();
+        var repositories = Templates.resources(cluster, "AWS::ECR::Repository");
+        assertEquals(1, repositories.size());
+        var policy = new ObjectMapper().readTree(repositories.get(0).path("Properties").path("LifecyclePolicy")
+                .path("LifecyclePolicyText").asText());
+
+        var versionRules = new ArrayList<JsonNode>();
+        JsonNode buildRule = null;
+        for (var rule : policy.path("rules")) {
+            var prefixes = rule.path("selection").path("tagPrefixList");
+            if (prefixes.toString().equals("[\"build-\"]")) {
+                buildRule = rule;
+            } else if (prefixes.size() > 0) {
+                versionRules.add(rule);
+            }
+        }
+        assertEquals(List.of("[\"1.1.100\"]", "[\"1.1.110\"]"), versionRules.stream()
+                .map(rule -> rule.path("selection").path("tagPrefixList").toString())
+                .collect(Collectors.toList()));
+        assertTrue("No rule for the build- images", buildRule != null);
+        for (var rule : versionRules) {
+            // A rule that matches an image keeps rules of lower priority from expiring it
+            assertTrue(rule.path("rulePriority").asInt() < buildRule.path("rulePriority").asInt());
+            assertEquals("imageCountMoreThan", rule.path("selection").path("countType").asText());
+            assertTrue(rule.path("selection").path("countNumber").asInt() >= 1000);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.doush.factorio;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awscdk.core.App;
+import software.amazon.awscdk.core.Stack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FactorioDashboardsTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static JsonNode server;
+    private static JsonNode fleet;
+
+    @BeforeClass
+    public static void synthesize() throws IOException {
+        var app = new App();
+        var stack = new Stack(app, "dashboards");
+        FactorioDashboards.server(stack, "factorio-example", Templates.server("example", Map.of("minUps", "45")),
+                "factorio-cluster");
+        FactorioDashboards.fleet(stack, "factorio", "factorio-cluster");
+        var template = MAPPER.valueToTree(app.synth().getStackArtifact("dashboards").getTemplate());
+        server = body(template, "dashboard");
+        fleet = body(template, "fleetDashboard");
+    }
+
+    @Test
+    public void graphsTheServersMetrics() {
+        var metrics = metrics(server).stream()
+                .filter(metric -> metric.path(0).asText().equals("Factorio-example"))
+                .map(metric -> metric.path(1).asText())
+                .collect(Collectors.toSet());
+        assertEquals(Set.of("PlayersOnline", "UPS", "ResponseTime", "RconLatency", "StartupTime",
+                "ProvisioningTime", "ImagePullTime", "ContainerStartTime", "DnsCutoverTime", "SaveDuration",
+                "SaveSize"), metrics);
+    }
+
+    @Test
+    public void marksTheServersMinimumUps() {
+        var ups = widget(server, "UPS");
+        var annotation = ups.path("properties").path("annotations").path("horizontal").path(0);
+        assertEquals(45, annotation.path("value").asInt());
+        assertEquals("minUps", annotation.path("label").asText());
+    }
+
+    @Test
+    public void graphsTheServicesUtilization() {
+        var service = List.of("ClusterName", "factorio-cluster", "ServiceName", "factorio-example");
+        var utilization = metrics(server).stream()
+                .filter(metric -> metric.path(0).asText().equals("AWS/ECS"))
+                .collect(Collectors.toList());
+        assertEquals(2, utilization.size());
+        for (var metric : utilization) {
+            var dimensions = new ArrayList<String>();
+            for (int i = 2; i < 6; i++) {
+                dimensions.add(metric.path(i).asText());
+            }
+            assertEquals(service, dimensions);
+        }
+    }
+
+    @Test
+    public void searchesEveryServerOnTheFleetDashboard() {
+        var expressions = widgets(fleet).stream()
+                .flatMap(widget -> stream(widget.path("properties").path("metrics")))
+                .map(metric -> metric.path(0).path("expression").asText())
+                .collect(Collectors.toList());
+        assertEquals(6, expressions.size());
+        assertTrue(expressions.toString(), expressions.contains("SEARCH('Factorio MetricName=\"UPS\"', 'Minimum', 60)"));
+        // Only the services of this cluster
+        assertTrue(expressions.toString(), expressions.stream().anyMatch(expression ->
+                expression.startsWith("SEARCH('{AWS/ECS,ClusterName,ServiceName} ClusterName=\"factorio-cluster\"")));
+    }
+
+    // The dashboard's body, with the region tokens it is joined with as plain strings
+    private static JsonNode body(JsonNode template, String logicalIdPrefix) throws IOException {
+        var resources = template.path("Resources").fields();
+        while (resources.hasNext()) {
+            var resource = resources.next();
+            if (resource.getKey().startsWith(logicalIdPrefix)) {
+                var joined = new StringBuilder();
+                resource.getValue().path("Properties").path("DashboardBody").path("Fn::Join").path(1)
+                        .forEach(part -> joined.append(part.isTextual() ? part.asText() : "region"));
+                return MAPPER.readTree(joined.toString());
+            }
+        }
+        throw new AssertionError("No dashboard " + logicalIdPrefix);
+    }
+
+    private static List<JsonNode> widgets(JsonNode body) {
+        return stream(body.path("widgets")).collect(Collectors.toList());
+    }
+
+    private static JsonNode widget(JsonNode body, String title) {
+        return widgets(body).stream()
+                .filter(widget -> widget.path("properties").path("title").asText().equals(title))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No widget " + title));
+    }
+
+    // Every metric of every widget, as [namespace, metricName, dimension name, value, ..., options]
+    private static List<JsonNode> metrics(JsonNode body) {
+        return widgets(body).stream()
+                .flatMap(widget -> stream(widget.path("properties").path("metrics")))
+                .collect(Collectors.toList());
+    }
+
+    private static Stream<JsonNode> stream(JsonNode array) {
+        var elements = new ArrayList<JsonNode>();
+        array.forEach(elements::add);
+        return elements.stream();
+    }
+}
@@ -0,0 +1,51 @@
+package io.doush.factorio;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class FactorioRegionsTest {
+    private final FactorioRegions regions = new FactorioRegions("eu-west-1", List.of("us-east-1", "eu-west-1"));
+
+    @Test
+    public void putsThePrimaryRegionFirstOnce() {
+        assertEquals(List.of("eu-west-1", "us-east-1"), regions.all);
+        assertEquals(List.of("us-east-1"), regions.secondary());
+        assertFalse(new FactorioRegions("eu-west-1", List.of()).isMultiRegion());
+    }
+
+    @Test
+    public void runsServersWithoutARegionInThePrimaryRegion() {
+        assertEquals("eu-west-1", regions.regionOf(Templates.server("example", Map.of())));
+        assertEquals("us-east-1", regions.regionOf(Templates.server("example", Map.of("region", "US-EAST-1"))));
+    }
+
+    @Test
+    public void runsAutoServersWhereThePlayersAreClosest() {
+        assertEquals("us-east-1", regions.regionOf(Templates.server("example",
+                Map.of("region", "auto", "autoRegion", "us-east-1"))));
+        // Until someone reported their latency
+        assertEquals("eu-west-1", regions.regionOf(Templates.server("example", Map.of("region", "auto"))));
+    }
+
+    @Test
+    public void keepsAutoServersInThePrimaryRegionWhenTheirRegionWasRemoved() {
+        assertEquals("eu-west-1", regions.regionOf(Templates.server("example",
+                Map.of("region", "auto", "autoRegion", "ap-southeast-2"))));
+    }
+
+    @Test
+    public void rejectsRegionsThatAreNotConfigured() {
+        try {
+            regions.regionOf(Templates.server("example", Map.of("region", "ap-southeast-2")));
+            fail("Accepted a region without a cluster");
+        } catch (IllegalArgumentException expected) {
+            // Not one of the configured regions
+        }
+    }
+}
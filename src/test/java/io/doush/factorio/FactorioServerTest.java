@@ -0,0 +1,300 @@
+package io.doush.factorio;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FactorioServerTest {
+    private static final String SHA1 = "0123456789abcdef0123456789abcdef01234567";
+
+    private static JsonNode server;
+    private static JsonNode efsServer;
+    private static JsonNode firelensServer;
+    private static JsonNode moddedServer;
+    private static JsonNode cluster;
+
+    @BeforeClass
+    public static void synthesize() {
+        var templates = Templates.synthesize(List.of(
+                Templates.server("scaling", Map.of("idleMinutes", "20", "idleDatapoints", "15")),
+                Templates.server("efs", Map.of("storage", "efs")),
+                Templates.server("filtered", Map.of("logRouting", "firelens", "logLevel", "warning")),
+                new ServerConfig(new TreeMap<>() {{
+                    put("serverName", new AttributeValue("modded"));
+                    put("version", new AttributeValue("1.1.110"));
+                    put("mods", new AttributeValue().withL(
+                            mod("Krastorio2", "1.1.4", SHA1.toUpperCase()),
+                            mod("Squeak Through", "1.8.2", SHA1)));
+                }})));
+        server = templates.server("scaling");
+        efsServer = templates.server("efs");
+        firelensServer = templates.server("filtered");
+        moddedServer = templates.server("modded");
+        cluster = templates.cluster();
+    }
+
+    @Test
+    public void startsOnTheFirstMinuteWithPlayers() {
+        var alarm = alarm("GreaterThanOrEqualToThreshold");
+        assertEquals("PlayersOnline", alarm.path("MetricName").asText());
+        assertEquals(1, alarm.path("Threshold").asInt());
+        assertEquals(1, alarm.path("EvaluationPeriods").asInt());
+        assertEquals("notBreaching", alarm.path("TreatMissingData").asText());
+
+        var step = stepOf(alarm);
+        assertEquals(0, step.path("MetricIntervalLowerBound").asInt());
+        assertEquals(1, step.path("ScalingAdjustment").asInt());
+    }
+
+    @Test
+    public void stopsAfterTheIdleMinutes() {
+        var alarm = alarm("LessThanOrEqualToThreshold");
+        assertEquals("PlayersOnline", alarm.path("MetricName").asText());
+        assertEquals(0, alarm.path("Threshold").asInt());
+        assertEquals(20, alarm.path("EvaluationPeriods").asInt());
+        assertEquals(15, alarm.path("DatapointsToAlarm").asInt());
+        // A stopped server reports nothing, which must not keep scaling a started one back to zero
+        assertEquals("notBreaching", alarm.path("TreatMissingData").asText());
+
+        var step = stepOf(alarm);
+        assertEquals(0, step.path("MetricIntervalUpperBound").asInt());
+        assertEquals(0, step.path("ScalingAdjustment").asInt());
+    }
+
+    @Test
+    public void keepsTheSaveBucketWhenTheStackIsDeleted() {
+        var buckets = Templates.resources(server, "AWS::S3::Bucket");
+        assertEquals(1, buckets.size());
+        assertEquals("Retain", buckets.get(0).path("DeletionPolicy").asText());
+    }
+
+    @Test
+    public void mountsItsOwnAccessPoint() {
+        var accessPoints = Templates.resources(efsServer, "AWS::EFS::AccessPoint");
+        assertEquals(1, accessPoints.size());
+        var properties = accessPoints.get(0).path("Properties");
+        assertEquals("/servers/efs", properties.path("RootDirectory").path("Path").asText());
+        assertEquals("845", properties.path("PosixUser").path("Uid").asText());
+
+        var volume = Templates.resources(efsServer, "AWS::ECS::TaskDefinition").get(0)
+                .path("Properties").path("Volumes").get(0).path("EFSVolumeConfiguration");
+        assertEquals("ENABLED", volume.path("TransitEncryption").asText());
+        assertEquals(accessPoints.get(0).path("LogicalId").asText(),
+                volume.path("AuthorizationConfig").path("AccessPointId").path("Ref").asText());
+        assertEquals(0, Templates.resources(server, "AWS::EFS::AccessPoint").size());
+    }
+
+    @Test
+    public void onlyTheServersOwnRoleMountsTheFileSystem() {
+        var taskRole = Templates.resources(efsServer, "AWS::ECS::TaskDefinition").get(0)
+                .path("Properties").path("TaskRoleArn");
+        var role = Templates.referenced(efsServer, taskRole);
+        assertEquals("AWS::IAM::Role", role.path("Type").asText());
+
+        var mounts = statements(efsServer, taskRole.path("Fn::GetAtt").path(0).asText(),
+                "elasticfilesystem:ClientMount");
+        assertEquals(1, mounts.size());
+        var accessPoint = Templates.resources(efsServer, "AWS::EFS::AccessPoint").get(0).path("LogicalId").asText();
+        var accessPointArn = mounts.get(0).path("Condition").path("StringEquals")
+                .path("elasticfilesystem:AccessPointArn");
+        assertTrue(accessPointArn.toString(), accessPointArn.toString().contains("\"" + accessPoint + "\""));
+
+        // The S3 server keeps the shared role, which can't mount anything
+        assertTrue(Templates.resources(server, "AWS::ECS::TaskDefinition").get(0)
+                .path("Properties").path("TaskRoleArn").has("Fn::ImportValue"));
+        for (var policy : Templates.resources(cluster, "AWS::IAM::Policy")) {
+            assertFalse(policy.path("Properties").toString().contains("elasticfilesystem:Client"));
+        }
+    }
+
+    @Test
+    public void reachesTheFileSystemOverNfsFromTheServerSecurityGroup() {
+        var mountTargets = Templates.resources(cluster, "AWS::EFS::MountTarget");
+        assertFalse(mountTargets.isEmpty());
+        var fileSystemGroup = mountTargets.get(0).path("Properties").path("SecurityGroups").get(0)
+                .path("Fn::GetAtt").path(0).asText();
+        var serverGroup = Templates.resources(cluster, "AWS::EC2::SecurityGroup").stream()
+                .map(group -> group.path("LogicalId").asText())
+                .filter(logicalId -> logicalId.contains("serverSecurityGroup"))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No server security group"));
+
+        var rules = Templates.resources(cluster, "AWS::EC2::SecurityGroupIngress").stream()
+                .map(rule -> rule.path("Properties"))
+                .filter(rule -> fileSystemGroup.equals(rule.path("GroupId").path("Fn::GetAtt").path(0).asText()))
+                .collect(Collectors.toList());
+        assertEquals(1, rules.size());
+        var rule = rules.get(0);
+        assertEquals("tcp", rule.path("IpProtocol").asText());
+        assertEquals(2049, rule.path("FromPort").asInt());
+        assertEquals(2049, rule.path("ToPort").asInt());
+        assertEquals(serverGroup, rule.path("SourceSecurityGroupId").path("Fn::GetAtt").path(0).asText());
+    }
+
+    @Test
+    public void backsUpTheAccessPointEveryHour() {
+        var tasks = Templates.resources(efsServer, "AWS::DataSync::Task");
+        assertEquals(1, tasks.size());
+        var properties = tasks.get(0).path("Properties");
+        assertEquals("factorio-efs-backup", properties.path("Name").asText());
+        assertEquals("rate(1 hour)", properties.path("Schedule").path("ScheduleExpression").asText());
+        assertEquals("CHANGED", properties.path("Options").path("TransferMode").asText());
+        assertEquals("PRESERVE", properties.path("Options").path("PreserveDeletedFiles").asText());
+
+        var source = Templates.referenced(efsServer, properties.path("SourceLocationArn"));
+        assertEquals("AWS::DataSync::LocationEFS", source.path("Type").asText());
+        assertEquals("/servers/efs", source.path("Properties").path("Subdirectory").asText());
+        var destination = Templates.referenced(efsServer, properties.path("DestinationLocationArn"));
+        assertEquals("AWS::DataSync::LocationS3", destination.path("Type").asText());
+        assertEquals("/efs", destination.path("Properties").path("Subdirectory").asText());
+        assertEquals(0, Templates.resources(server, "AWS::DataSync::Task").size());
+    }
+
+    @Test
+    public void listsTheModsToCopyFromTheCache() throws IOException {
+        var environment = environment(moddedServer, "container");
+        var manifest = new ObjectMapper().readTree(environment.get("MOD_MANIFEST").asText());
+        assertEquals(2, manifest.size());
+        // In the order of the row, with the key lambda/mods.js stores the file under
+        assertEquals("Krastorio2", manifest.get(0).path("name").asText());
+        assertEquals("1.1.4", manifest.get(0).path("version").asText());
+        assertEquals(SHA1, manifest.get(0).path("sha1").asText());
+        assertEquals("mods/Krastorio2/1.1.4/" + SHA1 + ".zip", manifest.get(0).path("key").asText());
+        assertEquals("mods/Squeak Through/1.8.2/" + SHA1 + ".zip", manifest.get(1).path("key").asText());
+        assertTrue(environment.get("MOD_CACHE_BUCKET").toString(), environment.get("MOD_CACHE_BUCKET").isObject());
+
+        assertEquals("[]", environment(server, "container").get("MOD_MANIFEST").asText());
+    }
+
+    @Test
+    public void letsEveryServerReadTheModCache() {
+        var modCache = Templates.resources(cluster, "AWS::S3::Bucket").stream()
+                .map(bucket -> bucket.path("LogicalId").asText())
+                .filter(logicalId -> logicalId.contains("modCache"))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No mod cache bucket"));
+        var taskRole = Templates.resources(cluster, "AWS::IAM::Role").stream()
+                .map(role -> role.path("LogicalId").asText())
+                .filter(logicalId -> logicalId.contains("taskRole"))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No shared task role"));
+
+        var reads = statements(cluster, taskRole, "s3:GetObject*");
+        assertTrue(reads.stream().anyMatch(statement -> statement.path("Resource").toString()
+                .contains("\"" + modCache + "\"")));
+    }
+
+    @Test
+    public void routesTheLogsThroughFluentBitWithLogRoutingFirelens() throws IOException {
+        var containers = Templates.resources(firelensServer, "AWS::ECS::TaskDefinition").get(0)
+                .path("Properties").path("ContainerDefinitions");
+        var names = new ArrayList<String>();
+        containers.forEach(container -> names.add(container.path("Name").asText()));
+        assertEquals(List.of("logRouter", "container"), names);
+        assertEquals("fluentbit", containers.get(0).path("FirelensConfiguration").path("Type").asText());
+        assertEquals("awsfirelens", containers.get(1).path("LogConfiguration").path("LogDriver").asText());
+
+        // Everything firelens/factorio.conf reads is set on the router
+        var environment = environment(firelensServer, "logRouter");
+        var variables = Pattern.compile("\\$\\{([A-Z_]+)}")
+                .matcher(Files.readString(Path.of("firelens/factorio.conf")));
+        while (variables.find()) {
+            assertTrue(variables.group(1), environment.containsKey(variables.group(1)));
+        }
+        assertTrue(environment.toString(), environment.containsKey("aws_fluent_bit_init_s3_1"));
+
+        var routers = Templates.resources(server, "AWS::ECS::TaskDefinition").get(0)
+                .path("Properties").path("ContainerDefinitions");
+        assertEquals(1, routers.size());
+        assertEquals("awslogs", routers.get(0).path("LogConfiguration").path("LogDriver").asText());
+    }
+
+    @Test
+    public void keepsLinesBelowTheLogLevelOutOfCloudWatch() {
+        var exclude = Pattern.compile(environment(firelensServer, "logRouter").get("LOG_EXCLUDE").asText());
+        assertTrue(exclude.matcher("   0.012 Info Something.cpp:42: Loading map").find());
+        assertTrue(exclude.matcher(" 123.456 Verbose Something.cpp:42: Tick").find());
+        assertFalse(exclude.matcher("  12.345 Warning Something.cpp:42: Mod conflict").find());
+        assertFalse(exclude.matcher("  12.345 Error Something.cpp:42: Desync").find());
+        // Lines that aren't log lines, like a stack trace, always go through
+        assertFalse(exclude.matcher("Info about the map").find());
+    }
+
+    private static AttributeValue mod(String name, String version, String sha1) {
+        return new AttributeValue().withM(Map.of(
+                "name", new AttributeValue(name),
+                "version", new AttributeValue(version),
+                "sha1", new AttributeValue(sha1)));
+    }
+
+    // Environment of a container of the server's task, by name
+    private static Map<String, JsonNode> environment(JsonNode template, String containerName) {
+        var containers = Templates.resources(template, "AWS::ECS::TaskDefinition").get(0)
+                .path("Properties").path("ContainerDefinitions");
+        var environment = new TreeMap<String, JsonNode>();
+        for (var container : containers) {
+            if (container.path("Name").asText().equals(containerName)) {
+                container.path("Environment").forEach(variable ->
+                        environment.put(variable.path("Name").asText(), variable.path("Value")));
+            }
+        }
+        return environment;
+    }
+
+    // The statements of the role's policies that allow the action
+    private static List<JsonNode> statements(JsonNode template, String roleLogicalId, String action) {
+        var found = new ArrayList<JsonNode>();
+        for (var policy : Templates.resources(template, "AWS::IAM::Policy")) {
+            var properties = policy.path("Properties");
+            if (!properties.path("Roles").toString().contains("\"" + roleLogicalId + "\"")) {
+                continue;
+            }
+            for (var statement : properties.path("PolicyDocument").path("Statement")) {
+                var actions = statement.path("Action");
+                if (actions.isArray() ? actions.toString().contains("\"" + action + "\"")
+                        : actions.asText().equals(action)) {
+                    found.add(statement);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static JsonNode alarm(String comparisonOperator) {
+        var alarms = Templates.resources(server, "AWS::CloudWatch::Alarm");
+        assertEquals(2, alarms.size());
+        return alarms.stream()
+                .map(alarm -> alarm.path("Properties"))
+                .filter(properties -> comparisonOperator.equals(properties.path("ComparisonOperator").asText()))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No alarm with " + comparisonOperator));
+    }
+
+    // The one step of the scaling policy the alarm triggers, which sets an exact task count
+    private static JsonNode stepOf(JsonNode alarm) {
+        assertEquals(1, alarm.path("AlarmActions").size());
+        var policy = Templates.referenced(server, alarm.path("AlarmActions").get(0));
+        assertEquals("AWS::ApplicationAutoScaling::ScalingPolicy", policy.path("Type").asText());
+
+        var configuration = policy.path("Properties").path("StepScalingPolicyConfiguration");
+        assertEquals("ExactCapacity", configuration.path("AdjustmentType").asText());
+        assertEquals(1, configuration.path("StepAdjustments").size());
+        return configuration.path("StepAdjustments").get(0);
+    }
+}
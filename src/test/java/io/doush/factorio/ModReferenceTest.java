@@ -0,0 +1,41 @@
+package io.doush.factorio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ModReferenceTest {
+    private static final String SHA1 = "0123456789abcdef0123456789abcdef01234567";
+
+    @Test
+    public void keysTheCacheByNameVersionAndHash() {
+        // lambda/test/mods.test.js expects the same key
+        assertEquals("mods/Krastorio2/1.1.4/" + SHA1 + ".zip", new ModReference("Krastorio2", "1.1.4", SHA1).key());
+    }
+
+    @Test
+    public void storesTheHashInLowerCase() {
+        var mod = new ModReference("Squeak Through", "1.8.2", SHA1.toUpperCase());
+        assertEquals(SHA1, mod.sha1);
+        assertEquals("mods/Squeak Through/1.8.2/" + SHA1 + ".zip", mod.key());
+    }
+
+    @Test
+    public void rejectsInvalidReferences() {
+        assertRejected("../Krastorio2", "1.1.4", SHA1);
+        assertRejected("Krastorio2/bin", "1.1.4", SHA1);
+        assertRejected("Krastorio2", "1.1", SHA1);
+        assertRejected("Krastorio2", "1.1.4/..", SHA1);
+        assertRejected("Krastorio2", "1.1.4", SHA1.substring(1));
+        assertRejected("Krastorio2", "1.1.4", SHA1.replace('a', 'g'));
+    }
+
+    private static void assertRejected(String name, String version, String sha1) {
+        try {
+            fail("Accepted " + new ModReference(name, version, sha1).key());
+        } catch (IllegalArgumentException expected) {
+            // Not a mod portal release
+        }
+    }
+}
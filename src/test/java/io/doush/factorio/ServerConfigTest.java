@@ -0,0 +1,45 @@
+package io.doush.factorio;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServerConfigTest {
+    @Test
+    public void placesProfilesThatFitTheInstanceOnEc2() {
+        var server = Templates.server("ec2", Map.of("placement", "ec2", "cpu", "1024", "memory", "3072"));
+        assertEquals(ServerConfig.EC2, server.placement);
+        assertEquals(1024, server.computeProfile.cpu);
+        assertEquals(3072, server.computeProfile.memoryMiB);
+    }
+
+    @Test
+    public void rejectsProfilesLargerThanTheInstanceOnEc2() {
+        // 2 vCPUs need at least 4 GiB on Fargate, more than the instance leaves for the task
+        var message = assertRejected(Map.of("placement", "ec2", "cpu", "2048", "memory", "4096"));
+        assertTrue(message, message.contains("2048 CPU / 4096 MiB"));
+        assertRejected(Map.of("placement", "ec2", "cpu", "512", "memory", "4096"));
+        assertRejected(Map.of("placement", "ec2", "cpu", "4096", "memory", "8192"));
+    }
+
+    @Test
+    public void placesTheSameProfilesOnFargate() {
+        var server = Templates.server("fargate", Map.of("cpu", "2048", "memory", "4096"));
+        assertEquals(ServerConfig.FARGATE, server.placement);
+        assertEquals(2048, server.computeProfile.cpu);
+    }
+
+    private static String assertRejected(Map<String, String> attributes) {
+        try {
+            Templates.server("ec2", attributes);
+            fail("Accepted " + attributes);
+            return null;
+        } catch (IllegalArgumentException expected) {
+            return expected.getMessage();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package io.doush.factorio;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.local.embedded.DynamoDBEmbedded;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scans an in-memory DynamoDB Local table. Rows are padded so that every segment takes several pages, since a
+ * scan page stops at 1 MB.
+ */
+public class ServerRegistryTest {
+    private static final String TABLE_NAME = "servers";
+    private static final int SERVERS = 300;
+    private static final int SEGMENTS = 4;
+    private static final String PADDING = "x".repeat(20 * 1024);
+
+    private static AmazonDynamoDB dynamoDb;
+
+    @Rule
+    public TemporaryFolder snapshots = new TemporaryFolder();
+
+    @BeforeClass
+    public static void createTable() {
+        dynamoDb = DynamoDBEmbedded.create().amazonDynamoDB();
+        dynamoDb.createTable(new CreateTableRequest()
+                .withTableName(TABLE_NAME)
+                .withAttributeDefinitions(new AttributeDefinition("serverName", ScalarAttributeType.S))
+                .withKeySchema(new KeySchemaElement("serverName", KeyType.HASH))
+                .withBillingMode(BillingMode.PAY_PER_REQUEST));
+
+        var writes = IntStream.range(0, SERVERS)
+                .mapToObj(i -> new WriteRequest(new PutRequest(new TreeMap<>() {{
+                    put("serverName", new AttributeValue(String.format("server-%03d", i)));
+                    put("version", new AttributeValue("1.1.110"));
+                    put("padding", new AttributeValue(PADDING));
+                }})))
+                .collect(Collectors.toList());
+        for (int from = 0; from < writes.size(); from += 25) {
+            dynamoDb.batchWriteItem(Map.of(TABLE_NAME, writes.subList(from, Math.min(from + 25, writes.size()))));
+        }
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        dynamoDb.shutdown();
+    }
+
+    @Test
+    public void scansEverySegmentToTheLastPage() {
+        var scans = Collections.synchronizedList(new ArrayList<ScanRequest>());
+        var registry = registry(recording(scans), "test", Duration.ZERO);
+
+        var servers = registry.load(TABLE_NAME);
+        assertEquals(SERVERS, servers.size());
+        assertEquals(IntStream.range(0, SERVERS).mapToObj(i -> String.format("server-%03d", i))
+                        .collect(Collectors.toList()),
+                servers.stream().map(server -> server.serverName).collect(Collectors.toList()));
+
+        assertEquals(Set.of(0, 1, 2, 3), scans.stream().map(ScanRequest::getSegment).collect(Collectors.toSet()));
+        assertTrue(scans.stream().allMatch(scan -> scan.getTotalSegments() == SEGMENTS));
+        assertTrue("Expected more than one page per segment, got " + scans.size() + " scans",
+                scans.stream().filter(scan -> scan.getExclusiveStartKey() != null).count() >= SEGMENTS);
+    }
+
+    @Test
+    public void readsAFreshSnapshotOfTheSameTableOnly() {
+        registry(dynamoDb, "123456789012-eu-west-1", Duration.ZERO).load(TABLE_NAME);
+
+        var scans = Collections.synchronizedList(new ArrayList<ScanRequest>());
+        var cached = registry(recording(scans), "123456789012-eu-west-1", Duration.ofMinutes(10));
+        assertEquals(SERVERS, cached.load(TABLE_NAME).size());
+        assertEquals(0, scans.size());
+
+        var otherAccount = registry(recording(scans), "210987654321-eu-west-1", Duration.ofMinutes(10));
+        assertEquals(SERVERS, otherAccount.load(TABLE_NAME).size());
+        assertTrue(scans.size() > 0);
+    }
+
+    @Test
+    public void synthesizesWithoutServersBeforeTheTableExists() {
+        assertEquals(List.of(), registry(dynamoDb, "test", Duration.ZERO).load("missing"));
+    }
+
+    private ServerRegistry registry(AmazonDynamoDB client, String snapshotPrefix, Duration maxAge) {
+        return new ServerRegistry(client, snapshots.getRoot().toPath(), snapshotPrefix, maxAge, SEGMENTS, false);
+    }
+
+    // The DynamoDB Local client, recording the scan requests it gets
+    private static AmazonDynamoDB recording(List<ScanRequest> scans) {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[]{AmazonDynamoDB.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("scan") && args[0] instanceof ScanRequest) {
+                        scans.add(((ScanRequest) args[0]).clone());
+                    }
+                    try {
+                        return method.invoke(dynamoDb, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                });
+    }
+}
@@ -0,0 +1,95 @@
+package io.doush.factorio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionScheduleTest {
+    @Test
+    public void startsAheadOfTheSessionAndReleasesAfterIt() {
+        var schedule = new SessionSchedule("0 19 ? * FRI *", 10, 30);
+        assertEquals("cron(50 18 ? * FRI *)", schedule.startExpression());
+        assertEquals("cron(30 19 ? * FRI *)", schedule.releaseExpression());
+    }
+
+    @Test
+    public void leavesTheExpressionAloneWithoutAnOffset() {
+        assertEquals("*/5 * * * ? *", SessionSchedule.shift("*/5  * * * ? *", 0));
+    }
+
+    @Test
+    public void carriesMinutesIntoHours() {
+        assertEquals("45 20 ? * SAT *", SessionSchedule.shift("15 21 ? * SAT *", -30));
+        assertEquals("5 22 ? * SAT *", SessionSchedule.shift("35 21 ? * SAT *", 30));
+        assertEquals("0 3 ? * SAT *", SessionSchedule.shift("0 1 ? * SAT *", 120));
+    }
+
+    @Test
+    public void movesTheDayBackWhenTheLeadCrossesMidnight() {
+        assertEquals("50 23 ? * 1 *", SessionSchedule.shift("0 0 ? * MON *", -10));
+        // Sunday is the first day, so the day before it is Saturday
+        assertEquals("50 23 ? * 7 *", SessionSchedule.shift("0 0 ? * SUN *", -10));
+        assertEquals("50 23 ? * 7 *", SessionSchedule.shift("0 0 ? * 1 *", -10));
+    }
+
+    @Test
+    public void movesTheDayForwardWhenTheHoldCrossesMidnight() {
+        assertEquals("15 0 ? * 7 *", SessionSchedule.shift("45 23 ? * FRI *", 30));
+        assertEquals("15 0 ? * 1 *", SessionSchedule.shift("45 23 ? * SAT *", 30));
+        // More than a day is still a whole number of days
+        assertEquals("0 1 ? * 3 *", SessionSchedule.shift("0 23 ? * SUN *", 26 * 60));
+    }
+
+    @Test
+    public void shiftsEveryDayOfRangesAndLists() {
+        assertEquals("50 23 ? * 1,2,3,4,5 *", SessionSchedule.shift("0 0 ? * MON-FRI *", -10));
+        assertEquals("50 23 ? * 1,6,7 *", SessionSchedule.shift("0 0 ? * SUN,sat,MON *", -10));
+        assertEquals("15 0 ? * 1,6,7 *", SessionSchedule.shift("45 23 ? * THU-SAT *", 30));
+        assertEquals("15 0 ? * 2,4,7 *", SessionSchedule.shift("45 23 ? * 1,3,6 *", 30));
+    }
+
+    @Test
+    public void leavesDailySchedulesOnEveryDay() {
+        assertEquals("50 23 * * ? *", SessionSchedule.shift("0 0 * * ? *", -10));
+        assertEquals("50 23 ? * * *", SessionSchedule.shift("0 0 ? * * *", -10));
+    }
+
+    @Test
+    public void keepsADayOfMonthThatStaysOnTheSameDay() {
+        assertEquals("50 18 1 * ? *", SessionSchedule.shift("0 19 1 * ? *", -10));
+    }
+
+    @Test
+    public void rejectsWhatItCantShift() {
+        assertRejected("0 0 1 * ? *", -10);
+        assertRejected("0 0 ? * 6#3 *", -10);
+        assertRejected("0 0 ? * 6L *", -10);
+        // A range that wraps around the end of the week
+        assertRejected("0 0 ? * FRI-MON *", -10);
+        assertRejected("*/15 19 ? * FRI *", 10);
+        assertRejected("0 19-21 ? * FRI *", 10);
+        assertRejected("60 19 ? * FRI *", 10);
+        assertRejected("0 24 ? * FRI *", 10);
+        assertRejected("0 19 ? * FRI", 10);
+    }
+
+    @Test
+    public void rejectsNegativeLeadAndHoldTimes() {
+        try {
+            new SessionSchedule("0 19 ? * FRI *", -1, 30);
+            fail("Accepted a negative lead time");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("negative"));
+        }
+    }
+
+    private static void assertRejected(String cron, int offsetMinutes) {
+        try {
+            fail("Shifted '" + cron + "' to '" + SessionSchedule.shift(cron, offsetMinutes) + "'");
+        } catch (IllegalArgumentException expected) {
+            // Can't be expressed as a shifted cron expression
+        }
+    }
+}
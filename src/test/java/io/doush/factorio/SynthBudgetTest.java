@@ -0,0 +1,180 @@
+package io.doush.factorio;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import software.amazon.awscdk.core.App;
+import software.amazon.awscdk.cxapi.CloudFormationStackArtifact;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthesizes the app with 1, 10, 100 and 500 generated servers and checks every template against
+ * CloudFormation's limits, so that fleet growth fails {@code mvn test}, and with it the pipeline, instead of a
+ * deploy.
+ * <p>
+ * Nothing is looked up, see {@link Templates}. Heap is the JVM's only, the constructs themselves live in the
+ * jsii node process.
+ * <p>
+ * System properties, e.g. {@code mvn test -Dbenchmark.sizes=1,10}: {@code benchmark.sizes},
+ * {@code benchmark.maxResources}, {@code benchmark.maxOutputs}, {@code benchmark.maxTemplateKiB} and
+ * {@code benchmark.maxSynthSeconds}.
+ */
+public class SynthBudgetTest {
+    // Hard CloudFormation limits per stack
+    static final int RESOURCE_LIMIT = 500;
+    static final int OUTPUT_LIMIT = 200;
+    static final long TEMPLATE_LIMIT_BYTES = 1024 * 1024;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void staysWithinTheBudgets() throws IOException {
+        var sizes = Arrays.stream(System.getProperty("benchmark.sizes", "1,10,100,500").split(","))
+                .map(String::trim)
+                .map(Integer::parseInt)
+                .collect(Collectors.toList());
+        var maxResources = Integer.getInteger("benchmark.maxResources", RESOURCE_LIMIT * 9 / 10);
+        var maxOutputs = Integer.getInteger("benchmark.maxOutputs", OUTPUT_LIMIT * 9 / 10);
+        var maxTemplateBytes = Long.getLong("benchmark.maxTemplateKiB", TEMPLATE_LIMIT_BYTES * 9 / 10 / 1024) * 1024;
+        var maxSynthSeconds = Integer.getInteger("benchmark.maxSynthSeconds", 300);
+
+        // Starting the jsii runtime and loading the modules would otherwise be counted for the first size
+        synthesize(1);
+
+        System.out.printf("%8s %10s %10s %7s %12s %10s %14s%n",
+                "servers", "synth (s)", "heap (MiB)", "stacks", "resources", "outputs", "template (KiB)");
+        var violations = new ArrayList<String>();
+        for (int size : sizes) {
+            var result = synthesize(size);
+            var largest = result.largest();
+            System.out.printf("%8d %10.1f %10d %7d %12s %10s %14s%n",
+                    size,
+                    result.seconds,
+                    result.heapBytes / 1024 / 1024,
+                    result.stacks.size(),
+                    largest.resources + "/" + RESOURCE_LIMIT,
+                    largest.outputs + "/" + OUTPUT_LIMIT,
+                    largest.bytes / 1024 + "/" + TEMPLATE_LIMIT_BYTES / 1024);
+
+            for (var stack : result.stacks) {
+                if (stack.resources > maxResources) {
+                    violations.add(size + " servers: " + stack.name + " has " + stack.resources
+                            + " resources, the budget is " + maxResources);
+                }
+                if (stack.outputs > maxOutputs) {
+                    violations.add(size + " servers: " + stack.name + " has " + stack.outputs
+                            + " outputs, the budget is " + maxOutputs);
+                }
+                if (stack.bytes > maxTemplateBytes) {
+                    violations.add(size + " servers: " + stack.name + " is " + stack.bytes / 1024
+                            + " KiB, the budget is " + maxTemplateBytes / 1024 + " KiB");
+                }
+            }
+            if (result.seconds > maxSynthSeconds) {
+                violations.add(size + " servers: synth took " + Math.round(result.seconds)
+                        + "s, the budget is " + maxSynthSeconds + "s");
+            }
+        }
+
+        assertTrue(String.join("\n", violations), violations.isEmpty());
+    }
+
+    static Result synthesize(int serverCount) throws IOException {
+        var outdir = Files.createTempDirectory("factorio-synth-");
+        try {
+            System.gc();
+            var memory = ManagementFactory.getMemoryMXBean();
+            var heapBefore = memory.getHeapMemoryUsage().getUsed();
+            var start = System.nanoTime();
+
+            var app = App.Builder.create()
+                    .outdir(outdir.toString())
+                    .context(Map.of("domainName", Templates.DOMAIN_NAME))
+                    .build();
+            FactorioApp.build(app, Templates.DOMAIN_NAME, Templates.ENVIRONMENT,
+                    new FactorioRegions(Templates.ENVIRONMENT.getRegion(), List.of()),
+                    tableName -> stubServers(serverCount));
+            var assembly = app.synth();
+
+            var seconds = (System.nanoTime() - start) / 1e9;
+            var heapBytes = Math.max(0, memory.getHeapMemoryUsage().getUsed() - heapBefore);
+
+            var stacks = new ArrayList<StackSize>();
+            for (var artifact : assembly.getStacks()) {
+                stacks.add(measure(artifact));
+            }
+            return new Result(seconds, heapBytes, stacks);
+        } finally {
+            Templates.delete(outdir);
+        }
+    }
+
+    /**
+     * Servers that between them use every storage and capacity option, so that the generated resources are
+     * representative of a real table.
+     */
+    static List<ServerConfig> stubServers(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new ServerConfig(new TreeMap<>() {{
+                    put("serverName", new AttributeValue().withS(String.format("bench-%03d", i)));
+                    put("version", new AttributeValue().withS("1.1.110"));
+                    put("storage", new AttributeValue().withS(i % 4 == 3 ? ServerConfig.EFS : ServerConfig.S3));
+                    put("spot", new AttributeValue().withBOOL(i % 2 == 1));
+                    put("logRouting", new AttributeValue().withS(i % 5 == 4
+                            ? ServerConfig.FIRELENS : ServerConfig.AWSLOGS));
+                }}))
+                .collect(Collectors.toList());
+    }
+
+    private static StackSize measure(CloudFormationStackArtifact artifact) throws IOException {
+        var template = Path.of(artifact.getTemplateFullPath());
+        var tree = MAPPER.readTree(template.toFile());
+        return new StackSize(artifact.getStackName(), tree.path("Resources").size(), tree.path("Outputs").size(),
+                Files.size(template));
+    }
+
+    static class Result {
+        final double seconds;
+        final long heapBytes;
+        final List<StackSize> stacks;
+
+        Result(double seconds, long heapBytes, List<StackSize> stacks) {
+            this.seconds = seconds;
+            this.heapBytes = heapBytes;
+            this.stacks = stacks;
+        }
+
+        // Usually the cluster stack, which grows with the fleet unlike the per-server stacks
+        StackSize largest() {
+            return stacks.stream().max(Comparator.comparingLong(stack -> stack.bytes)).orElseThrow();
+        }
+    }
+
+    static class StackSize {
+        final String name;
+        final int resources;
+        final int outputs;
+        final long bytes;
+
+        StackSize(String name, int resources, int outputs, long bytes) {
+            this.name = name;
+            this.resources = resources;
+            this.outputs = outputs;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.doush.factorio;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awscdk.core.App;
+import software.amazon.awscdk.core.Environment;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The templates the app synthesizes for a given list of servers, read back as JSON.
+ * <p>
+ * Nothing is looked up: the servers don't come from the table and the hosted zone and availability zones get
+ * CDK's dummy values. The Lambda bundles in lambda/dist must exist, the Maven build creates them before the
+ * tests run.
+ */
+final class Templates {
+    static final String DOMAIN_NAME = "test.example.com";
+    static final Environment ENVIRONMENT = Environment.builder()
+            .account("123456789012")
+            .region("eu-west-1")
+            .build();
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String STACK_NAME = "factorio-stack-" + DOMAIN_NAME.replaceAll("\\.", "-");
+
+    private final Map<String, JsonNode> byStackName;
+
+    private Templates(Map<String, JsonNode> byStackName) {
+        this.byStackName = byStackName;
+    }
+
+    static Templates synthesize(List<ServerConfig> servers) {
+        return synthesize(tableName -> servers);
+    }
+
+    static Templates synthesize(ServerSource serverSource) {
+        try {
+            var outdir = Files.createTempDirectory("factorio-test-");
+            try {
+                var app = App.Builder.create()
+                        .outdir(outdir.toString())
+                        .context(Map.of("domainName", DOMAIN_NAME))
+                        .build();
+                FactorioApp.build(app, DOMAIN_NAME, ENVIRONMENT,
+                        new FactorioRegions(ENVIRONMENT.getRegion(), List.of()), serverSource);
+                var byStackName = new TreeMap<String, JsonNode>();
+                for (var artifact : app.synth().getStacks()) {
+                    byStackName.put(artifact.getStackName(),
+                            MAPPER.readTree(Path.of(artifact.getTemplateFullPath()).toFile()));
+                }
+                return new Templates(byStackName);
+            } finally {
+                delete(outdir);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * A server row with the required attributes and the given ones, as strings like in the table.
+     */
+    static ServerConfig server(String serverName, Map<String, String> attributes) {
+        var item = new TreeMap<String, AttributeValue>();
+        item.put("serverName", new AttributeValue().withS(serverName));
+        item.put("version", new AttributeValue().withS("1.1.110"));
+        attributes.forEach((key, value) -> item.put(key, new AttributeValue().withS(value)));
+        return new ServerConfig(item);
+    }
+
+    JsonNode cluster() {
+        return stack(STACK_NAME);
+    }
+
+    JsonNode server(String serverName) {
+        return stack(STACK_NAME + "-server-" + serverName);
+    }
+
+    Map<String, JsonNode> all() {
+        return byStackName;
+    }
+
+    private JsonNode stack(String stackName) {
+        var template = byStackName.get(stackName);
+        if (template == null) {
+            throw new IllegalArgumentException("No stack " + stackName + ", only " + byStackName.keySet());
+        }
+        return template;
+    }
+
+    /**
+     * The resources of a type, each with its logical id in {@code LogicalId}.
+     */
+    static List<JsonNode> resources(JsonNode template, String type) {
+        var found = new ArrayList<JsonNode>();
+        template.path("Resources").fields().forEachRemaining(entry -> {
+            if (type.equals(entry.getValue().path("Type").asText())) {
+                found.add(withLogicalId(entry.getKey(), entry.getValue()));
+            }
+        });
+        return found;
+    }
+
+    /**
+     * The resource a {@code {"Ref": ...}} or {@code {"Fn::GetAtt": [...]}} points to.
+     */
+    static JsonNode referenced(JsonNode template, JsonNode ref) {
+        var logicalId = ref.has("Fn::GetAtt") ? ref.path("Fn::GetAtt").path(0).asText() : ref.path("Ref").asText();
+        var resource = template.path("Resources").path(logicalId);
+        if (resource.isMissingNode()) {
+            throw new IllegalArgumentException("No resource " + logicalId + " for " + ref);
+        }
+        return resource;
+    }
+
+    private static JsonNode withLogicalId(String logicalId, JsonNode resource) {
+        var copy = (ObjectNode) resource.deepCopy();
+        copy.put("LogicalId", logicalId);
+        return copy;
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+    }
+}